@@ -20,7 +20,6 @@ import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.plus.PlusClient;
 import com.google.android.gms.plus.PlusClient.OnAccessRevokedListener;
 import com.google.plus.wigwamnow.models.Wigwam;
-import com.google.plus.wigwamnow.social.FacebookProvider;
 import com.google.plus.wigwamnow.social.GoogleProvider;
 import com.google.plus.wigwamnow.social.PlusAuthActivity;
 import com.google.plus.wigwamnow.social.PlusClientFragment;
@@ -28,12 +27,12 @@ import com.google.plus.wigwamnow.social.PlusClientFragment.OnSignInListener;
 import com.google.plus.wigwamnow.social.PlusClientHostActivity;
 import com.google.plus.wigwamnow.social.SocialProviderConstants;
 import com.google.plus.wigwamnow.social.SocialProvider;
+import com.google.plus.wigwamnow.startup.StartupTrace;
 
 import android.app.Activity;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.os.Parcelable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
@@ -41,6 +40,8 @@ import android.support.v4.app.FragmentTransaction;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewTreeObserver.OnPreDrawListener;
 
 import com.facebook.Session;
 import com.facebook.SessionState;
@@ -70,6 +71,12 @@ public class MainActivity extends FragmentActivity
     /** Fragment index for the {@link PlusSettingsFragment} **/
     private static final int GPLUS_SETTINGS = 3;
     
+    /** Tags of the fragments created on demand, indexed like {@link #mFragments} **/
+    private static final String[] FRAGMENT_TAGS = { null, null, "fbSettings", "gplusSettings" };
+    
+    /** Instant the first frame of the first activity was drawn **/
+    public static final String SPAN_FIRST_FRAME = "first_frame";
+    
     /** Count of the total number of {@link Fragment}s hosted **/
     private static final int FRAGMENT_COUNT = GPLUS_SETTINGS + 1;
     
@@ -82,8 +89,8 @@ public class MainActivity extends FragmentActivity
     /** Key for the last {@link SocialProviderConstants} stored in the {@link SharedPreferences} **/
     private static final String KEY_LAST_PROVIDER = "LAST_PROVIDER";
     
-    /** Key for passing a {@link Wigwam} in a {@link Bundle} **/
-    protected static final String EXTRA_WIGWAM = "wigwam";
+    /** Key for passing the id of a {@link Wigwam} in a {@link Bundle} **/
+    protected static final String EXTRA_WIGWAM_ID = "wigwam_id";
     
     /** Key for passing a {@link SocialProviderConstants} in a {@link Bundle} **/
     protected static final String EXTRA_PROVIDER = "provider";
@@ -119,6 +126,8 @@ public class MainActivity extends FragmentActivity
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        // Load the catalog and the user's profile while the screen is inflated
+        WigwamNow.getStartupOrchestrator().start();
         setContentView(R.layout.activity_main);
         
         // Track Facebook Session Status
@@ -134,19 +143,43 @@ public class MainActivity extends FragmentActivity
         // Reset the last known SocialProviderConstants
         mLastProvider = SocialProviderConstants.NONE;
         
-        // Instantiate the four main fragments
+        // Link to the two main fragments.  The settings fragments are created the first time
+        // they are shown, or restored with the activity's state.
         FragmentManager fm = getSupportFragmentManager();
         mFragments[SPLASH] = fm.findFragmentById(R.id.splashFragment);
         mFragments[SELECTION] = fm.findFragmentById(R.id.selectionFragment);
-        mFragments[FB_SETTINGS] = fm.findFragmentById(R.id.fbSettingsFragment);
-        mFragments[GPLUS_SETTINGS] = fm.findFragmentById(R.id.gplusSettingsFragment);
+        mFragments[FB_SETTINGS] = fm.findFragmentByTag(FRAGMENT_TAGS[FB_SETTINGS]);
+        mFragments[GPLUS_SETTINGS] = fm.findFragmentByTag(FRAGMENT_TAGS[GPLUS_SETTINGS]);
         
         // Hide all of the fragments, to start
         FragmentTransaction transaction = fm.beginTransaction();
         for (Fragment fragment : mFragments) {
-            transaction.hide(fragment);
+            if (fragment != null) {
+                transaction.hide(fragment);
+            }
         }
         transaction.commit();
+        
+        markFirstFrame();
+    }
+
+    /**
+     * Record {@link #SPAN_FIRST_FRAME} in the {@link StartupTrace} just before the first frame
+     * is drawn.
+     */
+    private void markFirstFrame() {
+        if (StartupTrace.hasEnded(SPAN_FIRST_FRAME)) {
+            return;
+        }
+        final View decor = getWindow().getDecorView();
+        decor.getViewTreeObserver().addOnPreDrawListener(new OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decor.getViewTreeObserver().removeOnPreDrawListener(this);
+                StartupTrace.mark(SPAN_FIRST_FRAME, WigwamNow.SPAN_APPLICATION);
+                return true;
+            }
+        });
     }
 
     @Override
@@ -227,6 +260,12 @@ public class MainActivity extends FragmentActivity
     @Override
     protected void onResumeFragments() {
         super.onResumeFragments();
+        if (currentProvider() == SocialProviderConstants.FACEBOOK) {
+            // The session may have been opened from cache before this activity was listening.
+            // Authorization is cached, so this only reaches the server when needed.
+            onFacebookSessionOpened(Session.getActiveSession());
+            sendFbTokenToServer();
+        }
         if (currentProvider() != SocialProviderConstants.NONE) {
             // User is logged in
             showFragment(SELECTION, true);
@@ -281,8 +320,16 @@ public class MainActivity extends FragmentActivity
             Log.w(TAG, "Tried to display invalid fragment " + Integer.toString(fragmentIndex));
             return;
         }
+        if (mFragments[fragmentIndex] == null) {
+            mFragments[fragmentIndex] = createFragment(fragmentIndex);
+            transaction.add(R.id.fragmentContainer, mFragments[fragmentIndex],
+                    FRAGMENT_TAGS[fragmentIndex]);
+        }
         // Hide all other fragments
         for (Fragment frag : mFragments) {
+            if (frag == null) {
+                continue;
+            }
             if (frag == mFragments[fragmentIndex]) {
                 transaction.show(frag);
             } else {
@@ -297,6 +344,19 @@ public class MainActivity extends FragmentActivity
         supportInvalidateOptionsMenu();
     }
 
+    /**
+     * Create a fragment that is not declared in the layout.
+     *
+     * @param fragmentIndex index of the fragment such as {@code FB_SETTINGS}.
+     * @return the new fragment.
+     */
+    private Fragment createFragment(int fragmentIndex) {
+        if (fragmentIndex == FB_SETTINGS) {
+            return new UserSettingsFragment();
+        }
+        return new PlusSettingsFragment();
+    }
+
     /**
      * Callback when the state of the Facebook Session changes.
      *
@@ -305,6 +365,13 @@ public class MainActivity extends FragmentActivity
      * @param exception any exception which occurred.
      */
     private void onSessionStateChange(Session session, SessionState state, Exception exception) {
+        if (state.isOpened()) {
+            onFacebookSessionOpened(session);
+        } else if (state.isClosed()) {
+            WigwamNow.getAuthCoordinator().invalidate(
+                    SocialProvider.get(SocialProviderConstants.FACEBOOK));
+            WigwamNow.getStartupOrchestrator().onSignedOut();
+        }
         // Only make changes if the activity is visible
         if (mIsResumed) {
             FragmentManager manager = getSupportFragmentManager();
@@ -327,6 +394,18 @@ public class MainActivity extends FragmentActivity
         }
     }
     
+    /**
+     * Start the work that waits for a Facebook session: the profile, and any uploads and actions
+     * left over from a previous run.  Safe to call repeatedly.
+     *
+     * @param session the open session.
+     */
+    private void onFacebookSessionOpened(Session session) {
+        WigwamNow.getStartupOrchestrator().onFacebookSessionOpened(session);
+        WigwamNow.getUploadOutbox().pump();
+        WigwamNow.getSocialActionOutbox().pump();
+    }
+
     /**
      * Get the current social identity {@link SocialProviderConstants}.
      * 
@@ -352,6 +431,7 @@ public class MainActivity extends FragmentActivity
     @Override
     public void signOut() {
         mPlusFragment.signOut();
+        WigwamNow.getStartupOrchestrator().onSignedOut();
         showFragment(SPLASH, false);
     }
     
@@ -364,6 +444,9 @@ public class MainActivity extends FragmentActivity
             } 
         });
         recordCodeSent(SocialProviderConstants.GOOGLE, 0);
+        WigwamNow.getAuthCoordinator().invalidate(
+                SocialProvider.get(SocialProviderConstants.GOOGLE));
+        WigwamNow.getStartupOrchestrator().onSignedOut();
         showFragment(SPLASH, false); 
     }
     
@@ -380,7 +463,7 @@ public class MainActivity extends FragmentActivity
         // TODO(samstern): Call this method BEFORE the first connect, not after.
         // TODO(samstern): Refactor into single hybrid auth method
         if (!authSentToServer(SocialProviderConstants.GOOGLE)) {
-            SocialProvider google = new GoogleProvider();
+            SocialProvider google = SocialProvider.get(SocialProviderConstants.GOOGLE);
             google.hybridAuth(this);
         }
     }
@@ -390,27 +473,29 @@ public class MainActivity extends FragmentActivity
      * Send the access_token from the current Facebook {@link Session} to the server.
      */
     private void sendFbTokenToServer() {
-        SocialProvider facebook = new FacebookProvider();
+        SocialProvider facebook = SocialProvider.get(SocialProviderConstants.FACEBOOK);
         facebook.hybridAuth(this);
     }
 
     /**
      * Called when a {@link Wigwam} is selected in {@link SelectionFragment}
      *
-     * @param wigwam the {@link Wigwam} which was selected from the list.
+     * @param wigwamId the id of the {@link Wigwam} which was selected from the list.
      */
-    protected void wigwamSelected(Wigwam wigwam) {
-        newIntent(wigwam);
+    protected void wigwamSelected(int wigwamId) {
+        newIntent(wigwamId);
     }
     
     /**
-     * Create an intent for the {@link WigwamDetailActivity} for a {@link Wigwam}.
+     * Create an intent for the {@link WigwamDetailActivity} for a {@link Wigwam}.  Only the id is
+     * passed, the activity finds the wigwam in the
+     * {@link com.google.plus.wigwamnow.models.WigwamRepository}.
      * 
-     * @param wigwam the selected {@link Wigwam}
+     * @param wigwamId the id of the selected {@link Wigwam}
      */
-    private void newIntent(Wigwam wigwam) {
+    private void newIntent(int wigwamId) {
         Intent intent = new Intent(this, WigwamDetailActivity.class);
-        intent.putExtra(EXTRA_WIGWAM, (Parcelable) wigwam);
+        intent.putExtra(EXTRA_WIGWAM_ID, wigwamId);
         intent.putExtra(EXTRA_PROVIDER, currentProvider());
 
         startActivity(intent);
@@ -443,8 +528,8 @@ public class MainActivity extends FragmentActivity
 
     @Override
     public void onSignedIn(PlusClient plusClient) {
-        // Load profile information
-        plusClient.loadPerson((SelectionFragment) mFragments[SELECTION], "me");
+        // Load profile information, delivered to the selection fragment when it is shown
+        WigwamNow.getStartupOrchestrator().onPlusSignedIn(plusClient);
         if (!authSentToServer(SocialProviderConstants.GOOGLE)) {
             // Get and send the code to the server, but only if the user hasn't done this
             // since the last disconnect
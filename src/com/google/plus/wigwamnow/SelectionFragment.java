@@ -16,55 +16,72 @@
 
 package com.google.plus.wigwamnow;
 
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.plus.PlusClient;
-import com.google.android.gms.plus.model.people.Person;
+import com.google.plus.wigwamnow.concurrent.Lane;
+import com.google.plus.wigwamnow.concurrent.TaskScheduler;
+import com.google.plus.wigwamnow.concurrent.TaskScope;
+import com.google.plus.wigwamnow.metrics.Metrics;
+import com.google.plus.wigwamnow.models.Catalog;
+import com.google.plus.wigwamnow.models.Profile;
 import com.google.plus.wigwamnow.models.Wigwam;
+import com.google.plus.wigwamnow.models.WigwamFilter;
+import com.google.plus.wigwamnow.models.WigwamRepository;
+import com.google.plus.wigwamnow.models.WigwamTable;
+import com.google.plus.wigwamnow.network.ImagePrefetcher;
+import com.google.plus.wigwamnow.search.SearchIndex;
+import com.google.plus.wigwamnow.search.SearchSession;
 import com.google.plus.wigwamnow.social.SocialProviderConstants;
+import com.google.plus.wigwamnow.startup.StartupOrchestrator;
+import com.google.plus.wigwamnow.startup.StartupTrace;
 
 import android.app.ProgressDialog;
+import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
+import android.location.Location;
+import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver.OnPreDrawListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
+import android.widget.AdapterView.OnItemSelectedListener;
+import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.ListView;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.NetworkImageView;
-import com.android.volley.toolbox.StringRequest;
-import com.facebook.Request;
-import com.facebook.Response;
 import com.facebook.Session;
 import com.facebook.SessionState;
 import com.facebook.UiLifecycleHelper;
-import com.facebook.model.GraphUser;
-import com.facebook.widget.ProfilePictureView;
 
-import org.codehaus.jackson.JsonParseException;
-import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.ObjectMapper;
-
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Fragment shown once the user has logged in. Shows personalized header and list of all available
- * {@link Wigwam}s.
+ * {@link Wigwam}s.  Both are loaded by the {@link StartupOrchestrator}, which this fragment joins
+ * when it becomes visible.  Typing in the search box lists only the matching {@link Wigwam}s,
+ * best match first, and the list can be filtered by price, city and state and sorted by price,
+ * name or distance.
  *
  * @author samstern@google.com (Sam Stern)
  */
-public class SelectionFragment extends Fragment implements PlusClient.OnPersonLoadedListener {
+public class SelectionFragment extends Fragment
+        implements StartupOrchestrator.Listener, SearchSession.Listener {
 
     private static final String TAG = SelectionFragment.class.getSimpleName();
     
@@ -74,11 +91,11 @@ public class SelectionFragment extends Fragment implements PlusClient.OnPersonLo
     /** Regular expression to parse deep links to Wigwams, from Facebook or Google+ **/
     private static final Pattern DEEPLINK_PATTERN = Pattern.compile("/wigwams/([0-9]+)");
 
-    /** Image view that displays the current user's Facebook profile picture **/
-    private ProfilePictureView mFbProfilePictureView;
-    
-    /** Image view that displays the current user's Google+ profile picture **/
-    private NetworkImageView mPlusProfilePictureView;
+    /** Instant the first wigwam row was drawn **/
+    public static final String SPAN_FIRST_ROW = "first_row";
+
+    /** Image view that displays the current user's profile picture, from either provider **/
+    private ImageView mProfilePictureView;
     
     /** Text view to display the current user's name **/
     private TextView mUserNameView;
@@ -101,12 +118,49 @@ public class SelectionFragment extends Fragment implements PlusClient.OnPersonLo
     /** List view for displaying the list of {@link Wigwam}s **/
     private ListView mList;
     
+    /** Prefetches images for rows about to scroll into view **/
+    private ImagePrefetcher mPrefetcher;
+    
+    /** The catalog shown in {@link #mList} **/
+    private Catalog mCatalog;
+    
+    /** Choice of the order of the list, by {@link WigwamFilter.Sort} ordinal **/
+    private Spinner mSortView;
+    
+    /** Filtering and sorting of {@link #mCatalog} in progress, or null **/
+    private TaskScheduler.Task<int[]> mSortTask;
+    
+    /** Order the list was last shown in **/
+    private WigwamFilter.Sort mShownSort;
+    
+    /** Search box for filtering the {@link Wigwam}s **/
+    private EditText mSearchView;
+    
+    /** Runs the queries typed into {@link #mSearchView} **/
+    private SearchSession mSearchSession;
+    
+    /** Rows of {@link #mCatalog} matching the search box, best first, or null **/
+    private int[] mSearchRows;
+    
+    /** Price bounds, city and state to filter by **/
+    private EditText mMinPriceView;
+    
+    private EditText mMaxPriceView;
+    
+    private EditText mCityView;
+    
+    private EditText mStateView;
+    
     /** Progress dialog for when data is loading over the network **/
     private ProgressDialog mProgressDialog;
+    
+    /** Scope of the work done for this fragment, cancelled when it is destroyed **/
+    private TaskScope mScope;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mScope = new TaskScope(TAG);
         mUiHelper = new UiLifecycleHelper(getActivity(), mCallback);
         mUiHelper.onCreate(savedInstanceState);
     }
@@ -140,7 +194,8 @@ public class SelectionFragment extends Fragment implements PlusClient.OnPersonLo
     }
 
     /**
-     * Loads a Wigwam from the server based on its numeric id. When finished, launches the
+     * Loads a Wigwam based on its numeric id, from the
+     * {@link com.google.plus.wigwamnow.models.WigwamRepository}. When finished, launches the
      * WigwamDetailActivity for the loaded Wigwam (if successful).
      *
      * @param wigwamId the id of the wigwam to load
@@ -148,42 +203,28 @@ public class SelectionFragment extends Fragment implements PlusClient.OnPersonLo
     private void loadWigwamFromId(int wigwamId) {
         // Show the progress dialog
         mProgressDialog = ProgressDialog.show(getActivity(), "", "Loading wigwam...", true);
+        WigwamNow.getWigwamRepository().get(wigwamId, mScope, new WigwamRepository.Listener() {
 
-        String host = getActivity().getResources().getString(R.string.external_host);
-        String path = host + "/wigwams/" + Integer.toString(wigwamId) + ".json";
-        // Asynchronously load the wigwam from the server.
-        StringRequest sr =
-                new StringRequest(path, new com.android.volley.Response.Listener<String>() {
-                    @Override
-                    public void onResponse(String response) {
-                        // Convert to Java Object
-                        ObjectMapper mapper = new ObjectMapper();
-                        try {
-                            // Decode the JSON Wigwam to a POJO and launch the detail view as if
-                            // the Wigwam was selected from a list
-                            Wigwam wigwam = mapper.readValue(response, Wigwam.class);
-                            MainActivity host = (MainActivity) getActivity();
-                            mProgressDialog.dismiss();
-                            host.wigwamSelected(wigwam);
-                        } catch (JsonParseException e) {
-                            Log.e(TAG, e.toString());
-                        } catch (JsonMappingException e) {
-                            Log.e(TAG, e.toString());
-                        } catch (IOException e) {
-                            Log.e(TAG, e.toString());
-                        }
-                    }
+            @Override
+            public void onWigwamLoaded(Wigwam wigwam) {
+                // Launch the detail view as if the Wigwam was selected from a list
+                mProgressDialog.dismiss();
+                MainActivity host = (MainActivity) getActivity();
+                if (host != null) {
+                    host.wigwamSelected(wigwam.getId());
+                }
+            }
 
-                }, new com.android.volley.Response.ErrorListener() {
-                    @Override
-                    public void onErrorResponse(VolleyError error) {
-                        mProgressDialog.dismiss();
-                        Toast.makeText(getActivity(), "Failed to load Wigwam.", Toast.LENGTH_SHORT)
-                                .show();
-                        Log.e(TAG, error.toString());
-                    }
-                });
-        WigwamNow.getQueue().add(sr);
+            @Override
+            public void onWigwamFailed(int id, VolleyError error) {
+                mProgressDialog.dismiss();
+                if (getActivity() != null) {
+                    Toast.makeText(getActivity(), "Failed to load Wigwam.", Toast.LENGTH_SHORT)
+                            .show();
+                }
+            }
+
+        });
     }
 
     @Override
@@ -195,6 +236,8 @@ public class SelectionFragment extends Fragment implements PlusClient.OnPersonLo
     @Override
     public void onHiddenChanged(boolean isHidden) {
         if (!isHidden) {
+            // Show the catalog and profile loaded since the app started
+            WigwamNow.getStartupOrchestrator().join(this);
             personalizeView();
         }
     }
@@ -209,12 +252,24 @@ public class SelectionFragment extends Fragment implements PlusClient.OnPersonLo
     public void onPause() {
         super.onPause();
         mUiHelper.onPause();
+        // Report image loading and other metrics gathered while the list was on screen
+        if (BuildConfig.DEBUG) {
+            Metrics.dump();
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         mUiHelper.onDestroy();
+        WigwamNow.getStartupOrchestrator().leave(this);
+        if (mPrefetcher != null) {
+            mPrefetcher.cancelAll();
+        }
+        mScope.cancel();
+        if (mSearchSession != null) {
+            mSearchSession.cancel();
+        }
     }
 
     @Override
@@ -223,71 +278,295 @@ public class SelectionFragment extends Fragment implements PlusClient.OnPersonLo
         super.onCreateView(inflater, container, savedInstanceState);
         View view = inflater.inflate(R.layout.selection, container, false);
         // Display the user's name and picture, from either social provider
-        mFbProfilePictureView = (ProfilePictureView) view.findViewById(R.id.fb_profile_pic);
-        mFbProfilePictureView.setCropped(true);
-        mPlusProfilePictureView = (NetworkImageView) view.findViewById(R.id.plus_profile_pic);
+        mProfilePictureView = (ImageView) view.findViewById(R.id.profile_pic);
         mUserNameView = (TextView) view.findViewById(R.id.selection_user_name);
         
+        mSortView = (Spinner) view.findViewById(R.id.selection_sort);
+        mSortView.setOnItemSelectedListener(new OnItemSelectedListener() {
+
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                if (mAdapter != null) {
+                    publishOrder();
+                }
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {}
+
+        });
+
+        TextWatcher filterWatcher = new TextWatcher() {
+
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (mAdapter != null) {
+                    publishOrder();
+                }
+            }
+
+        };
+        mMinPriceView = (EditText) view.findViewById(R.id.selection_min_price);
+        mMinPriceView.addTextChangedListener(filterWatcher);
+        mMaxPriceView = (EditText) view.findViewById(R.id.selection_max_price);
+        mMaxPriceView.addTextChangedListener(filterWatcher);
+        mCityView = (EditText) view.findViewById(R.id.selection_city);
+        mCityView.addTextChangedListener(filterWatcher);
+        mStateView = (EditText) view.findViewById(R.id.selection_state);
+        mStateView.addTextChangedListener(filterWatcher);
+
+        mSearchSession = new SearchSession(
+                WigwamNow.getSearchIndex(), WigwamNow.getTaskScheduler(), mScope, this);
+        mSearchView = (EditText) view.findViewById(R.id.selection_search);
+        mSearchView.addTextChangedListener(new TextWatcher() {
+
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (mAdapter != null) {
+                    applyOrder();
+                }
+            }
+
+        });
+
         mList = (ListView) view.findViewById(R.id.stream_list_view);
         mList.setOnItemClickListener(new OnItemClickListener() {
 
             @Override
-            public void onItemClick(AdapterView<?> arg0, View arg1, int position, long arg3) {
-                Wigwam selected = mAdapter.getItem(position);
+            public void onItemClick(AdapterView<?> arg0, View arg1, int position, long id) {
                 MainActivity host = (MainActivity) getActivity();
-                host.wigwamSelected(selected);
+                host.wigwamSelected((int) id);
             }
 
         });
-        
-        loadWigwams();
 
         return view;
     }
 
     /**
-     * Populates the {@link ListView} with Wigwams from the server.  Fetches the JSON description
-     * of all Wigwams asynchronously and then parses it as a list of POJOs.
+     * Fetch a fresh list of Wigwams from the server, the result is delivered to
+     * {@link #onCatalogLoaded}.
      */
     public void loadWigwams() {
-        String host = getResources().getString(R.string.external_host);
-        String path = host + "/wigwams.json";
+        WigwamNow.getStartupOrchestrator().refreshCatalog();
+    }
+
+    @Override
+    public void onCatalogLoaded(Catalog catalog, boolean isFresh) {
+        if (mList != null) {
+            populateList(catalog);
+        }
+    }
+
+    @Override
+    public void onCatalogFailed(VolleyError error) {
+        Log.e(TAG, error.toString());
+    }
+
+    /**
+     * Populate the {@link ListView} with a catalog of {@link Wigwam}s.
+     * 
+     * @param catalog the {@link Wigwam}s to display.
+     */
+    private void populateList(Catalog catalog) {
+        if (mPrefetcher != null) {
+            mPrefetcher.cancelAll();
+        }
+        mCatalog = catalog;
+        mSearchRows = null;
+        mShownSort = null;
+        mAdapter = new WigwamArrayAdapter(getActivity(), catalog.getTable());
+        mPrefetcher = new ImagePrefetcher(
+                mAdapter, WigwamNow.getImagePipeline(), WigwamNow.getImageUrlRewriter());
+        mList.setAdapter(mAdapter);
+        mList.setOnScrollListener(mPrefetcher);
+        applyOrder();
+        markFirstRow();
+    }
+
+    /**
+     * List the {@link Wigwam}s matching the search box if it has any words, or all of them
+     * otherwise, then filter and sort them with {@link #publishOrder}.  Searches run off the main
+     * thread.
+     */
+    private void applyOrder() {
+        String query = mSearchView.getText().toString();
+        if (hasWords(query)) {
+            // Results arrive in onSearchResults
+            mSearchSession.setQuery(query);
+            return;
+        }
+        mSearchSession.cancel();
+        mSearchRows = null;
+        publishOrder();
+    }
+
+    @Override
+    public void onSearchResults(String query, int[] ids) {
+        if (mAdapter == null || !query.equals(mSearchView.getText().toString())) {
+            return;
+        }
+        // The index may briefly hold wigwams of a newer or older catalog than the one shown
+        WigwamTable table = mCatalog.getTable();
+        int[] rows = new int[ids.length];
+        int count = 0;
+        for (int id : ids) {
+            int row = table.indexOfId(id);
+            if (row >= 0) {
+                rows[count++] = row;
+            }
+        }
+        mSearchRows = new int[count];
+        System.arraycopy(rows, 0, mSearchRows, 0, count);
+        publishOrder();
+    }
+
+    /**
+     * Filter the search results, or the whole catalog, by the price, city and state entered and
+     * sort them in the chosen order.  Runs off the main thread, then updates the list in place.
+     */
+    private void publishOrder() {
+        if (mSortTask != null) {
+            mSortTask.cancel();
+            mSortTask = null;
+        }
+        final WigwamFilter filter = new WigwamFilter();
+        filter.setSort(WigwamFilter.Sort.values()[mSortView.getSelectedItemPosition()]);
+        if (filter.getSort() == WigwamFilter.Sort.DISTANCE) {
+            Location location = getLastLocation();
+            if (location == null) {
+                Toast.makeText(getActivity(), R.string.location_unavailable, Toast.LENGTH_SHORT)
+                        .show();
+                // Publishes again in the default order
+                mSortView.setSelection(WigwamFilter.Sort.DEFAULT.ordinal());
+                return;
+            }
+            filter.setOrigin(location.getLatitude(), location.getLongitude());
+        }
+        filter.setMinPrice(parsePrice(mMinPriceView));
+        filter.setMaxPrice(parsePrice(mMaxPriceView));
+        filter.setCity(parseName(mCityView));
+        filter.setState(parseName(mStateView));
+
+        final Catalog catalog = mCatalog;
+        final int[] matches = mSearchRows;
+        mSortTask = WigwamNow.getTaskScheduler().submit(Lane.UI_CRITICAL,
+                TaskScheduler.PRIORITY_HIGH, mScope,
+                new TaskScheduler.Task<int[]>() {
 
-        // Download list of Wigwams
-        StringRequest sr =
-                new StringRequest(path, new com.android.volley.Response.Listener<String>() {
                     @Override
-                    public void onResponse(String response) {
-                        // Convert to Java Objects
-                        ObjectMapper mapper = new ObjectMapper();
-                        try {
-                            Wigwam[] values = mapper.readValue(response, Wigwam[].class);
-                            populateList(values);
-                        } catch (JsonParseException e) {
-                            Log.e(TAG, "Unable to parse JSON response", e);
-                        } catch (JsonMappingException e) {
-                            Log.e(TAG, "Unable to map to JSON", e);
-                        } catch (IOException e) {
-                            Log.e(TAG, "IOException in Wigwam loading", e);
-                        }
+                    protected int[] run() {
+                        return catalog.getFilterEngine().apply(filter, matches);
                     }
-                }, new com.android.volley.Response.ErrorListener() {
+
                     @Override
-                    public void onErrorResponse(VolleyError error) {
-                        Log.e(TAG, error.toString());
+                    protected void onSuccess(int[] order) {
+                        mSortTask = null;
+                        if (catalog == mCatalog) {
+                            showOrder(order, filter.getSort());
+                        }
                     }
+
                 });
-        WigwamNow.getQueue().add(sr);
     }
 
     /**
-     * Populate the {@link ListView} with an array of {@link Wigwam}s.
-     * 
-     * @param values an array of {@link Wigwam} objects to display.
+     * Show the rows in a new order.  If only the filter changed, the wigwam at the top of the
+     * list stays there when it is still listed; a new sort or search starts from the top.
      */
-    private void populateList(Wigwam[] values) {
-        mAdapter = new WigwamArrayAdapter(getActivity(), values);
-        mList.setAdapter(mAdapter);
+    private void showOrder(int[] order, WigwamFilter.Sort sort) {
+        long topId = mAdapter.getCount() > 0 && mList.getChildCount() > 0
+                ? mAdapter.getItemId(mList.getFirstVisiblePosition()) : -1;
+        int topOffset = mList.getChildCount() > 0 ? mList.getChildAt(0).getTop() : 0;
+        boolean sameSort = sort == mShownSort;
+        mShownSort = sort;
+        mAdapter.setOrder(order);
+        int position = sameSort && topId >= 0 ? mAdapter.getPosition(topId) : -1;
+        if (position >= 0) {
+            mList.setSelectionFromTop(position, topOffset);
+        } else {
+            mList.setSelection(0);
+        }
+    }
+
+    /**
+     * @return the price entered in a field, or {@link WigwamFilter#NO_PRICE_LIMIT}.
+     */
+    private static int parsePrice(EditText view) {
+        try {
+            return Integer.parseInt(view.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            return WigwamFilter.NO_PRICE_LIMIT;
+        }
+    }
+
+    /**
+     * @return the city or state entered in a field, or null if it is empty.
+     */
+    private static String parseName(EditText view) {
+        String name = view.getText().toString().trim();
+        return name.length() == 0 ? null : name;
+    }
+
+    private static boolean hasWords(String query) {
+        List<String> words = new ArrayList<String>();
+        SearchIndex.tokenize(query, words);
+        return !words.isEmpty();
+    }
+
+    /**
+     * @return the last location known to the network provider, or null.
+     */
+    private Location getLastLocation() {
+        LocationManager manager =
+                (LocationManager) getActivity().getSystemService(Context.LOCATION_SERVICE);
+        try {
+            return manager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
+        } catch (IllegalArgumentException e) {
+            // No network location provider on this device
+            return null;
+        } catch (SecurityException e) {
+            Log.e(TAG, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Record {@link #SPAN_FIRST_ROW} in the {@link StartupTrace} just before the list is first
+     * drawn with rows, and log the startup timeline.
+     */
+    private void markFirstRow() {
+        if (StartupTrace.hasEnded(SPAN_FIRST_ROW)) {
+            return;
+        }
+        final ListView list = mList;
+        list.getViewTreeObserver().addOnPreDrawListener(new OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (list.getChildCount() == 0) {
+                    return true;
+                }
+                list.getViewTreeObserver().removeOnPreDrawListener(this);
+                if (!StartupTrace.hasEnded(SPAN_FIRST_ROW)) {
+                    StartupTrace.mark(SPAN_FIRST_ROW,
+                            StartupOrchestrator.SPAN_CATALOG, MainActivity.SPAN_FIRST_FRAME);
+                    StartupTrace.dump(SPAN_FIRST_ROW);
+                }
+                return true;
+            }
+        });
     }
 
     @Override
@@ -299,64 +578,36 @@ public class SelectionFragment extends Fragment implements PlusClient.OnPersonLo
     }
     
     /**
-     * Personalize the top bar with a user's picture and name, from either provider.
+     * Personalize the top bar with a user's picture and name, from either provider.  The profile
+     * is drawn from the {@link com.google.plus.wigwamnow.social.ProfileCache}, which only asks
+     * the provider again once it has expired.
      */
     private void personalizeView() {
         MainActivity host = (MainActivity) getActivity();
         int current = host.currentProvider();
         if (current == SocialProviderConstants.FACEBOOK) {
-            // Make Facebook personalization request
-            makeMeRequest(Session.getActiveSession());
+            // Does nothing if the cached profile is fresh or already refreshing
+            Session session = Session.getActiveSession();
+            if (session == null || !session.isOpened()) {
+                Log.e(TAG, "Error: Session not valid");
+                return;
+            }
+            WigwamNow.getStartupOrchestrator().onFacebookSessionOpened(session);
         }
     }
-    
+
     @Override
-    public void onPersonLoaded(ConnectionResult status, Person person) {
-        if (status.getErrorCode() == ConnectionResult.SUCCESS) {
-            // The user's personal information has been successfully loaded from Google+
-            mUserNameView.setText(person.getDisplayName());
-            mFbProfilePictureView.setVisibility(View.GONE);
-            mPlusProfilePictureView.setVisibility(View.VISIBLE);
-            mPlusProfilePictureView.setImageUrl(person.getImage().getUrl(), 
-                    WigwamNow.getImageLoader());
-        }
+    public void onProfileLoaded(Profile profile, Bitmap avatar) {
+        mUserNameView.setText(profile.getName());
+        // The avatar is already the size of the view, so this is only a draw
+        mProfilePictureView.setImageBitmap(avatar);
     }
 
-    /**
-     * Make request for Facebook User data
-     *
-     * @param session the active Facebook {@link Session}.
-     */
-    private void makeMeRequest(final Session session) {
-        if (session == null || !session.isOpened()) {
-            Log.e(TAG, "Error: Session not valid");
-            return;
+    @Override
+    public void onProfileFailed() {
+        if (getActivity() != null) {
+            Toast.makeText(getActivity(), "Error retrieving user info", Toast.LENGTH_SHORT).show();
         }
-        
-        // Get user data and define a response callback
-        Request request = Request.newMeRequest(session, new Request.GraphUserCallback() {
-
-            @Override
-            public void onCompleted(GraphUser user, Response response) {
-                // If response successful
-                if (session == Session.getActiveSession()) {
-                    if (user != null) {
-                        // Set user name and profile picture
-                        mPlusProfilePictureView.setVisibility(View.GONE);
-                        mFbProfilePictureView.setVisibility(View.VISIBLE);
-                        mFbProfilePictureView.setProfileId(user.getId());
-                        mUserNameView.setText(user.getName());
-                    }
-                }
-                if (response.getError() != null) {
-                    Toast.makeText(getActivity(), 
-                            "Error retrieving user info", Toast.LENGTH_SHORT).show();
-                    Log.e(TAG, response.getError().toString());
-                }
-            }
-
-        });
-        request.executeAsync();
     }
 
     /**
@@ -16,41 +16,113 @@
 
 package com.google.plus.wigwamnow;
 
+import com.google.plus.wigwamnow.metrics.Metrics;
 import com.google.plus.wigwamnow.models.Wigwam;
+import com.google.plus.wigwamnow.models.WigwamTable;
+import com.google.plus.wigwamnow.network.ImagePrefetcher;
 import com.google.plus.wigwamnow.views.WigwamView;
 
 import android.content.Context;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * ArrayAdapter for ListView of {@link Wigwam} objects, each displayed in a {@link WigwamView}.
+ * Adapter for ListView of {@link Wigwam}s, each displayed in a {@link WigwamView}.  Rows are bound
+ * straight from the columns of a {@link WigwamTable}, and item ids are wigwam ids.
  *
  * @author samstern@google.com (Sam Stern)
  */
-public class WigwamArrayAdapter extends ArrayAdapter<Wigwam> {
+public class WigwamArrayAdapter extends BaseAdapter implements ImagePrefetcher.ImageUrlProvider {
+
+    private static final String TAG = WigwamArrayAdapter.class.getSimpleName();
+
+    /** Counter name for every row bound to a {@link WigwamView} **/
+    public static final String METRIC_ROWS_BOUND = "wigwam_rows_bound";
+
+    /** Counter name for rows whose image was already cached when bound **/
+    public static final String METRIC_ROWS_READY = "wigwam_rows_ready";
+
+    /** Number of bound rows between logging of the ready percentage **/
+    private static final int LOG_INTERVAL = 50;
+
+    /** Count of bound rows **/
+    private final AtomicLong mRowsBound = Metrics.counter(METRIC_ROWS_BOUND);
+
+    /** Count of bound rows that were fully rendered on first appearance **/
+    private final AtomicLong mRowsReady = Metrics.counter(METRIC_ROWS_READY);
 
     /** Context where this adapter is being used **/
     private final Context mContext;
     
-    /** List of {@link Wigwam} object that this adapter is managing **/
-    private ArrayList<Wigwam> mValues;
+    /** Table of the {@link Wigwam}s that this adapter is managing **/
+    private final WigwamTable mTable;
+    
+    /** Row of {@link #mTable} shown at each position, or null for table order **/
+    private int[] mOrder;
+
+    /** Position of each row of {@link #mTable} in {@link #mOrder}, or -1, built on demand **/
+    private int[] mPositions;
 
     /**
-     * Creates a new WigwamAdapter from a context and array of Wigwams.
+     * Creates a new WigwamAdapter from a context and table of Wigwams.
      *
      * @param context the context containing the relevant ListView.
-     * @param values the array of Wigwams to be displayed in the list.
+     * @param table the Wigwams to be displayed in the list.
      */
-    public WigwamArrayAdapter(Context context, Wigwam[] values) {
-        super(context, R.layout.wigwam_view);
+    public WigwamArrayAdapter(Context context, WigwamTable table) {
         mContext = context;
-        mValues = new ArrayList<Wigwam>(Arrays.asList(values));
+        mTable = table;
+    }
+
+    /**
+     * Show the rows in a different order.  The list is only told to redraw if the order changed.
+     *
+     * @param order the row of the table to show at each position, or null for table order.
+     */
+    public void setOrder(int[] order) {
+        if (Arrays.equals(order, mOrder)) {
+            return;
+        }
+        mOrder = order;
+        mPositions = null;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * @param id the id of a wigwam.
+     * @return the position of the wigwam, or -1 if it is not shown.
+     */
+    public int getPosition(long id) {
+        if (id < Integer.MIN_VALUE || id > Integer.MAX_VALUE) {
+            return -1;
+        }
+        int row = mTable.indexOfId((int) id);
+        if (row < 0 || mOrder == null) {
+            return row;
+        }
+        if (mPositions == null) {
+            int[] positions = new int[mTable.size()];
+            Arrays.fill(positions, -1);
+            for (int position = 0; position < mOrder.length; position++) {
+                positions[mOrder[position]] = position;
+            }
+            mPositions = positions;
+        }
+        return mPositions[row];
+    }
+
+    /**
+     * @param position an adapter position.
+     * @return the row of the table at the position.
+     */
+    private int row(int position) {
+        return mOrder == null ? position : mOrder[position];
     }
 
     @Override
@@ -62,18 +134,56 @@ public class WigwamArrayAdapter extends ArrayAdapter<Wigwam> {
             wigwamView = inflater.inflate(R.layout.wigwam_list_item, parent, false);
         }
         WigwamView subView = (WigwamView) wigwamView.findViewById(R.id.item_sub_view);
-        subView.fillWithWigwam(mValues.get(position));
+        subView.fillWithRow(mTable, row(position));
+        recordRowBound(subView.isImageReady());
         return wigwamView;
     }
 
+    /**
+     * Track how many rows appear with their image already in place.
+     * 
+     * @param ready true if the row's image was displayed immediately.
+     */
+    private void recordRowBound(boolean ready) {
+        long bound = mRowsBound.incrementAndGet();
+        if (ready) {
+            mRowsReady.incrementAndGet();
+        }
+        if (BuildConfig.DEBUG && bound % LOG_INTERVAL == 0) {
+            Log.d(TAG, "Rows fully rendered on first appearance: "
+                    + Metrics.percentage(METRIC_ROWS_READY, METRIC_ROWS_BOUND) + "%");
+        }
+    }
+
+    @Override
+    public String getImageUrl(int position) {
+        return mTable.getSrc(row(position));
+    }
+
     @Override
     public int getCount() {
-        return mValues.size();
+        return mOrder == null ? mTable.size() : mOrder.length;
+    }
+
+    /**
+     * @return the id of the wigwam at the position, as rows are not kept as objects.
+     */
+    @Override
+    public Long getItem(int position) {
+        return getItemId(position);
+    }
+
+    /**
+     * @return the id of the wigwam at the position.
+     */
+    @Override
+    public long getItemId(int position) {
+        return mTable.getId(row(position));
     }
 
     @Override
-    public Wigwam getItem(int position) {
-        return mValues.get(position);
+    public boolean hasStableIds() {
+        return true;
     }
 
 }
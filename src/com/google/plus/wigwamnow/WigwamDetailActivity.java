@@ -17,17 +17,27 @@
 package com.google.plus.wigwamnow;
 
 import com.google.android.gms.plus.PlusClient;
+import com.google.plus.wigwamnow.concurrent.TaskScope;
+import com.google.plus.wigwamnow.json.ModelMapper;
 import com.google.plus.wigwamnow.models.Listing;
 import com.google.plus.wigwamnow.models.Wigwam;
+import com.google.plus.wigwamnow.models.WigwamRepository;
+import com.google.plus.wigwamnow.social.FacebookProvider;
 import com.google.plus.wigwamnow.social.PlusClientFragment;
 import com.google.plus.wigwamnow.social.PlusClientFragment.OnSignInListener;
 import com.google.plus.wigwamnow.social.PlusClientHostActivity;
+import com.google.plus.wigwamnow.social.SocialAction;
+import com.google.plus.wigwamnow.social.SocialActionOutbox;
 import com.google.plus.wigwamnow.social.SocialProviderConstants;
 import com.google.plus.wigwamnow.social.SocialProvider;
 import com.google.plus.wigwamnow.social.SocialProvider.SocialFeature;
+import com.google.plus.wigwamnow.upload.PhotoUploadTask;
+import com.google.plus.wigwamnow.upload.UploadItem;
+import com.google.plus.wigwamnow.upload.UploadOutbox;
+import com.google.plus.wigwamnow.views.ListingFormatter;
 import com.google.plus.wigwamnow.views.WigwamView;
 
-import android.annotation.SuppressLint;
+import android.app.ProgressDialog;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
@@ -45,17 +55,14 @@ import com.actionbarsherlock.app.SherlockFragmentActivity;
 import com.actionbarsherlock.view.MenuItem;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.StringRequest;
+import com.facebook.FacebookRequestError;
+import com.facebook.Response;
 import com.facebook.Session;
 import com.facebook.SessionState;
 import com.facebook.UiLifecycleHelper;
 
-import org.codehaus.jackson.JsonParseException;
-import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.ObjectMapper;
-
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 
 /**
  * Activity dedicated to a single {@link Wigwam}, launched by selection of a wigwam elsewhere.
@@ -64,7 +71,8 @@ import java.text.SimpleDateFormat;
  * @author samstern@google.com (Sam Stern)
  */
 public class WigwamDetailActivity extends SherlockFragmentActivity 
-        implements OnClickListener, OnSignInListener, PlusClientHostActivity {
+        implements OnClickListener, OnSignInListener, PlusClientHostActivity,
+        SocialActionOutbox.Listener, UploadOutbox.Listener, WigwamRepository.Listener {
     
     private static final String TAG = WigwamDetailActivity.class.getSimpleName();
 
@@ -74,15 +82,26 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
     /** Request code for taking a picture with the device camera **/
     private static final int TAKE_PICTURE = 300;
     
-    /** Name for temporary photo file when stored **/
-    private static final String PHOTO_FILENAME = "temp.jpg";
+    /** Prefix for photo files, followed by the wigwam id and the time taken **/
+    private static final String PHOTO_PREFIX = "wigwam-";
+    
+    /** Key for {@link #mPendingImageUri} in the saved instance state **/
+    private static final String STATE_PENDING_IMAGE_URI = "pending_image_uri";
+    
+    /** Key for {@link #mUploadId} in the saved instance state **/
+    private static final String STATE_UPLOAD_ID = "upload_id";
     
     /** Name for folder where photo files are stored **/
     private static final String PHOTO_FOLDER = "/wigwamnow";
 
-    /** Date format for listing {@link Wigwam} availability **/
-    @SuppressLint("SimpleDateFormat")
-    private final SimpleDateFormat mListingFormat = new SimpleDateFormat("EEE, MMM d ''yy");
+    /** Parser for listings **/
+    private final ModelMapper mMapper = new ModelMapper();
+
+    /** Scope of the work done for this activity, cancelled when it is destroyed **/
+    private final TaskScope mScope = new TaskScope(TAG);
+
+    /** Formatter for listing {@link Wigwam} availability **/
+    private final ListingFormatter mListingFormatter = new ListingFormatter("EEE, MMM d ''yy");
 
     /** View displaying {@link #mWigwam} **/
     private WigwamView mWigwamView;
@@ -114,8 +133,14 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
     /** The {@link Wigwam} to display in detail **/
     private Wigwam mWigwam;
     
+    /** Id of {@link #mWigwam}, known before the wigwam itself is loaded **/
+    private int mWigwamId;
+    
     /** The user's {@link SocialProviderConstants} **/
     private int mProvider;
+    
+    /** The shared {@link SocialProvider} for {@link #mProvider}, or null if there is none **/
+    private SocialProvider mSocialProvider;
 
     /** Fragment to manage a {@link PlusClient} **/
     private PlusClientFragment mPlusFragment;
@@ -132,9 +157,6 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
         }
     };
     
-    /** Boolean to determine if the activity is waiting to structured share **/
-    private boolean mPendingStructuredShare = false;
-    
     /** Boolean to determine if the activity is waiting share **/
     private boolean mPendingShare = false;
     
@@ -146,6 +168,12 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
     
     /** Boolean to determine if the activity is waiting to post a rental **/
     private boolean mPendingRent = false;
+    
+    /** Id of the photo upload shown in {@link #mUploadDialog}, or null **/
+    private String mUploadId;
+    
+    /** Progress of the photo upload being shown, or null **/
+    private ProgressDialog mUploadDialog;
 
 
     @Override
@@ -154,6 +182,19 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
         setContentView(R.layout.wigwam_detail_view);
         mUiHelper = new UiLifecycleHelper(this, mFacebookStatusCallback);
         mUiHelper.onCreate(savedInstanceState);
+        if (savedInstanceState != null) {
+            // The camera may have outlived this activity
+            mPendingImageUri = savedInstanceState.getParcelable(STATE_PENDING_IMAGE_URI);
+        }
+        UploadOutbox outbox = WigwamNow.getUploadOutbox();
+        outbox.addListener(this);
+        if (savedInstanceState != null) {
+            // Show the upload again if it is still running
+            UploadItem upload = outbox.getItem(savedInstanceState.getString(STATE_UPLOAD_ID));
+            if (upload != null) {
+                showUpload(upload);
+            }
+        }
         
         mPlusFragment = PlusClientFragment.getPlusClientFragment(
                 this,
@@ -177,54 +218,85 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
         mPhotoButton.setOnClickListener(this);
         mAvailabilitySpinner = (ProgressBar) findViewById(R.id.availability_spinner);
         
-        // Populate the Wigwam data
-        Intent intent = getIntent();
-        Wigwam wigwam = (Wigwam) intent.getParcelableExtra(MainActivity.EXTRA_WIGWAM);
-        mWigwam = wigwam;
-        mWigwamView.fillWithWigwam(wigwam);
-        mDescription.setText(wigwam.getDescription());
-        mPrice.setText("$" + wigwam.getPrice() + "/night");
-        
         // Customize social action buttons based on SocialProviderConstants
+        Intent intent = getIntent();
         mProvider = intent.getIntExtra(MainActivity.EXTRA_PROVIDER, 
                 SocialProviderConstants.NONE);
-        configureButton(mStructuredShareButton, SocialFeature.STRUCTURED_SHARE, "Share on");
-        configureButton(mShareButton, SocialFeature.SHARE, "Post to");
-        configureButton(mPhotoButton, SocialFeature.POST_PHOTO, "Post photo on");
+        mSocialProvider = SocialProvider.get(mProvider);
+        configureButton(mStructuredShareButton, SocialFeature.STRUCTURED_SHARE, R.string.share_on);
+        configureButton(mShareButton, SocialFeature.SHARE, R.string.post_to);
+        configureButton(mPhotoButton, SocialFeature.POST_PHOTO, R.string.post_photo_on);
         
         // Allow up navigation (via ActionBarSherlock)
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
         
+        // Populate the Wigwam data.  After the process was killed the wigwam may have to be read
+        // from disk or fetched again.
+        mWigwamId = intent.getIntExtra(MainActivity.EXTRA_WIGWAM_ID, 0);
+        WigwamNow.getWigwamRepository().get(mWigwamId, mScope, this);
+    }
+
+    @Override
+    public void onWigwamLoaded(Wigwam wigwam) {
+        mWigwam = wigwam;
+        mWigwamView.fillWithWigwam(wigwam);
+        mDescription.setText(wigwam.getDescription());
+        mPrice.setText(wigwam.hasPrice() ? "$" + wigwam.getPrice() + "/night" : "");
+        
         // Request wigwam availability data
         getAvailability();
+        
+        // A photo taken before the process was killed was waiting on the wigwam
+        if (mPendingImage) {
+            postPictureAtUri(mPendingImageUri);
+        }
+    }
+
+    @Override
+    public void onWigwamFailed(int id, VolleyError error) {
+        Toast.makeText(this, "Failed to load Wigwam.", Toast.LENGTH_SHORT).show();
+        goToMain();
     }
 
     @Override
     public void onResume() {
         super.onResume();
         mUiHelper.onResume();
+        WigwamNow.getSocialActionOutbox().addListener(this);
     }
 
     @Override
     public void onSaveInstanceState(Bundle bundle) {
         super.onSaveInstanceState(bundle);
         mUiHelper.onSaveInstanceState(bundle);
+        bundle.putParcelable(STATE_PENDING_IMAGE_URI, mPendingImageUri);
+        bundle.putString(STATE_UPLOAD_ID, mUploadId);
     }
 
     @Override
     public void onPause() {
         super.onPause();
         mUiHelper.onPause();
+        WigwamNow.getSocialActionOutbox().removeListener(this);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         mUiHelper.onDestroy();
+        mScope.cancel();
+        WigwamNow.getUploadOutbox().removeListener(this);
+        if (mUploadDialog != null) {
+            mUploadDialog.dismiss();
+        }
     }
     
     @Override
     public void onClick(View v) {
+        if (mWigwam == null) {
+            // Still loading
+            return;
+        }
         switch (v.getId()) {
             case R.id.rent_wigwam_button:
                 rentWigwam();
@@ -244,22 +316,22 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
     /**
      * Configure the display of a button based on the current {@link SocialProvider}.  If the
      * current {@link SocialProvider} supports the provided {@link SocialFeature} then the button
-     * will be visible and the text will be set to prefix + {@link SocialProvider#getName()}.
-     * Otherwise, the button will be made invisible.
+     * will be visible and the text will be set to the label formatted with
+     * {@link SocialProvider#getName()}.  Otherwise, the button will be made invisible.
      * 
      * @param button the {@link Button} to configure.
      * @param feature the {@link SocialFeature} on which to base the configuration.
-     * @param prefix the String to which the {@link SocialProvider}'s name should be added if the
-     *  button is made visible.  Should not end in whitespace.
+     * @param labelId the string resource for the label, with the {@link SocialProvider}'s name
+     *  as its only argument.
      */
-    private void configureButton(Button button, SocialFeature feature, String prefix) {
-        SocialProvider provider = SocialProvider.get(mProvider);
+    private void configureButton(Button button, SocialFeature feature, int labelId) {
+        SocialProvider provider = mSocialProvider;
         if (provider == null) {
             Log.w(TAG, "NULL PROVIDER");
         }
         if (provider != null && provider.supports(feature)) {
             button.setVisibility(View.VISIBLE);
-            button.setText(prefix + " " + provider.getName());
+            button.setText(getString(labelId, provider.getName()));
         } else {
             button.setVisibility(View.GONE);
         }
@@ -290,21 +362,16 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
      */
     private void getAvailability() {
         String host = getResources().getString(R.string.external_host);
-        String path = host + "/wigwams/" + mWigwam.getId().toString() + "/availability.json";
+        String path = host + "/wigwams/" + Integer.toString(mWigwamId) + "/availability.json";
         // Download Listings
         StringRequest sr =
                 new StringRequest(path, new com.android.volley.Response.Listener<String>() {
                     @Override
                     public void onResponse(String response) {
                         // Convert to Java Objects
-                        ObjectMapper mapper = new ObjectMapper();
                         try {
-                            Listing[] values = mapper.readValue(response, Listing[].class);
+                            Listing[] values = mMapper.readValue(response, Listing[].class);
                             populateListings(values);
-                        } catch (JsonParseException e) {
-                            Log.e(TAG, e.toString());
-                        } catch (JsonMappingException e) {
-                            Log.e(TAG, e.toString());
                         } catch (IOException e) {
                             Log.e(TAG, e.toString());
                         }
@@ -325,12 +392,11 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
      * @param values the array of {@link Listing}s fetched from the server.
      */
     private void populateListings(Listing[] values) {
+        // Keep them for finding wigwams available for a date range
+        WigwamNow.getAvailabilityIndex().put(mWigwamId, values);
         mAvailabilitySpinner.setVisibility(View.GONE);
-        for (Listing l : values) {
-            String listingString = mListingFormat.format(l.getStartDate()) + " - "
-                    + mListingFormat.format(l.getEndDate());
-            mListingsView.append(listingString + "\n");
-        }
+        // One call, so the view is laid out once
+        mListingsView.setText(mListingFormatter.format(values));
     }
 
     @Override
@@ -339,7 +405,10 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
         if (requestCode == REAUTH_ACTIVITY_CODE) {
             mUiHelper.onActivityResult(requestCode, resultCode, data);
         } else if (requestCode == TAKE_PICTURE) {
-            if (resultCode == RESULT_OK) {
+            if (resultCode == RESULT_OK && mWigwam == null) {
+                // Restored after the process was killed, post once the wigwam is loaded
+                mPendingImage = true;
+            } else if (resultCode == RESULT_OK) {
                 // Picture was taken and stored, post it to Facebook
                 postPictureAtUri(mPendingImageUri);
             }
@@ -377,9 +446,8 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
     }
 
     private void tokenUpdated() {
-        if (mPendingStructuredShare) {
-            structuredShareWigwam();
-        }
+        // Queued Open Graph actions may have been waiting for publish permissions
+        WigwamNow.getSocialActionOutbox().pump();
         if (mPendingShare) {
             shareWigwam();
         }
@@ -391,11 +459,81 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
         }
     }
     
+    @Override
+    public void onActionSent(SocialAction action) {
+        // Already reported optimistically when the action was queued
+    }
+
+    @Override
+    public void onActionFailed(SocialAction action, FacebookRequestError error) {
+        Toast.makeText(this, R.string.action_failed, Toast.LENGTH_LONG).show();
+    }
+    
+    /**
+     * Show the progress of a photo upload queued in the {@link UploadOutbox}, until it finishes or
+     * is left to be retried in the background.
+     *
+     * @param item the queued upload.
+     */
+    public void showUpload(UploadItem item) {
+        mUploadId = item.getId();
+        if (mUploadDialog == null) {
+            mUploadDialog = new ProgressDialog(this);
+            mUploadDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mUploadDialog.setMax(PhotoUploadTask.PROGRESS_DONE);
+            mUploadDialog.setMessage(getString(R.string.posting_photo));
+            mUploadDialog.setCancelable(false);
+        }
+        mUploadDialog.setProgress(item.getProgress());
+        mUploadDialog.show();
+    }
+
+    @Override
+    public void onProgress(UploadItem item) {
+        if (item.getId().equals(mUploadId)) {
+            mUploadDialog.setProgress(item.getProgress());
+        }
+    }
+
+    @Override
+    public void onRetryScheduled(UploadItem item) {
+        if (item.getId().equals(mUploadId)) {
+            // Stop blocking the user, the outbox carries on by itself
+            hideUpload();
+            Toast.makeText(this, R.string.photo_retry, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @Override
+    public void onFinished(UploadItem item, Response response) {
+        if (!item.getId().equals(mUploadId)) {
+            return;
+        }
+        hideUpload();
+        if (response != null && mSocialProvider instanceof FacebookProvider) {
+            ((FacebookProvider) mSocialProvider).onPostActionResponse(response, this);
+        } else {
+            Toast.makeText(this, R.string.error_photo, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void hideUpload() {
+        mUploadId = null;
+        mUploadDialog.dismiss();
+    }
+    
     @Override
     public PlusClient getPlusClient() {
         return mPlusFragment.getClient();
     }
     
+    /**
+     * @return the {@link Wigwam} displayed by this activity.
+     */
+    public Wigwam getWigwam() {
+        return mWigwam;
+    }
+    
     /**
      * Takes a photo with the camera, save it in a {@link File} located at {@link #mPendingImageUri}
      */
@@ -406,7 +544,9 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
         File fileDir = new File(dir);
         fileDir.mkdirs();
         
-        File file = new File(dir, PHOTO_FILENAME);
+        // Each photo gets its own file, as earlier ones may still be waiting to upload
+        File file = new File(dir,
+                PHOTO_PREFIX + mWigwam.getId() + "-" + System.currentTimeMillis() + ".jpg");
         Uri outputFileUri = Uri.fromFile(file);
         takePictureIntent.putExtra(MediaStore.EXTRA_OUTPUT, outputFileUri);
         
@@ -422,7 +562,7 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
     private void postPictureAtUri(Uri photoUri) {
         mPendingImage = false;
         
-        SocialProvider provider = SocialProvider.get(mProvider);
+        SocialProvider provider = mSocialProvider;
         if (provider.supports(SocialFeature.POST_PHOTO)) {
             boolean result = provider.postPhoto(photoUri, this);
             if (!result) {
@@ -437,7 +577,7 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
      * Rent a {@link Wigwam} using {@link SocialProvider#rent}.
      */
     private void rentWigwam() {
-        SocialProvider provider = SocialProvider.get(mProvider);
+        SocialProvider provider = mSocialProvider;
         mPendingRent = false;
         
         if (provider.supports(SocialFeature.RENT)) {
@@ -459,7 +599,7 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
     private void shareWigwam() {
         mPendingShare = false;
         
-        boolean result = SocialProvider.get(mProvider).share(mWigwam, this);
+        boolean result = mSocialProvider.share(mWigwam, this);
         if (!result) {
             mPendingShare = true;
         }
@@ -469,13 +609,10 @@ public class WigwamDetailActivity extends SherlockFragmentActivity
      * Shares a {@link Wigwam} via the social graph using {@link SocialProvider#structuredShare}.
      */
     private void structuredShareWigwam() {
-        mPendingStructuredShare = false;
-        
-        boolean result = SocialProvider.get(mProvider).structuredShare(mWigwam, this);
-        if (!result) {
-            mPendingStructuredShare = true;
+        boolean result = mSocialProvider.structuredShare(mWigwam, this);
+        if (result) {
+            Toast.makeText(this, R.string.wigwam_shared, Toast.LENGTH_SHORT).show();
         }
     }
 
 }
-
@@ -16,7 +16,25 @@
 
 package com.google.plus.wigwamnow;
 
+import com.google.plus.wigwamnow.concurrent.TaskScheduler;
+import com.google.plus.wigwamnow.memory.MemoryGovernor;
+import com.google.plus.wigwamnow.models.AvailabilityIndex;
+import com.google.plus.wigwamnow.models.WigwamRepository;
 import com.google.plus.wigwamnow.network.BitmapCache;
+import com.google.plus.wigwamnow.network.ImagePipeline;
+import com.google.plus.wigwamnow.network.ImageUrlRewriter;
+import com.google.plus.wigwamnow.search.SearchIndex;
+import com.google.plus.wigwamnow.social.AuthCoordinator;
+import com.google.plus.wigwamnow.social.GraphBatcher;
+import com.google.plus.wigwamnow.social.ProfileCache;
+import com.google.plus.wigwamnow.social.SocialActionOutbox;
+import com.google.plus.wigwamnow.startup.CatalogLoader;
+import com.google.plus.wigwamnow.startup.Component;
+import com.google.plus.wigwamnow.startup.Component.InitMode;
+import com.google.plus.wigwamnow.startup.ComponentRegistry;
+import com.google.plus.wigwamnow.startup.StartupOrchestrator;
+import com.google.plus.wigwamnow.startup.StartupTrace;
+import com.google.plus.wigwamnow.upload.UploadOutbox;
 
 import android.app.Application;
 
@@ -26,16 +44,63 @@ import com.android.volley.toolbox.Volley;
 
 /**
  * Application class for the WigwamNow app. Hosts the volley request queue and other global state.
+ * Global objects are {@link Component}s, built on first use or when the main thread is idle
+ * rather than all before the first frame.
  *
  * @author samstern@google.com (Sam Stern)
  */
 public class WigwamNow extends Application {
 
+    /** Span for {@link #onCreate} **/
+    public static final String SPAN_APPLICATION = "application_create";
+
+    /** The application's components **/
+    private static ComponentRegistry sComponents;
+
     /** Volley request queue for all network requests initated by the application **/
-    private static RequestQueue sReqQueue;
+    private static Component<RequestQueue> sReqQueue;
+    
+    /** Memory cache of decoded images, shared by the {@link ImageLoader} and the pipeline **/
+    private static Component<BitmapCache> sBitmapCache;
     
     /** Image loader that caches images to disk **/
-    private static ImageLoader sImageLoader;
+    private static Component<ImageLoader> sImageLoader;
+    
+    /** Runs background work on bounded, prioritized lanes **/
+    private static Component<TaskScheduler> sTaskScheduler;
+    
+    /** Loader for wigwam images, which decodes on the decode lane **/
+    private static Component<ImagePipeline> sImagePipeline;
+    
+    /** Rewrites image URLs to request server-side resizing **/
+    private static Component<ImageUrlRewriter> sImageUrlRewriter;
+    
+    /** Trims every registered cache when the system is short of memory **/
+    private static Component<MemoryGovernor> sMemoryGovernor;
+    
+    /** Persistent queue of photos to upload **/
+    private static Component<UploadOutbox> sUploadOutbox;
+    
+    /** Persistent queue of Open Graph actions to send **/
+    private static Component<SocialActionOutbox> sSocialActionOutbox;
+    
+    /** Deduplicates and caches hybrid authorization with the server **/
+    private static Component<AuthCoordinator> sAuthCoordinator;
+    
+    /** Cache of the signed-in user's profile **/
+    private static Component<ProfileCache> sProfileCache;
+    
+    /** Wigwams by id, so screens pass ids rather than whole wigwams **/
+    private static Component<WigwamRepository> sWigwamRepository;
+    
+    /** Full-text index over the catalog **/
+    private static Component<SearchIndex> sSearchIndex;
+    
+    /** Days each wigwam is available, from the listings fetched so far **/
+    private static Component<AvailabilityIndex> sAvailabilityIndex;
+    
+    /** Loads the catalog and the user's profile in parallel from the first activity's start **/
+    private static Component<StartupOrchestrator> sStartupOrchestrator;
     
     /** The maximum number of bitmaps to keep in the {@link BitmapCache} at any time **/
     private static final int IMAGE_CACHE_SIZE = 40;
@@ -43,17 +108,211 @@ public class WigwamNow extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
-        sReqQueue = Volley.newRequestQueue(this);
-        sImageLoader = new ImageLoader(sReqQueue, new BitmapCache(IMAGE_CACHE_SIZE));
+        StartupTrace.start();
+        StartupTrace.begin(SPAN_APPLICATION);
+        sComponents = new ComponentRegistry();
+        registerComponents();
+        sComponents.start();
+        StartupTrace.end(SPAN_APPLICATION);
+    }
+
+    /**
+     * Declare every component with its dependencies.  Only the memory governor, which must see
+     * every activity start, is built here; the startup orchestrator is started by the first
+     * activity, and the outboxes, which read their files, and auth wait for an idle main thread.
+     */
+    private void registerComponents() {
+        final Application app = this;
+        sMemoryGovernor = sComponents.register(
+                new Component<MemoryGovernor>("memory_governor", InitMode.EAGER) {
+                    @Override
+                    protected MemoryGovernor create() {
+                        MemoryGovernor governor = new MemoryGovernor();
+                        governor.attach(app);
+                        return governor;
+                    }
+                });
+        sTaskScheduler = sComponents.register(
+                new Component<TaskScheduler>("task_scheduler", InitMode.LAZY) {
+                    @Override
+                    protected TaskScheduler create() {
+                        return new TaskScheduler();
+                    }
+                });
+        sReqQueue = sComponents.register(
+                new Component<RequestQueue>("request_queue", InitMode.LAZY) {
+                    @Override
+                    protected RequestQueue create() {
+                        return Volley.newRequestQueue(app);
+                    }
+                });
+        sBitmapCache = sComponents.register(
+                new Component<BitmapCache>("bitmap_cache", InitMode.LAZY, sMemoryGovernor) {
+                    @Override
+                    protected BitmapCache create() {
+                        BitmapCache cache = new BitmapCache(IMAGE_CACHE_SIZE);
+                        sMemoryGovernor.get().register("bitmaps", cache);
+                        return cache;
+                    }
+                });
+        sImageLoader = sComponents.register(new Component<ImageLoader>(
+                "image_loader", InitMode.LAZY, sReqQueue, sBitmapCache) {
+                    @Override
+                    protected ImageLoader create() {
+                        return new ImageLoader(sReqQueue.get(), sBitmapCache.get());
+                    }
+                });
+        sImagePipeline = sComponents.register(new Component<ImagePipeline>(
+                "image_pipeline", InitMode.LAZY, sBitmapCache, sTaskScheduler) {
+                    @Override
+                    protected ImagePipeline create() {
+                        // The queue is built on the first download, not with the pipeline
+                        return new ImagePipeline(
+                                sReqQueue, sBitmapCache.get(), sTaskScheduler.get());
+                    }
+                });
+        sImageUrlRewriter = sComponents.register(
+                new Component<ImageUrlRewriter>("image_url_rewriter", InitMode.IDLE) {
+                    @Override
+                    protected ImageUrlRewriter create() {
+                        return new ImageUrlRewriter(app);
+                    }
+                });
+        sUploadOutbox = sComponents.register(
+                new Component<UploadOutbox>("upload_outbox", InitMode.IDLE, sTaskScheduler) {
+                    @Override
+                    protected UploadOutbox create() {
+                        return new UploadOutbox(app, sTaskScheduler.get());
+                    }
+                });
+        sSocialActionOutbox = sComponents.register(new Component<SocialActionOutbox>(
+                "social_action_outbox", InitMode.IDLE, sTaskScheduler) {
+                    @Override
+                    protected SocialActionOutbox create() {
+                        return new SocialActionOutbox(app, sTaskScheduler.get(),
+                                new GraphBatcher(sTaskScheduler.get(),
+                                        new GraphBatcher.SdkTransport()));
+                    }
+                });
+        sAuthCoordinator = sComponents.register(
+                new Component<AuthCoordinator>("auth_coordinator", InitMode.IDLE, sTaskScheduler) {
+                    @Override
+                    protected AuthCoordinator create() {
+                        return new AuthCoordinator(app, sTaskScheduler.get());
+                    }
+                });
+        sProfileCache = sComponents.register(new Component<ProfileCache>(
+                "profile_cache", InitMode.LAZY, sMemoryGovernor, sImagePipeline, sTaskScheduler) {
+                    @Override
+                    protected ProfileCache create() {
+                        ProfileCache cache =
+                                new ProfileCache(app, sImagePipeline.get(), sTaskScheduler.get());
+                        sMemoryGovernor.get().register("profiles", cache);
+                        return cache;
+                    }
+                });
+        sWigwamRepository = sComponents.register(new Component<WigwamRepository>(
+                "wigwam_repository", InitMode.LAZY, sTaskScheduler) {
+                    @Override
+                    protected WigwamRepository create() {
+                        return new WigwamRepository(app, sReqQueue, sTaskScheduler.get(),
+                                getString(R.string.external_host));
+                    }
+                });
+        sAvailabilityIndex = sComponents.register(
+                new Component<AvailabilityIndex>("availability_index", InitMode.LAZY) {
+                    @Override
+                    protected AvailabilityIndex create() {
+                        return new AvailabilityIndex();
+                    }
+                });
+        sSearchIndex = sComponents.register(
+                new Component<SearchIndex>("search_index", InitMode.LAZY) {
+                    @Override
+                    protected SearchIndex create() {
+                        return new SearchIndex();
+                    }
+                });
+        sStartupOrchestrator = sComponents.register(new Component<StartupOrchestrator>(
+                "startup_orchestrator", InitMode.LAZY,
+                sTaskScheduler, sProfileCache, sWigwamRepository, sSearchIndex) {
+                    @Override
+                    protected StartupOrchestrator create() {
+                        String catalogUrl = getString(R.string.external_host) + "/wigwams.json";
+                        return new StartupOrchestrator(app,
+                                new CatalogLoader(app, sReqQueue, sTaskScheduler.get(), catalogUrl),
+                                sProfileCache.get(), sWigwamRepository.get(), sSearchIndex.get(),
+                                sTaskScheduler.get());
+                    }
+                });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        sMemoryGovernor.get().onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        sMemoryGovernor.get().onLowMemory();
     }
 
     public static RequestQueue getQueue() {
-        return sReqQueue;
+        return sReqQueue.get();
     }
 
     public static ImageLoader getImageLoader() {
-        return sImageLoader;
+        return sImageLoader.get();
     }
 
-}
+    public static TaskScheduler getTaskScheduler() {
+        return sTaskScheduler.get();
+    }
+
+    public static ImagePipeline getImagePipeline() {
+        return sImagePipeline.get();
+    }
+
+    public static ImageUrlRewriter getImageUrlRewriter() {
+        return sImageUrlRewriter.get();
+    }
+
+    public static MemoryGovernor getMemoryGovernor() {
+        return sMemoryGovernor.get();
+    }
+
+    public static UploadOutbox getUploadOutbox() {
+        return sUploadOutbox.get();
+    }
+
+    public static SocialActionOutbox getSocialActionOutbox() {
+        return sSocialActionOutbox.get();
+    }
+
+    public static AuthCoordinator getAuthCoordinator() {
+        return sAuthCoordinator.get();
+    }
+
+    public static ProfileCache getProfileCache() {
+        return sProfileCache.get();
+    }
+
+    public static WigwamRepository getWigwamRepository() {
+        return sWigwamRepository.get();
+    }
+
+    public static AvailabilityIndex getAvailabilityIndex() {
+        return sAvailabilityIndex.get();
+    }
+
+    public static SearchIndex getSearchIndex() {
+        return sSearchIndex.get();
+    }
 
+    public static StartupOrchestrator getStartupOrchestrator() {
+        return sStartupOrchestrator.get();
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.concurrent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes files so that a reader sees either the old contents or the new ones, never a partial
+ * write.  The data is written and synced to a temporary file next to the target, which then
+ * replaces the target.  Blocks, so should be used from the {@link Lane#DISK} lane.
+ */
+public final class AtomicFiles {
+
+    /** Suffix of the temporary file written before it replaces the target **/
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private AtomicFiles() {}
+
+    /**
+     * Replace the contents of a file, only once the new contents are fully written.
+     *
+     * @param file the file to replace, which need not exist.
+     * @param data the new contents.
+     * @throws IOException if the data could not be written or the file replaced.
+     */
+    public static void write(File file, byte[] data) throws IOException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+}
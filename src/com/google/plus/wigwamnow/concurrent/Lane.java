@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.concurrent;
+
+import android.os.Process;
+
+/**
+ * The lanes of the {@link TaskScheduler}.  Each lane has its own bounded pool of threads, so that
+ * slow work in one lane cannot starve another.
+ */
+public enum Lane {
+
+    /** Short work the user is waiting to see, such as filtering the list **/
+    UI_CRITICAL(Math.max(1, Runtime.getRuntime().availableProcessors()),
+            Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE),
+
+    /** Image decodes, kept apart so that a screen of images does not delay a filter or search **/
+    DECODE(Math.max(1, Runtime.getRuntime().availableProcessors()),
+            Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE),
+
+    /** Blocking network calls outside of Volley **/
+    NETWORK(4, Process.THREAD_PRIORITY_BACKGROUND),
+
+    /** Reads and writes of local files, serialized to keep the disk queue short **/
+    DISK(1, Process.THREAD_PRIORITY_BACKGROUND),
+
+    /** Work nobody is waiting for **/
+    BACKGROUND(1, Process.THREAD_PRIORITY_LOWEST);
+
+    /** Number of threads serving the lane **/
+    final int mThreads;
+
+    /** Linux priority of the lane's threads, see {@link Process#setThreadPriority} **/
+    final int mThreadPriority;
+
+    private Lane(int threads, int threadPriority) {
+        mThreads = threads;
+        mThreadPriority = threadPriority;
+    }
+
+    /**
+     * @return the number of threads serving the lane.
+     */
+    public int getThreads() {
+        return mThreads;
+    }
+
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.concurrent;
+
+import com.google.plus.wigwamnow.metrics.Histogram;
+import com.google.plus.wigwamnow.metrics.Metrics;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the app's background work on a fixed set of {@link Lane}s instead of ad-hoc threads and
+ * AsyncTasks.  Each lane has a bounded pool of threads and a queue ordered by priority, then by
+ * arrival.  Every task belongs to a {@link TaskScope}, and cancelling the scope removes its tasks
+ * that have not started and suppresses the results of those that have.  Per-lane wait time, run
+ * time and utilization are recorded in {@link Metrics}.
+ *
+ * <p>Tasks may be submitted from any thread.  Their callbacks are called on the main thread.
+ * Volley keeps its own dispatcher threads.
+ */
+public class TaskScheduler {
+
+    private static final String TAG = TaskScheduler.class.getSimpleName();
+
+    /** Priority for work the user is waiting for **/
+    public static final int PRIORITY_HIGH = 0;
+
+    /** Priority for ordinary work **/
+    public static final int PRIORITY_NORMAL = 1;
+
+    /** Priority for speculative work, such as prefetching **/
+    public static final int PRIORITY_LOW = 2;
+
+    /** How long idle lane threads are kept alive, in seconds **/
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * A unit of work.  {@link #run} is called on a lane thread and the other callbacks on the main
+     * thread.  Exactly one of {@link #onSuccess}, {@link #onFailure} and {@link #onCancelled} is
+     * called for every submitted task.  A task can be submitted only once.
+     *
+     * @param <T> the type of the result.
+     */
+    public abstract static class Task<T> {
+
+        /** The scheduler the task was submitted to **/
+        private TaskScheduler mScheduler;
+
+        /** The scope the task belongs to **/
+        private TaskScope mScope;
+
+        /** The queue entry of the task, replaced when the task is reprioritized **/
+        private volatile Job mJob;
+
+        /** Boolean to determine if the task has been cancelled **/
+        private volatile boolean mCancelled;
+
+        /** Boolean to determine if a callback has been called **/
+        private boolean mDelivered;
+
+        /**
+         * Do the work.  Long-running work should check {@link #isCancelled} and return early.
+         *
+         * @return the result, passed to {@link #onSuccess}.
+         * @throws Exception any failure, passed to {@link #onFailure}.
+         */
+        protected abstract T run() throws Exception;
+
+        /**
+         * @param result the value returned by {@link #run}.
+         */
+        protected void onSuccess(T result) {}
+
+        /**
+         * @param e the exception thrown by {@link #run}.
+         */
+        protected void onFailure(Exception e) {
+            Log.e(TAG, "Task " + getClass().getName() + " failed", e);
+        }
+
+        /**
+         * Called instead of the other callbacks once the task or its scope has been cancelled.
+         */
+        protected void onCancelled() {}
+
+        public final boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Cancel the task.  If it has not started it never runs, otherwise its result is dropped.
+         *
+         * @return false if the task had already been cancelled or finished.
+         */
+        public final boolean cancel() {
+            synchronized (this) {
+                if (mCancelled || mDelivered) {
+                    return false;
+                }
+                mCancelled = true;
+            }
+            if (mScheduler != null && mScheduler.remove(mJob)) {
+                // It will never run, so nothing else will report it
+                mScheduler.post(mJob.mDeliver);
+            }
+            return true;
+        }
+
+        /**
+         * Run something on the main thread, such as a progress update, unless the task is
+         * cancelled by then.
+         *
+         * @param runnable the code to run.
+         */
+        protected final void runOnMainThread(final Runnable runnable) {
+            mScheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        runnable.run();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Call the callback for the outcome.  Main thread only.
+         */
+        private void deliver(T result, Exception error) {
+            boolean cancelled;
+            synchronized (this) {
+                if (mDelivered) {
+                    return;
+                }
+                mDelivered = true;
+                cancelled = mCancelled;
+            }
+            mScope.remove(this);
+            if (cancelled) {
+                onCancelled();
+            } else if (error != null) {
+                onFailure(error);
+            } else {
+                onSuccess(result);
+            }
+        }
+
+    }
+
+    /**
+     * Queue entry of a task.  Orders by priority, then by arrival.
+     */
+    private static class Job implements Runnable, Comparable<Job> {
+
+        private final LaneExecutor mExecutor;
+
+        private final Task<?> mTask;
+
+        private final int mPriority;
+
+        private final long mSequenceNumber;
+
+        private final long mEnqueueTime = SystemClock.uptimeMillis();
+
+        /** Delivers the outcome on the main thread **/
+        final Deliverer<?> mDeliver;
+
+        <T> Job(LaneExecutor executor, Task<T> task, int priority, long sequence) {
+            mExecutor = executor;
+            mTask = task;
+            mPriority = priority;
+            mSequenceNumber = sequence;
+            mDeliver = new Deliverer<T>(task);
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequenceNumber < other.mSequenceNumber ? -1
+                    : (mSequenceNumber == other.mSequenceNumber ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            long start = SystemClock.uptimeMillis();
+            mExecutor.mWaitMs.record(start - mEnqueueTime);
+            if (!mTask.isCancelled()) {
+                mDeliver.execute();
+                mExecutor.recordRun(SystemClock.uptimeMillis() - start);
+            }
+            mTask.mScheduler.post(mDeliver);
+        }
+
+    }
+
+    /**
+     * Runs a task and holds its outcome until it is delivered on the main thread.
+     */
+    private static class Deliverer<T> implements Runnable {
+
+        private final Task<T> mTask;
+
+        private T mResult;
+
+        private Exception mError;
+
+        Deliverer(Task<T> task) {
+            mTask = task;
+        }
+
+        /**
+         * Run the task.  Lane thread only.
+         */
+        void execute() {
+            try {
+                mResult = mTask.run();
+            } catch (Exception e) {
+                mError = e;
+            }
+        }
+
+        @Override
+        public void run() {
+            mTask.deliver(mResult, mError);
+        }
+
+    }
+
+    /**
+     * Executor and metrics of a single lane.
+     */
+    private static class LaneExecutor extends ThreadPoolExecutor {
+
+        /** Time tasks waited in the queue **/
+        final Histogram mWaitMs;
+
+        /** Time tasks ran **/
+        final Histogram mRunMs;
+
+        /** Total time the lane's threads spent running tasks **/
+        final AtomicLong mBusyMs;
+
+        /** Busy time as a percentage of the lane's thread time since it was created **/
+        final AtomicLong mUtilization;
+
+        private final long mCreatedAt = SystemClock.uptimeMillis();
+
+        private final int mThreads;
+
+        LaneExecutor(Lane lane) {
+            super(lane.mThreads, lane.mThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new LaneThreadFactory(lane));
+            String prefix = "lane_" + lane.name().toLowerCase(Locale.US);
+            mWaitMs = Metrics.histogram(prefix + "_wait_ms");
+            mRunMs = Metrics.histogram(prefix + "_run_ms");
+            mBusyMs = Metrics.counter(prefix + "_busy_ms");
+            mUtilization = Metrics.counter(prefix + "_utilization_pct");
+            mThreads = lane.mThreads;
+        }
+
+        void recordRun(long elapsed) {
+            mRunMs.record(elapsed);
+            long busy = mBusyMs.addAndGet(elapsed);
+            long available = (SystemClock.uptimeMillis() - mCreatedAt) * mThreads;
+            if (available > 0) {
+                mUtilization.set(Math.min(100, busy * 100 / available));
+            }
+        }
+
+    }
+
+    /**
+     * Creates the threads of a lane at the lane's priority.
+     */
+    private static class LaneThreadFactory implements ThreadFactory {
+
+        private final Lane mLane;
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        LaneThreadFactory(Lane lane) {
+            mLane = lane;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(mLane.mThreadPriority);
+                    runnable.run();
+                }
+            }, "Lane-" + mLane.name() + "-" + mCount.incrementAndGet());
+        }
+
+    }
+
+    /** Executor of each lane **/
+    private final EnumMap<Lane, LaneExecutor> mExecutors =
+            new EnumMap<Lane, LaneExecutor>(Lane.class);
+
+    /** Handler to deliver results on the main thread **/
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Sequence number so that tasks of equal priority run in arrival order **/
+    private final AtomicLong mSequence = new AtomicLong();
+
+    public TaskScheduler() {
+        for (Lane lane : Lane.values()) {
+            mExecutors.put(lane, new LaneExecutor(lane));
+        }
+    }
+
+    /**
+     * Submit a task.  If the scope has already been cancelled the task does not run and is
+     * reported as cancelled.
+     *
+     * @param lane the lane to run the task on.
+     * @param priority {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_LOW}.
+     * @param scope the scope the task belongs to.
+     * @param task the task.
+     * @return the task, so it can be cancelled on its own.
+     */
+    public <T> Task<T> submit(Lane lane, int priority, TaskScope scope, Task<T> task) {
+        if (task.mScheduler != null) {
+            throw new IllegalStateException("Task has already been submitted");
+        }
+        LaneExecutor executor = mExecutors.get(lane);
+        task.mScheduler = this;
+        task.mScope = scope;
+        task.mJob = new Job(executor, task, priority, mSequence.getAndIncrement());
+        if (scope.add(task)) {
+            executor.execute(task.mJob);
+        } else {
+            task.cancel();
+            post(task.mJob.mDeliver);
+        }
+        return task;
+    }
+
+    /**
+     * Move a task that is still waiting for a thread to another priority, for example when work
+     * queued speculatively turns out to be needed now.  The task keeps its place among tasks of
+     * the new priority that arrived after it.
+     *
+     * @param task a submitted task.
+     * @param priority the new priority.
+     * @return false if the task has already started, finished or been cancelled.
+     */
+    public boolean reprioritize(Task<?> task, int priority) {
+        Job job = task.mJob;
+        if (job == null || task.isCancelled() || !remove(job)) {
+            return false;
+        }
+        Job replacement = new Job(job.mExecutor, task, priority, job.mSequenceNumber);
+        task.mJob = replacement;
+        job.mExecutor.execute(replacement);
+        return true;
+    }
+
+    /**
+     * @param lane a lane.
+     * @return the number of tasks waiting for a thread of the lane.
+     */
+    public int getQueueDepth(Lane lane) {
+        return mExecutors.get(lane).getQueue().size();
+    }
+
+    /**
+     * @return true if the job had not started and has been removed from its queue.
+     */
+    private boolean remove(Job job) {
+        return job.mExecutor.remove(job);
+    }
+
+    private void post(Runnable runnable) {
+        mMainHandler.post(runnable);
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.concurrent;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A group of tasks that are cancelled together, usually bound to the lifecycle of an Activity or
+ * Fragment: create the scope when the component is created and {@link #cancel} it when the
+ * component is destroyed.  Work that must outlive every screen uses {@link #APPLICATION}.
+ */
+public class TaskScope {
+
+    /** Scope of the application, never cancelled **/
+    public static final TaskScope APPLICATION = new TaskScope("application") {
+        @Override
+        public void cancel() {
+            throw new UnsupportedOperationException("The application scope cannot be cancelled");
+        }
+    };
+
+    /** Name of the scope, for logs **/
+    private final String mName;
+
+    /** Tasks submitted in this scope that have not finished **/
+    private final Set<TaskScheduler.Task<?>> mTasks = new HashSet<TaskScheduler.Task<?>>();
+
+    /** Boolean to determine if the scope has been cancelled **/
+    private boolean mCancelled;
+
+    /**
+     * @param name a name for the scope, such as the owning component's class name.
+     */
+    public TaskScope(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Cancel every task in the scope.  Tasks that have not started never run, and no task in the
+     * scope delivers a result afterwards.  Tasks submitted later are cancelled immediately.
+     */
+    public void cancel() {
+        List<TaskScheduler.Task<?>> tasks;
+        synchronized (this) {
+            mCancelled = true;
+            tasks = new ArrayList<TaskScheduler.Task<?>>(mTasks);
+            mTasks.clear();
+        }
+        for (TaskScheduler.Task<?> task : tasks) {
+            task.cancel();
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return the number of unfinished tasks in the scope.
+     */
+    public synchronized int size() {
+        return mTasks.size();
+    }
+
+    /**
+     * @return false if the scope is already cancelled and the task must not run.
+     */
+    synchronized boolean add(TaskScheduler.Task<?> task) {
+        if (mCancelled) {
+            return false;
+        }
+        mTasks.add(task);
+        return true;
+    }
+
+    synchronized void remove(TaskScheduler.Task<?> task) {
+        mTasks.remove(task);
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.json;
+
+import com.google.plus.wigwamnow.models.IsoDates;
+import com.google.plus.wigwamnow.models.Listing;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads a {@link Listing}, accepting dates as {@link Listing.DayDeserializer} does.  Unknown
+ * fields are skipped and null fields are left unset.
+ */
+public class ListingReader extends ModelReader<Listing> {
+
+    private static final int START_DATE = 0;
+
+    private static final int END_DATE = 1;
+
+    /** Field numbers by JSON name, in the order of the constants above **/
+    private static final Map<String, Integer> FIELDS = fields("start_date", "end_date");
+
+    @Override
+    public Listing read(JsonParser parser, byte[] source) throws IOException {
+        if (!startObject(parser)) {
+            return null;
+        }
+        Listing listing = new Listing();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            int field = field(FIELDS, parser);
+            if (parser.nextToken() == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (field) {
+                case START_DATE:
+                    listing.setStartDay(readDay(parser));
+                    break;
+                case END_DATE:
+                    listing.setEndDay(readDay(parser));
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * @return the day of a date sent as an ISO 8601 string or as milliseconds since the epoch.
+     */
+    private static int readDay(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.VALUE_NUMBER_INT) {
+            return IsoDates.toDay(parser.getLongValue());
+        }
+        if (token != JsonToken.VALUE_STRING) {
+            throw mismatch(parser, "a date");
+        }
+        try {
+            return IsoDates.toDay(IsoDates.parseMillis(parser.getTextCharacters(),
+                    parser.getTextOffset(), parser.getTextLength()));
+        } catch (IllegalArgumentException e) {
+            throw mismatch(parser, "a date");
+        }
+    }
+
+}
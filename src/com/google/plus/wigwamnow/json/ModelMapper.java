@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.json;
+
+import com.google.plus.wigwamnow.models.Listing;
+import com.google.plus.wigwamnow.models.Wigwam;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.JsonMappingException;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Drop-in for the {@code readValue} methods of {@link ObjectMapper} that reads the model classes
+ * with hand-written streaming {@link ModelReader}s.  Classes without a reader, and arrays of them,
+ * go through an {@link ObjectMapper}, which is only built the first time one is read, so
+ * startup does not pay for its reflection and annotation introspection.  Thread-safe.
+ */
+public class ModelMapper {
+
+    /** Readers by model class **/
+    private static final Map<Class<?>, ModelReader<?>> sReaders =
+            new HashMap<Class<?>, ModelReader<?>>();
+
+    static {
+        sReaders.put(Wigwam.class, new WigwamReader());
+        sReaders.put(Listing.class, new ListingReader());
+    }
+
+    /** Creates the parsers for {@link #decodeString} **/
+    private static final JsonFactory sFactory = new JsonFactory();
+
+    /** Creates the parsers, shared with {@link #mFallback} **/
+    private final JsonFactory mFactory = new JsonFactory();
+
+    /** Mapper for classes without a reader, or null until first needed **/
+    private ObjectMapper mFallback;
+
+    /**
+     * @see ObjectMapper#readValue(byte[], int, int, Class)
+     */
+    public <T> T readValue(byte[] data, int offset, int length, Class<T> type)
+            throws IOException {
+        if (!hasReader(type)) {
+            return getFallback().readValue(data, offset, length, type);
+        }
+        return read(mFactory.createJsonParser(data, offset, length), data, type);
+    }
+
+    /**
+     * @see ObjectMapper#readValue(File, Class)
+     */
+    public <T> T readValue(File file, Class<T> type) throws IOException {
+        if (!hasReader(type)) {
+            return getFallback().readValue(file, type);
+        }
+        return read(mFactory.createJsonParser(file), null, type);
+    }
+
+    /**
+     * @see ObjectMapper#readValue(String, Class)
+     */
+    public <T> T readValue(String content, Class<T> type) throws IOException {
+        if (!hasReader(type)) {
+            return getFallback().readValue(content, type);
+        }
+        return read(mFactory.createJsonParser(content), null, type);
+    }
+
+    /**
+     * Decode a string left in a buffer by a {@link ModelReader}.
+     *
+     * @param source the buffer.
+     * @param offset the offset of the string's opening quote.
+     * @return the string.
+     */
+    public static String decodeString(byte[] source, int offset) {
+        try {
+            JsonParser parser = sFactory.createJsonParser(source, offset, source.length - offset);
+            try {
+                parser.nextToken();
+                return parser.getText();
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            // The string was already parsed once
+            throw new IllegalStateException("Could not decode string at " + offset, e);
+        }
+    }
+
+    private static boolean hasReader(Class<?> type) {
+        Class<?> element = type.isArray() ? type.getComponentType() : type;
+        return sReaders.containsKey(element);
+    }
+
+    /**
+     * Read one value, an object or an array of objects, which must be the whole input.
+     *
+     * @param source the buffer the parser reads, or null.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T read(JsonParser parser, byte[] source, Class<T> type)
+            throws IOException {
+        try {
+            if (parser.nextToken() == null) {
+                throw new JsonMappingException("No content to map");
+            }
+            T value;
+            if (type.isArray()) {
+                value = (T) readArray(parser, source, sReaders.get(type.getComponentType()),
+                        type.getComponentType());
+            } else {
+                value = (T) sReaders.get(type).read(parser, source);
+            }
+            return value;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static Object readArray(JsonParser parser, byte[] source, ModelReader<?> reader,
+            Class<?> element) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+            throw ModelReader.mismatch(parser, "an array");
+        }
+        List<Object> values = new ArrayList<Object>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            values.add(reader.read(parser, source));
+        }
+        Object array = Array.newInstance(element, values.size());
+        for (int i = 0; i < values.size(); i++) {
+            Array.set(array, i, values.get(i));
+        }
+        return array;
+    }
+
+    private synchronized ObjectMapper getFallback() {
+        if (mFallback == null) {
+            mFallback = new ObjectMapper(mFactory);
+        }
+        return mFallback;
+    }
+
+}
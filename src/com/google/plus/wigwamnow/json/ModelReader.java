@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.json;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.JsonMappingException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads one model class from a streaming {@link JsonParser}, field by field, without the
+ * reflection and annotation introspection of {@link org.codehaus.jackson.map.ObjectMapper}.
+ * Registered with a {@link ModelMapper}.  Readers are stateless and thread-safe.
+ *
+ * @param <T> the model class.
+ */
+public abstract class ModelReader<T> {
+
+    /** A field the reader does not know, skipped **/
+    protected static final int UNKNOWN_FIELD = -1;
+
+    /**
+     * Read a value.
+     *
+     * @param parser the parser, positioned on the first token of the value.
+     * @param source the UTF-8 buffer the parser reads, for readers that leave strings in it to be
+     *        decoded later, or null if the input is not a byte array.
+     * @return the model object, or null for a JSON null.
+     * @throws IOException if the JSON is malformed or does not match the model.
+     */
+    public abstract T read(JsonParser parser, byte[] source) throws IOException;
+
+    /**
+     * Map field names to small ints for a {@code switch}.
+     *
+     * @param names the field names, numbered from 0 in order.
+     * @return the field numbers by name.
+     */
+    protected static Map<String, Integer> fields(String... names) {
+        Map<String, Integer> fields = new HashMap<String, Integer>();
+        for (int i = 0; i < names.length; i++) {
+            fields.put(names[i], i);
+        }
+        return fields;
+    }
+
+    /**
+     * @return the number of the current field, or {@link #UNKNOWN_FIELD}.
+     */
+    protected static int field(Map<String, Integer> fields, JsonParser parser)
+            throws IOException {
+        Integer field = fields.get(parser.getCurrentName());
+        return field == null ? UNKNOWN_FIELD : field;
+    }
+
+    /**
+     * Check that the parser is on the start of an object.
+     *
+     * @return false if it is on a null instead.
+     */
+    protected static boolean startObject(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return false;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw mismatch(parser, "an object");
+        }
+        return true;
+    }
+
+    /**
+     * @return the current value as an int, converting floats and numeric strings as Jackson does.
+     */
+    protected static int readInt(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getIntValue();
+            case VALUE_STRING:
+                try {
+                    return Integer.parseInt(parser.getText().trim());
+                } catch (NumberFormatException e) {
+                    throw mismatch(parser, "an int");
+                }
+            default:
+                throw mismatch(parser, "an int");
+        }
+    }
+
+    /**
+     * @return the current value as a double, converting numeric strings as Jackson does.
+     */
+    protected static double readDouble(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_STRING:
+                try {
+                    return Double.parseDouble(parser.getText().trim());
+                } catch (NumberFormatException e) {
+                    throw mismatch(parser, "a double");
+                }
+            default:
+                throw mismatch(parser, "a double");
+        }
+    }
+
+    /**
+     * @return the current value as a string, converting other scalars as Jackson does.
+     */
+    protected static String readString(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            throw mismatch(parser, "a string");
+        }
+        return parser.getText();
+    }
+
+    /**
+     * Find the current string value in the buffer, so it can be decoded later with
+     * {@link ModelMapper#decodeString} instead of now.  Relies on the UTF-8 parser leaving a
+     * string undecoded until its text is asked for, which is checked.
+     *
+     * @param source the buffer the parser reads, or null.
+     * @return the offset of the string's opening quote, or -1 if it must be read now.
+     */
+    protected static int stringOffset(JsonParser parser, byte[] source) {
+        if (source == null || parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+            return -1;
+        }
+        long offset = parser.getCurrentLocation().getCharOffset();
+        if (offset < 0 || offset >= source.length || source[(int) offset] != '"') {
+            return -1;
+        }
+        return (int) offset;
+    }
+
+    protected static JsonMappingException mismatch(JsonParser parser, String expected)
+            throws IOException {
+        return new JsonMappingException("Expected " + expected + " but found "
+                + parser.getCurrentToken(), parser.getCurrentLocation());
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.json;
+
+import com.google.plus.wigwamnow.models.Wigwam;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads a {@link Wigwam}, matching its {@code @JsonProperty} setters.  Unknown fields are skipped,
+ * as {@code @JsonIgnoreProperties(ignoreUnknown = true)} does, and null fields are left unset.
+ * When reading from a byte array, the description, street and zip are not decoded but left in
+ * the array for the wigwam to decode if they are ever shown, see {@link Wigwam#setLazyText}.
+ */
+public class WigwamReader extends ModelReader<Wigwam> {
+
+    private static final int ID = 0;
+
+    private static final int NAME = 1;
+
+    private static final int DESCRIPTION = 2;
+
+    private static final int PRICE = 3;
+
+    private static final int SRC = 4;
+
+    private static final int STREET = 5;
+
+    private static final int CITY = 6;
+
+    private static final int STATE = 7;
+
+    private static final int ZIP = 8;
+
+    private static final int LAT = 9;
+
+    private static final int LNG = 10;
+
+    /** Field numbers by JSON name, in the order of the constants above **/
+    private static final Map<String, Integer> FIELDS = fields("id", "name", "description",
+            "price", "src", "street", "city", "state", "zip", "lat", "lng");
+
+    @Override
+    public Wigwam read(JsonParser parser, byte[] source) throws IOException {
+        if (!startObject(parser)) {
+            return null;
+        }
+        Wigwam wigwam = new Wigwam();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            int field = field(FIELDS, parser);
+            if (parser.nextToken() == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (field) {
+                case ID:
+                    wigwam.setId(readInt(parser));
+                    break;
+                case NAME:
+                    wigwam.setName(readString(parser));
+                    break;
+                case DESCRIPTION:
+                    int description = stringOffset(parser, source);
+                    if (description >= 0) {
+                        wigwam.setLazyText(Wigwam.LAZY_DESCRIPTION, source, description);
+                    } else {
+                        wigwam.setDescription(readString(parser));
+                    }
+                    break;
+                case PRICE:
+                    wigwam.setPrice(readInt(parser));
+                    break;
+                case SRC:
+                    wigwam.setSrc(readString(parser));
+                    break;
+                case STREET:
+                    int street = stringOffset(parser, source);
+                    if (street >= 0) {
+                        wigwam.setLazyText(Wigwam.LAZY_STREET, source, street);
+                    } else {
+                        wigwam.setStreet(readString(parser));
+                    }
+                    break;
+                case CITY:
+                    wigwam.setCity(readString(parser));
+                    break;
+                case STATE:
+                    wigwam.setState(readString(parser));
+                    break;
+                case ZIP:
+                    int zip = stringOffset(parser, source);
+                    if (zip >= 0) {
+                        wigwam.setLazyText(Wigwam.LAZY_ZIP, source, zip);
+                    } else {
+                        wigwam.setZip(readString(parser));
+                    }
+                    break;
+                case LAT:
+                    wigwam.setLat(readDouble(parser));
+                    break;
+                case LNG:
+                    wigwam.setLng(readDouble(parser));
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return wigwam;
+    }
+
+}
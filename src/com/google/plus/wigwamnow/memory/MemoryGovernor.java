@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.memory;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Central owner of every in-memory cache in the app.  Caches register as {@link Trimmable}s, and
+ * the {@link Application} forwards {@code onTrimMemory} and {@code onLowMemory} here.  Each trim
+ * level maps to a fraction of the normal budget which is applied to every cache, and the full
+ * budgets are restored when an activity starts again.
+ */
+public class MemoryGovernor {
+
+    private static final String TAG = MemoryGovernor.class.getSimpleName();
+
+    /** Registered caches, by name, in registration order **/
+    private final Map<String, Trimmable> mTrimmables = new LinkedHashMap<String, Trimmable>();
+
+    /** The fraction of the normal budget currently applied **/
+    private float mFraction = 1f;
+
+    /** Number of started activities, to detect returning to the foreground **/
+    private int mStartedActivities;
+
+    /**
+     * Register a cache to be trimmed under memory pressure.  If the app is already trimmed, the
+     * cache is trimmed to match straight away.
+     *
+     * @param name a name for the cache, used in logs.
+     * @param trimmable the cache.
+     */
+    public synchronized void register(String name, Trimmable trimmable) {
+        mTrimmables.put(name, trimmable);
+        if (mFraction < 1f) {
+            trimmable.trimToFraction(mFraction);
+        }
+    }
+
+    /**
+     * Track activity starts so that budgets are restored in the foreground.  Requires API 14,
+     * which is also the first level that delivers {@code onTrimMemory}.
+     *
+     * @param application the application to observe.
+     */
+    @SuppressLint("NewApi")
+    public void attach(Application application) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            application.registerActivityLifecycleCallbacks(new ForegroundTracker());
+        }
+    }
+
+    /**
+     * Respond to {@code ComponentCallbacks2.onTrimMemory}.
+     *
+     * @param level the trim level passed by the system.
+     */
+    public void onTrimMemory(int level) {
+        applyFraction(fractionForLevel(level), "trim level " + level);
+    }
+
+    /**
+     * Respond to {@code ComponentCallbacks.onLowMemory} by emptying every cache.
+     */
+    public void onLowMemory() {
+        applyFraction(0f, "low memory");
+    }
+
+    /**
+     * Restore every cache to its normal budget.
+     */
+    public void restore() {
+        synchronized (this) {
+            if (mFraction >= 1f) {
+                return;
+            }
+            mFraction = 1f;
+            for (Trimmable trimmable : mTrimmables.values()) {
+                trimmable.trimToFraction(1f);
+            }
+        }
+        Log.i(TAG, "Restored cache budgets");
+    }
+
+    /**
+     * @return the total approximate size of every registered cache, in bytes.
+     */
+    public synchronized long getSizeBytes() {
+        long total = 0;
+        for (Trimmable trimmable : mTrimmables.values()) {
+            total += trimmable.getSizeBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Shrink every cache to a fraction of its budget, if that is smaller than the current one, and
+     * log how much was reclaimed.
+     *
+     * @param fraction the fraction of the normal budget to keep.
+     * @param reason the cause, for the log.
+     */
+    private void applyFraction(float fraction, String reason) {
+        StringBuilder detail = new StringBuilder();
+        long reclaimed = 0;
+        synchronized (this) {
+            if (fraction >= mFraction) {
+                // Already at or below this budget
+                return;
+            }
+            mFraction = fraction;
+            for (Map.Entry<String, Trimmable> entry : mTrimmables.entrySet()) {
+                Trimmable trimmable = entry.getValue();
+                long before = trimmable.getSizeBytes();
+                trimmable.trimToFraction(fraction);
+                long freed = before - trimmable.getSizeBytes();
+                reclaimed += freed;
+                detail.append(' ').append(entry.getKey()).append('=').append(freed);
+            }
+        }
+        Log.i(TAG, "Trimmed caches to " + Math.round(fraction * 100) + "% for " + reason
+                + ", reclaimed " + reclaimed + " bytes:" + detail);
+    }
+
+    /**
+     * Map a trim level to the fraction of the normal budget to keep.  The further down the LRU
+     * list the process is, or the more pressed the foreground is, the less is kept.
+     *
+     * @param level a {@link ComponentCallbacks2} trim level.
+     * @return the fraction to keep.
+     */
+    static float fractionForLevel(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0.1f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 0.75f;
+        }
+        return 1f;
+    }
+
+    /**
+     * Restores budgets when the first activity starts after the app was in the background.
+     */
+    @SuppressLint("NewApi")
+    private class ForegroundTracker implements Application.ActivityLifecycleCallbacks {
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+            mStartedActivities++;
+            if (mStartedActivities == 1) {
+                restore();
+            }
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            mStartedActivities--;
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+
+        @Override
+        public void onActivityResumed(Activity activity) {}
+
+        @Override
+        public void onActivityPaused(Activity activity) {}
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {}
+
+    }
+
+}
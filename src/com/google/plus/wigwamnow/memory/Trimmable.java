@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.memory;
+
+/**
+ * An in-memory structure whose footprint can be shrunk by the {@link MemoryGovernor} when the
+ * system is short of memory, and grown back when the app returns to the foreground.
+ */
+public interface Trimmable {
+
+    /**
+     * @return the approximate number of bytes currently held.
+     */
+    long getSizeBytes();
+
+    /**
+     * Set the budget to a fraction of the normal budget, evicting entries as needed.  A fraction
+     * of 1 restores the normal budget.
+     *
+     * @param fraction a value between 0 (hold nothing) and 1 (normal budget).
+     */
+    void trimToFraction(float fraction);
+
+}
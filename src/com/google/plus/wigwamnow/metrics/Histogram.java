@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.metrics;
+
+/**
+ * Fixed-size histogram of non-negative long values, bucketed by powers of two.  Recording a value
+ * never allocates, so it is safe to call from scroll and bind paths.
+ */
+public class Histogram {
+
+    /** One bucket per bit of a long: bucket i holds values in [2^(i-1), 2^i) **/
+    private static final int BUCKET_COUNT = 65;
+
+    /** Name used when the histogram is dumped **/
+    private final String mName;
+
+    /** Count of recorded values in each bucket **/
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+
+    /** Total number of recorded values **/
+    private long mCount;
+
+    /** Sum of all recorded values, for the mean **/
+    private long mSum;
+
+    /** Largest recorded value **/
+    private long mMax;
+
+    /**
+     * @param name the name to use when the histogram is dumped.
+     */
+    public Histogram(String name) {
+        mName = name;
+    }
+
+    /**
+     * Record a single value.  Negative values are recorded as zero.
+     *
+     * @param value the value to record.
+     */
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets[64 - Long.numberOfLeadingZeros(value)]++;
+        mCount++;
+        mSum += value;
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    /**
+     * @return the number of values recorded.
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the mean of all recorded values, or 0 if nothing was recorded.
+     */
+    public synchronized long getMean() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    /**
+     * @return the largest recorded value.
+     */
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Approximate a percentile.  The result is the upper bound of the bucket containing the
+     * requested rank, so it over-estimates by at most a factor of two.
+     *
+     * @param percentile a value between 0 and 100.
+     * @return the approximate value at that percentile, or 0 if nothing was recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank && mBuckets[i] > 0) {
+                long upper = (i == 0) ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                return Math.min(upper, mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Discard all recorded values.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + ": n=" + mCount + " mean=" + getMean() + " p50=" + getPercentile(50)
+                + " p90=" + getPercentile(90) + " p99=" + getPercentile(99) + " max=" + mMax;
+    }
+
+}
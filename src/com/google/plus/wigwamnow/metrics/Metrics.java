@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.metrics;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of named counters and {@link Histogram}s.  Look a metric up once and keep
+ * the reference; the lookup itself is synchronized but recording is cheap.
+ */
+public final class Metrics {
+
+    private static final String TAG = Metrics.class.getSimpleName();
+
+    /** All counters, sorted by name so that dumps are stable **/
+    private static final Map<String, AtomicLong> sCounters = new TreeMap<String, AtomicLong>();
+
+    /** All histograms, sorted by name so that dumps are stable **/
+    private static final Map<String, Histogram> sHistograms = new TreeMap<String, Histogram>();
+
+    private Metrics() {}
+
+    /**
+     * Get or create a counter.
+     *
+     * @param name the unique name of the counter.
+     * @return the counter registered under that name.
+     */
+    public static synchronized AtomicLong counter(String name) {
+        AtomicLong counter = sCounters.get(name);
+        if (counter == null) {
+            counter = new AtomicLong();
+            sCounters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Get or create a {@link Histogram}.
+     *
+     * @param name the unique name of the histogram.
+     * @return the histogram registered under that name.
+     */
+    public static synchronized Histogram histogram(String name) {
+        Histogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram(name);
+            sHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Compute a ratio between two counters as a percentage.
+     *
+     * @param numerator the name of the counter to divide.
+     * @param denominator the name of the counter to divide by.
+     * @return the percentage, or 0 if the denominator is zero.
+     */
+    public static double percentage(String numerator, String denominator) {
+        long total = counter(denominator).get();
+        return total == 0 ? 0 : (100.0 * counter(numerator).get()) / total;
+    }
+
+    /**
+     * Write every metric to the log.
+     */
+    public static synchronized void dump() {
+        for (Map.Entry<String, AtomicLong> entry : sCounters.entrySet()) {
+            Log.i(TAG, entry.getKey() + "=" + entry.getValue().get());
+        }
+        for (Histogram histogram : sHistograms.values()) {
+            Log.i(TAG, histogram.toString());
+        }
+    }
+
+}
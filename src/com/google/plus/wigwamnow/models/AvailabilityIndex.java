@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.models;
+
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Index of the days each {@link Wigwam} is available, built from its {@link Listing}s, for
+ * finding the wigwams available for a whole date range.  A wigwam's overlapping or back-to-back
+ * listings are merged into disjoint periods, so a range is available if one period covers it.
+ * <p>
+ * Periods of every wigwam are kept in a treap ordered by first day, each node also holding the
+ * latest last day below it.  A query walks only the subtrees that start on or before the range
+ * and reach past it, so it takes time proportional to the depth and the number of periods it
+ * reports rather than to the number of listings.  Listings of a wigwam can be replaced or added
+ * to at any time.  Dates are taken at day granularity, in UTC as the server sends them.
+ * Thread-safe.
+ */
+public class AvailabilityIndex {
+
+    /** No node **/
+    private static final int NIL = -1;
+
+    /** Merged periods of each wigwam, as first and last days interleaved, by wigwam id **/
+    private final SparseArray<int[]> mPeriods = new SparseArray<int[]>();
+
+    /** First day of each node's period **/
+    private int[] mStarts = new int[16];
+
+    /** Last day of each node's period **/
+    private int[] mEnds = new int[16];
+
+    /** Latest last day in each node's subtree **/
+    private int[] mMaxEnds = new int[16];
+
+    /** Wigwam id of each node, which also breaks ties between equal first days **/
+    private int[] mWigwams = new int[16];
+
+    /** Heap priority of each node **/
+    private int[] mPriorities = new int[16];
+
+    private int[] mLefts = new int[16];
+
+    private int[] mRights = new int[16];
+
+    /** Root of the treap **/
+    private int mRoot = NIL;
+
+    /** Number of nodes ever allocated **/
+    private int mNodeCount;
+
+    /** Freed nodes, chained through {@link #mRights} **/
+    private int mFree = NIL;
+
+    /** Number of periods in the treap **/
+    private int mSize;
+
+    private final Random mRandom = new Random();
+
+    /**
+     * Replace the listings of a wigwam.
+     *
+     * @param wigwamId the id of the wigwam.
+     * @param listings all of its listings, possibly overlapping.
+     */
+    public synchronized void put(int wigwamId, Listing[] listings) {
+        setPeriods(wigwamId, merge(null, listings));
+    }
+
+    /**
+     * Add listings to those already known for a wigwam.
+     *
+     * @param wigwamId the id of the wigwam.
+     * @param listings the new listings, possibly overlapping the known ones.
+     */
+    public synchronized void add(int wigwamId, Listing[] listings) {
+        setPeriods(wigwamId, merge(mPeriods.get(wigwamId), listings));
+    }
+
+    /**
+     * Forget the listings of a wigwam.
+     *
+     * @param wigwamId the id of the wigwam.
+     */
+    public synchronized void remove(int wigwamId) {
+        setPeriods(wigwamId, null);
+    }
+
+    /**
+     * @return the number of merged periods in the index.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Find the wigwams available on every day from one date to another.
+     *
+     * @param from the first day of the stay.
+     * @param to the last day of the stay.
+     * @return the ids of the available wigwams, in ascending order.
+     */
+    public synchronized int[] findAvailable(Date from, Date to) {
+        int first = IsoDates.toDay(from.getTime());
+        int last = IsoDates.toDay(to.getTime());
+        if (last < first) {
+            return new int[0];
+        }
+        int[] ids = new int[16];
+        int count = 0;
+        // Explicit stack, a treap is only balanced in expectation
+        int[] stack = new int[64];
+        int top = 0;
+        int node = mRoot;
+        while (true) {
+            if (node != NIL && mMaxEnds[node] >= last) {
+                if (top == stack.length) {
+                    stack = grow(stack);
+                }
+                stack[top++] = node;
+                node = mLefts[node];
+                continue;
+            }
+            if (top == 0) {
+                break;
+            }
+            node = stack[--top];
+            if (mStarts[node] > first) {
+                // Every node still to visit starts later still
+                break;
+            }
+            if (mEnds[node] >= last) {
+                if (count == ids.length) {
+                    ids = grow(ids);
+                }
+                // Periods of a wigwam are disjoint, so a wigwam is found at most once
+                ids[count++] = mWigwams[node];
+            }
+            node = mRights[node];
+        }
+        Arrays.sort(ids, 0, count);
+        int[] result = new int[count];
+        System.arraycopy(ids, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * @param wigwamId the id of the wigwam.
+     * @param from the first day of the stay.
+     * @param to the last day of the stay.
+     * @return true if the wigwam is available on every day from one date to the other.
+     */
+    public synchronized boolean isAvailable(int wigwamId, Date from, Date to) {
+        int[] periods = mPeriods.get(wigwamId);
+        int first = IsoDates.toDay(from.getTime());
+        int last = IsoDates.toDay(to.getTime());
+        if (periods == null || last < first) {
+            return false;
+        }
+        // Binary search for the last period starting on or before the first day
+        int low = 0;
+        int high = periods.length / 2 - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (periods[2 * mid] <= first) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found >= 0 && periods[2 * found + 1] >= last;
+    }
+
+    /**
+     * Merge listings with already merged periods.
+     *
+     * @param periods merged periods, first and last days interleaved, or null.
+     * @param listings the listings to add.
+     * @return the merged periods in order, or null if there are none.
+     */
+    private static int[] merge(int[] periods, Listing[] listings) {
+        int known = periods == null ? 0 : periods.length / 2;
+        int[] starts = new int[known + listings.length];
+        int[] ends = new int[known + listings.length];
+        int count = 0;
+        for (int i = 0; i < known; i++) {
+            starts[count] = periods[2 * i];
+            ends[count++] = periods[2 * i + 1];
+        }
+        for (Listing listing : listings) {
+            if (!listing.hasDates()) {
+                continue;
+            }
+            int start = listing.getStartDay();
+            int end = listing.getEndDay();
+            if (end >= start) {
+                starts[count] = start;
+                ends[count++] = end;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        // The union of intervals only depends on the sorted starts and the sorted ends, so they
+        // can be sorted separately
+        Arrays.sort(starts, 0, count);
+        Arrays.sort(ends, 0, count);
+        int[] merged = new int[2 * count];
+        int size = 0;
+        int i = 0;
+        while (i < count) {
+            int start = starts[i];
+            // Join intervals that overlap or meet on consecutive days
+            while (i + 1 < count && starts[i + 1] <= ends[i] + 1) {
+                i++;
+            }
+            merged[size++] = start;
+            merged[size++] = ends[i];
+            i++;
+        }
+        if (size == merged.length) {
+            return merged;
+        }
+        int[] result = new int[size];
+        System.arraycopy(merged, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Replace the periods of a wigwam in the treap.
+     */
+    private void setPeriods(int wigwamId, int[] periods) {
+        int[] old = mPeriods.get(wigwamId);
+        if (Arrays.equals(old, periods)) {
+            return;
+        }
+        if (old != null) {
+            for (int i = 0; i < old.length; i += 2) {
+                mRoot = delete(mRoot, old[i], wigwamId);
+                mSize--;
+            }
+        }
+        if (periods == null) {
+            mPeriods.delete(wigwamId);
+            return;
+        }
+        mPeriods.put(wigwamId, periods);
+        for (int i = 0; i < periods.length; i += 2) {
+            mRoot = insert(mRoot, allocate(periods[i], periods[i + 1], wigwamId));
+            mSize++;
+        }
+    }
+
+    private int insert(int root, int node) {
+        if (root == NIL) {
+            return node;
+        }
+        if (before(mStarts[node], mWigwams[node], root)) {
+            mLefts[root] = insert(mLefts[root], node);
+            if (mPriorities[mLefts[root]] > mPriorities[root]) {
+                root = rotateRight(root);
+            }
+        } else {
+            mRights[root] = insert(mRights[root], node);
+            if (mPriorities[mRights[root]] > mPriorities[root]) {
+                root = rotateLeft(root);
+            }
+        }
+        update(root);
+        return root;
+    }
+
+    private int delete(int root, int start, int wigwamId) {
+        if (root == NIL) {
+            return NIL;
+        }
+        if (mStarts[root] == start && mWigwams[root] == wigwamId) {
+            int joined = join(mLefts[root], mRights[root]);
+            release(root);
+            return joined;
+        }
+        if (before(start, wigwamId, root)) {
+            mLefts[root] = delete(mLefts[root], start, wigwamId);
+        } else {
+            mRights[root] = delete(mRights[root], start, wigwamId);
+        }
+        update(root);
+        return root;
+    }
+
+    /**
+     * Join two treaps, every node of the first ordered before every node of the second.
+     */
+    private int join(int left, int right) {
+        if (left == NIL) {
+            return right;
+        }
+        if (right == NIL) {
+            return left;
+        }
+        if (mPriorities[left] > mPriorities[right]) {
+            mRights[left] = join(mRights[left], right);
+            update(left);
+            return left;
+        }
+        mLefts[right] = join(left, mLefts[right]);
+        update(right);
+        return right;
+    }
+
+    private int rotateRight(int node) {
+        int left = mLefts[node];
+        mLefts[node] = mRights[left];
+        mRights[left] = node;
+        update(node);
+        return left;
+    }
+
+    private int rotateLeft(int node) {
+        int right = mRights[node];
+        mRights[node] = mLefts[right];
+        mLefts[right] = node;
+        update(node);
+        return right;
+    }
+
+    /**
+     * @return true if a period is ordered before a node.
+     */
+    private boolean before(int start, int wigwamId, int node) {
+        return start < mStarts[node] || (start == mStarts[node] && wigwamId < mWigwams[node]);
+    }
+
+    /**
+     * Recompute the latest last day below a node from its children.
+     */
+    private void update(int node) {
+        int maxEnd = mEnds[node];
+        int left = mLefts[node];
+        if (left != NIL && mMaxEnds[left] > maxEnd) {
+            maxEnd = mMaxEnds[left];
+        }
+        int right = mRights[node];
+        if (right != NIL && mMaxEnds[right] > maxEnd) {
+            maxEnd = mMaxEnds[right];
+        }
+        mMaxEnds[node] = maxEnd;
+    }
+
+    private int allocate(int start, int end, int wigwamId) {
+        int node;
+        if (mFree != NIL) {
+            node = mFree;
+            mFree = mRights[node];
+        } else {
+            if (mNodeCount == mStarts.length) {
+                mStarts = grow(mStarts);
+                mEnds = grow(mEnds);
+                mMaxEnds = grow(mMaxEnds);
+                mWigwams = grow(mWigwams);
+                mPriorities = grow(mPriorities);
+                mLefts = grow(mLefts);
+                mRights = grow(mRights);
+            }
+            node = mNodeCount++;
+        }
+        mStarts[node] = start;
+        mEnds[node] = end;
+        mMaxEnds[node] = end;
+        mWigwams[node] = wigwamId;
+        mPriorities[node] = mRandom.nextInt();
+        mLefts[node] = NIL;
+        mRights[node] = NIL;
+        return node;
+    }
+
+    private void release(int node) {
+        mRights[node] = mFree;
+        mFree = node;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+}
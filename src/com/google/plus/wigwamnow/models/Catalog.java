@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.models;
+
+import com.google.plus.wigwamnow.metrics.Histogram;
+import com.google.plus.wigwamnow.metrics.Metrics;
+
+import android.os.SystemClock;
+
+/**
+ * One version of the list of all {@link Wigwam}s, with the structures built from it for the
+ * selection list: a {@link WigwamTable}, and a {@link WigwamSpatialIndex} and a
+ * {@link WigwamFilterEngine} over it.  Everything is built in the constructor, so a catalog
+ * should be created off the main thread, right after parsing.  The parsed wigwams are not kept,
+ * see {@link WigwamTable#getWigwam}.  Immutable.
+ */
+public class Catalog {
+
+    /** Time to build the table and indexes of a catalog **/
+    private static final Histogram sBuildTime = Metrics.histogram("catalog_index_ms");
+
+    /** The wigwams in columns **/
+    private final WigwamTable mTable;
+
+    /** Index over the locations of {@link #mTable} **/
+    private final WigwamSpatialIndex mSpatialIndex;
+
+    /** Filters and orders of {@link #mTable} **/
+    private final WigwamFilterEngine mFilterEngine;
+
+    /**
+     * @param wigwams the wigwams, which need not be kept afterwards.
+     */
+    public Catalog(Wigwam[] wigwams) {
+        long start = SystemClock.uptimeMillis();
+        mTable = new WigwamTable(wigwams);
+        mSpatialIndex = new WigwamSpatialIndex(mTable);
+        mFilterEngine = new WigwamFilterEngine(mTable, mSpatialIndex);
+        sBuildTime.record(SystemClock.uptimeMillis() - start);
+    }
+
+    public WigwamTable getTable() {
+        return mTable;
+    }
+
+    public WigwamSpatialIndex getSpatialIndex() {
+        return mSpatialIndex;
+    }
+
+    public WigwamFilterEngine getFilterEngine() {
+        return mFilterEngine;
+    }
+
+}
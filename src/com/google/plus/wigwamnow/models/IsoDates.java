@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.models;
+
+/**
+ * Parsing of ISO 8601 dates as sent by the server, straight from characters to a count of days or
+ * milliseconds, without the {@link java.util.Calendar}, {@link java.util.Date} and
+ * {@link java.text.DateFormat} objects of general-purpose parsing.  Accepts a date
+ * ({@code 2013-06-01}), optionally followed by a time ({@code T10:30}, {@code T10:30:15} or
+ * {@code T10:30:15.250}) and a zone ({@code Z}, {@code +02:00}, {@code +0200} or {@code +02}).
+ * A date or time without a zone is taken as UTC, as Jackson does.
+ */
+public final class IsoDates {
+
+    /** Milliseconds in a day **/
+    public static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    private IsoDates() {}
+
+    /**
+     * @param text the characters holding the date.
+     * @param offset the index of the first character.
+     * @param length the number of characters.
+     * @return the instant, in milliseconds since the epoch.
+     * @throws IllegalArgumentException if the characters are not an ISO 8601 date.
+     */
+    public static long parseMillis(char[] text, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        int year = digits(text, i, 4, end);
+        i = expect(text, i + 4, '-', end);
+        int month = digits(text, i, 2, end);
+        i = expect(text, i + 2, '-', end);
+        int day = digits(text, i, 2, end);
+        i += 2;
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            throw invalid(text, offset, length);
+        }
+        long millis = daysFromCivil(year, month, day) * DAY_MS;
+        if (i == end) {
+            return millis;
+        }
+
+        if (text[i] == 'T' || text[i] == 't' || text[i] == ' ') {
+            int hour = digits(text, i + 1, 2, end);
+            i = expect(text, i + 3, ':', end);
+            int minute = digits(text, i, 2, end);
+            i += 2;
+            int second = 0;
+            if (i < end && text[i] == ':') {
+                second = digits(text, i + 1, 2, end);
+                i += 3;
+            }
+            int fraction = 0;
+            if (i < end && (text[i] == '.' || text[i] == ',')) {
+                // Milliseconds from the first three digits, the rest are dropped
+                i++;
+                int start = i;
+                int scale = 100;
+                while (i < end && isDigit(text[i])) {
+                    fraction += (text[i] - '0') * scale;
+                    scale /= 10;
+                    i++;
+                }
+                if (i == start) {
+                    throw invalid(text, offset, length);
+                }
+            }
+            if (hour > 24 || minute > 59 || second > 60) {
+                throw invalid(text, offset, length);
+            }
+            millis += ((hour * 60L + minute) * 60 + second) * 1000 + fraction;
+        }
+        if (i == end) {
+            return millis;
+        }
+
+        char zone = text[i];
+        if ((zone == 'Z' || zone == 'z') && i + 1 == end) {
+            return millis;
+        }
+        if (zone != '+' && zone != '-') {
+            throw invalid(text, offset, length);
+        }
+        int hours = digits(text, i + 1, 2, end);
+        i += 3;
+        int minutes = 0;
+        if (i < end) {
+            if (text[i] == ':') {
+                i++;
+            }
+            minutes = digits(text, i, 2, end);
+            i += 2;
+        }
+        if (i != end || hours > 23 || minutes > 59) {
+            throw invalid(text, offset, length);
+        }
+        long zoneMillis = (hours * 60L + minutes) * 60 * 1000;
+        // A zone ahead of UTC means the instant is earlier
+        return zone == '+' ? millis - zoneMillis : millis + zoneMillis;
+    }
+
+    /**
+     * @see #parseMillis(char[], int, int)
+     */
+    public static long parseMillis(String text) {
+        return parseMillis(text.toCharArray(), 0, text.length());
+    }
+
+    /**
+     * @param millis an instant, in milliseconds since the epoch.
+     * @return the day of the instant in UTC, counted from the epoch.
+     */
+    public static int toDay(long millis) {
+        // Round towards negative infinity for instants before the epoch
+        return (int) (millis >= 0 ? millis / DAY_MS : (millis - DAY_MS + 1) / DAY_MS);
+    }
+
+    /**
+     * @param day a day counted from the epoch.
+     * @return the start of the day in UTC, in milliseconds since the epoch.
+     */
+    public static long toMillis(int day) {
+        return day * DAY_MS;
+    }
+
+    /**
+     * Count the days from the epoch to a date of the proleptic Gregorian calendar, from
+     * Howard Hinnant's {@code days_from_civil}.
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        if (month <= 2) {
+            year--;
+        }
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+            return leap ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    /**
+     * @return the number formed by a run of digits.
+     */
+    private static int digits(char[] text, int start, int count, int end) {
+        if (start + count > end) {
+            throw new IllegalArgumentException("Truncated date");
+        }
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            if (!isDigit(text[i])) {
+                throw new IllegalArgumentException("Expected a digit in date");
+            }
+            value = value * 10 + (text[i] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @return the index after a separator.
+     */
+    private static int expect(char[] text, int index, char separator, int end) {
+        if (index >= end || text[index] != separator) {
+            throw new IllegalArgumentException("Expected '" + separator + "' in date");
+        }
+        return index + 1;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static IllegalArgumentException invalid(char[] text, int offset, int length) {
+        return new IllegalArgumentException("Invalid date: " + new String(text, offset, length));
+    }
+
+}
@@ -16,54 +16,105 @@
 
 package com.google.plus.wigwamnow.models;
 
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.DeserializationContext;
+import org.codehaus.jackson.map.JsonDeserializer;
+import org.codehaus.jackson.map.annotate.JsonDeserialize;
 
+import java.io.IOException;
 import java.util.Date;
 
 /**
  * POJO to represent a listing for a {@link Wigwam}. Models the listing object on the server.
+ * Dates are stored as days since the epoch in UTC, parsed with {@link IsoDates} rather than as
+ * {@link Date}s.
  *
  * @author samstern@google.com (Sam Stern)
  */
 public class Listing {
 
-    /** The Date when the listing starts **/
-    @JsonProperty("start_date")
-    private Date mStartDate;
+    /** Value of a date the server did not send **/
+    public static final int NO_DAY = Integer.MIN_VALUE;
+
+    /** The day when the listing starts **/
+    private int mStartDay = NO_DAY;
     
-    /** The Date when the listing ends **/
-    @JsonProperty("end_date")
-    private Date mEndDate;
+    /** The day when the listing ends, inclusive **/
+    private int mEndDay = NO_DAY;
 
     public Listing() {}
 
     /**
-     * @return the Date when the listing starts
+     * @return the day when the listing starts, or {@link #NO_DAY}.
      */
-    public Date getStartDate() {
-        return mStartDate;
+    public int getStartDay() {
+        return mStartDay;
     }
 
     /**
-     * @param startDate the Date when the listing starts
+     * @param startDay the day when the listing starts, counted from the epoch.
      */
-    public void setStartDate(Date startDate) {
-        mStartDate = startDate;
+    @JsonProperty("start_date")
+    @JsonDeserialize(using = DayDeserializer.class)
+    public void setStartDay(int startDay) {
+        mStartDay = startDay;
     }
 
     /**
-     * @return the Date when the listing ends
+     * @return the day when the listing ends, or {@link #NO_DAY}.
      */
-    public Date getEndDate() {
-        return mEndDate;
+    public int getEndDay() {
+        return mEndDay;
     }
 
     /**
-     * @param endDate the Date when the listing ends
+     * @param endDay the day when the listing ends, counted from the epoch.
      */
-    public void setEndDate(Date endDate) {
-        mEndDate = endDate;
+    @JsonProperty("end_date")
+    @JsonDeserialize(using = DayDeserializer.class)
+    public void setEndDay(int endDay) {
+        mEndDay = endDay;
     }
 
-}
+    /**
+     * @return true if the server sent both dates.
+     */
+    public boolean hasDates() {
+        return mStartDay != NO_DAY && mEndDay != NO_DAY;
+    }
 
+    /**
+     * Reads a date sent as an ISO 8601 string or as milliseconds since the epoch, as Jackson
+     * reads {@link Date}s, into a day.  Strings are parsed from the parser's buffer, without
+     * copying them out.
+     */
+    public static class DayDeserializer extends JsonDeserializer<Integer> {
+
+        @Override
+        public Integer deserialize(JsonParser parser, DeserializationContext context)
+                throws IOException {
+            JsonToken token = parser.getCurrentToken();
+            if (token == JsonToken.VALUE_NUMBER_INT) {
+                return IsoDates.toDay(parser.getLongValue());
+            }
+            if (token == JsonToken.VALUE_STRING) {
+                try {
+                    return IsoDates.toDay(IsoDates.parseMillis(parser.getTextCharacters(),
+                            parser.getTextOffset(), parser.getTextLength()));
+                } catch (IllegalArgumentException e) {
+                    throw context.weirdStringException(Date.class, e.getMessage());
+                }
+            }
+            throw context.mappingException(Date.class);
+        }
+
+        @Override
+        public Integer getNullValue() {
+            return NO_DAY;
+        }
+
+    }
+
+}
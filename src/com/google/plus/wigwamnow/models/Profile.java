@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.models;
+
+import com.google.plus.wigwamnow.social.SocialProviderConstants;
+
+/**
+ * The signed-in user's identity as shown in the selection header, from either provider.
+ */
+public class Profile {
+
+    /** The {@link SocialProviderConstants} value of the provider **/
+    private final int mProvider;
+
+    /** The user's id with the provider **/
+    private final String mId;
+
+    /** The user's display name **/
+    private final String mName;
+
+    /** URL of the user's picture, or null to derive it from the id **/
+    private final String mImageUrl;
+
+    /**
+     * @param provider the {@link SocialProviderConstants} value of the provider.
+     * @param id the user's id with the provider.
+     * @param name the user's display name.
+     * @param imageUrl the URL of the user's picture, or null to derive it from the id.
+     */
+    public Profile(int provider, String id, String name, String imageUrl) {
+        mProvider = provider;
+        mId = id;
+        mName = name;
+        mImageUrl = imageUrl;
+    }
+
+    public int getProvider() {
+        return mProvider;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getImageUrl() {
+        return mImageUrl;
+    }
+
+}
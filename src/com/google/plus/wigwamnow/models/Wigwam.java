@@ -16,6 +16,8 @@
 
 package com.google.plus.wigwamnow.models;
 
+import com.google.plus.wigwamnow.json.ModelMapper;
+
 import android.os.Parcel;
 import android.os.Parcelable;
 
@@ -23,86 +25,108 @@ import org.codehaus.jackson.annotate.JsonIgnoreProperties;
 import org.codehaus.jackson.annotate.JsonProperty;
 
 /**
- * Wigwam model object. POJO modeling Wigwam object on the server.
+ * Wigwam model object. POJO modeling Wigwam object on the server.  Numeric properties are stored
+ * as primitives, the server may omit any of them so each has a presence flag, see
+ * {@link #hasId}, {@link #hasPrice} and {@link #hasLocation}.
+ * <p>
+ * The description, street and zip of a wigwam read from a catalog are not decoded while parsing
+ * but left in the catalog's JSON, and decoded on first access, as most are never shown.
  *
  * @author samstern@google.com (Sam Stern)
  */
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Wigwam implements Parcelable {
 
+    /** Presence flag for {@link #mId} **/
+    private static final int HAS_ID = 1;
+
+    /** Presence flag for {@link #mPrice} **/
+    private static final int HAS_PRICE = 1 << 1;
+
+    /** Presence flag for {@link #mLat} **/
+    private static final int HAS_LAT = 1 << 2;
+
+    /** Presence flag for {@link #mLng} **/
+    private static final int HAS_LNG = 1 << 3;
+
+    /** Lazy text field for {@link #getDescription} **/
+    public static final int LAZY_DESCRIPTION = 0;
+
+    /** Lazy text field for {@link #getStreet} **/
+    public static final int LAZY_STREET = 1;
+
+    /** Lazy text field for {@link #getZip} **/
+    public static final int LAZY_ZIP = 2;
+
+    /** Offset of a text field that is not lazy **/
+    private static final int NOT_LAZY = -1;
+
+    /** Which of the numeric properties were set, a combination of the HAS_ flags **/
+    private int mPresent;
+
+    /** JSON holding the undecoded text fields, or null **/
+    private byte[] mSource;
+
+    /** Offset in {@link #mSource} of the undecoded description, or {@link #NOT_LAZY} **/
+    private int mDescriptionOffset = NOT_LAZY;
+
+    /** Offset in {@link #mSource} of the undecoded street, or {@link #NOT_LAZY} **/
+    private int mStreetOffset = NOT_LAZY;
+
+    /** Offset in {@link #mSource} of the undecoded zip, or {@link #NOT_LAZY} **/
+    private int mZipOffset = NOT_LAZY;
+
     /** The wigwam's unique id **/
-    @JsonProperty("id")
-    private Integer mId;
+    private int mId;
     
     /** The wigwam's English name **/
-    @JsonProperty("name")
     private String mName;
     
     /** A brief description of the wigwam **/
-    @JsonProperty("description")
     private String mDescription;
     
     /** The wigwam's price, in dollars per night **/
-    @JsonProperty("price")
-    private Integer mPrice;
+    private int mPrice;
     
     /** The link to a picture of the wigwam **/
-    @JsonProperty("src")
     private String mSrc;
     
     /** The street address of the wigwam, ex: 123 Fake Street **/
-    @JsonProperty("street")
     private String mStreet;
     
     /** The city in which the wigwam is located **/
-    @JsonProperty("city")
     private String mCity;
     
     /** The state in which the wigwam is located **/
-    @JsonProperty("state")
     private String mState;
     
     /** The zip code for the wigwam's location **/
-    @JsonProperty("zip")
     private String mZip;
     
     /** The wigwam's latitude coordinate **/
-    @JsonProperty("lat")
-    private Double mLat;
+    private double mLat;
     
     /** The wigwam's longitude coordinate **/
-    @JsonProperty("lng")
-    private Double mLng;
+    private double mLng;
     
-    /** Restore a {@link Wigwam} from a {@link Parcel} **/
+    /** Restore a {@link Wigwam} from a {@link Parcel}, in the order of {@link #writeToParcel} **/
     public static Parcelable.Creator<Wigwam> CREATOR = new Parcelable.Creator<Wigwam>() {
 
         @Override
         public Wigwam createFromParcel(Parcel parcel) {
             Wigwam wigwam = new Wigwam();
-            // Read string properties
-            String[] stringProps = new String[7];
-            parcel.readStringArray(stringProps);
-            wigwam.mName = stringProps[0];
-            wigwam.mDescription = stringProps[1];
-            wigwam.mSrc = stringProps[2];
-            wigwam.mStreet = stringProps[3];
-            wigwam.mCity = stringProps[4];
-            wigwam.mState = stringProps[5];
-            wigwam.mZip = stringProps[6];
-            
-            // Read int properties
-            int[] intProps = new int[2];
-            parcel.readIntArray(intProps); 
-            wigwam.mId = intProps[0];
-            wigwam.mPrice = intProps[1];
-            
-            // Read double properties
-            double[] doubleProps = new double[2];
-            parcel.readDoubleArray(doubleProps);
-            wigwam.mLat = doubleProps[0];
-            wigwam.mLng = doubleProps[1];
-            
+            wigwam.mPresent = parcel.readInt();
+            wigwam.mId = parcel.readInt();
+            wigwam.mPrice = parcel.readInt();
+            wigwam.mLat = parcel.readDouble();
+            wigwam.mLng = parcel.readDouble();
+            wigwam.mName = parcel.readString();
+            wigwam.mDescription = parcel.readString();
+            wigwam.mSrc = parcel.readString();
+            wigwam.mStreet = parcel.readString();
+            wigwam.mCity = parcel.readString();
+            wigwam.mState = parcel.readString();
+            wigwam.mZip = parcel.readString();
             return wigwam;
         }
 
@@ -125,36 +149,67 @@ public class Wigwam implements Parcelable {
     /**
      * @param name the name to set
      */
+    @JsonProperty("name")
     public void setName(String name) {
         mName = name;
     }
 
     /**
-     * @return the description
+     * @return the description, decoded now if this is the first access
      */
     public String getDescription() {
-        return mDescription;
+        String description = mDescription;
+        if (description == null && mDescriptionOffset != NOT_LAZY) {
+            description = ModelMapper.decodeString(mSource, mDescriptionOffset);
+            mDescription = description;
+        }
+        return description;
+    }
+
+    /**
+     * Like {@link #getDescription}, but does not keep the description if it has to be decoded,
+     * for passes over a whole catalog such as indexing.
+     *
+     * @return the description
+     */
+    public String readDescription() {
+        String description = mDescription;
+        if (description == null && mDescriptionOffset != NOT_LAZY) {
+            return ModelMapper.decodeString(mSource, mDescriptionOffset);
+        }
+        return description;
     }
 
     /**
      * @param description the description to set
      */
+    @JsonProperty("description")
     public void setDescription(String description) {
         mDescription = description;
+        mDescriptionOffset = NOT_LAZY;
     }
 
     /**
-     * @return the price
+     * @return true if the price is known
      */
-    public Integer getPrice() {
+    public boolean hasPrice() {
+        return (mPresent & HAS_PRICE) != 0;
+    }
+
+    /**
+     * @return the price, or 0 if it is not known
+     */
+    public int getPrice() {
         return mPrice;
     }
 
     /**
      * @param price the price to set
      */
-    public void setPrice(Integer price) {
+    @JsonProperty("price")
+    public void setPrice(int price) {
         mPrice = price;
+        mPresent |= HAS_PRICE;
     }
 
     /**
@@ -167,36 +222,66 @@ public class Wigwam implements Parcelable {
     /**
      * @param src the src to set
      */
+    @JsonProperty("src")
     public void setSrc(String src) {
         mSrc = src;
     }
 
     /**
-     * @return the id
+     * @return true if the id is known
      */
-    public Integer getId() {
+    public boolean hasId() {
+        return (mPresent & HAS_ID) != 0;
+    }
+
+    /**
+     * @return the id, or 0 if it is not known
+     */
+    public int getId() {
         return mId;
     }
 
     /**
      * @param id the id to set
      */
-    public void setId(Integer id) {
+    @JsonProperty("id")
+    public void setId(int id) {
         mId = id;
+        mPresent |= HAS_ID;
     }
 
     /**
-     * @return the street
+     * @return the street, decoded now if this is the first access
      */
     public String getStreet() {
-        return mStreet;
+        String street = mStreet;
+        if (street == null && mStreetOffset != NOT_LAZY) {
+            street = ModelMapper.decodeString(mSource, mStreetOffset);
+            mStreet = street;
+        }
+        return street;
+    }
+
+    /**
+     * Like {@link #getStreet}, but does not keep the street if it has to be decoded.
+     *
+     * @return the street
+     */
+    public String readStreet() {
+        String street = mStreet;
+        if (street == null && mStreetOffset != NOT_LAZY) {
+            return ModelMapper.decodeString(mSource, mStreetOffset);
+        }
+        return street;
     }
 
     /**
      * @param street the street to set
      */
+    @JsonProperty("street")
     public void setStreet(String street) {
         mStreet = street;
+        mStreetOffset = NOT_LAZY;
     }
 
     /**
@@ -209,6 +294,7 @@ public class Wigwam implements Parcelable {
     /**
      * @param city the city to set
      */
+    @JsonProperty("city")
     public void setCity(String city) {
         mCity = city;
     }
@@ -223,50 +309,147 @@ public class Wigwam implements Parcelable {
     /**
      * @param state the state to set
      */
+    @JsonProperty("state")
     public void setState(String state) {
         mState = state;
     }
 
     /**
-     * @return the zip
+     * @return the zip, decoded now if this is the first access
      */
     public String getZip() {
-        return mZip;
+        String zip = mZip;
+        if (zip == null && mZipOffset != NOT_LAZY) {
+            zip = ModelMapper.decodeString(mSource, mZipOffset);
+            mZip = zip;
+        }
+        return zip;
+    }
+
+    /**
+     * Like {@link #getZip}, but does not keep the zip if it has to be decoded.
+     *
+     * @return the zip
+     */
+    public String readZip() {
+        String zip = mZip;
+        if (zip == null && mZipOffset != NOT_LAZY) {
+            return ModelMapper.decodeString(mSource, mZipOffset);
+        }
+        return zip;
     }
 
     /**
      * @param zip the zip to set
      */
+    @JsonProperty("zip")
     public void setZip(String zip) {
         mZip = zip;
+        mZipOffset = NOT_LAZY;
+    }
+
+    /**
+     * Leave a text field in the JSON it was read from, to be decoded on first access.
+     *
+     * @param field {@link #LAZY_DESCRIPTION}, {@link #LAZY_STREET} or {@link #LAZY_ZIP}.
+     * @param source the JSON, which must not be modified afterwards.
+     * @param offset the offset of the opening quote of the field's string.
+     */
+    public void setLazyText(int field, byte[] source, int offset) {
+        mSource = source;
+        switch (field) {
+            case LAZY_DESCRIPTION:
+                mDescription = null;
+                mDescriptionOffset = offset;
+                break;
+            case LAZY_STREET:
+                mStreet = null;
+                mStreetOffset = offset;
+                break;
+            case LAZY_ZIP:
+                mZip = null;
+                mZipOffset = offset;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown lazy field " + field);
+        }
+    }
+
+    /**
+     * Decode every lazy text field now and let go of the JSON, for a wigwam that is kept longer
+     * than the catalog it was read from.
+     */
+    public void decodeText() {
+        getDescription();
+        getStreet();
+        getZip();
+        mSource = null;
+        mDescriptionOffset = NOT_LAZY;
+        mStreetOffset = NOT_LAZY;
+        mZipOffset = NOT_LAZY;
     }
 
     /**
-     * @return the lat
+     * @return the JSON holding the undecoded text fields, or null
      */
-    public Double getLat() {
+    byte[] getSource() {
+        return mSource;
+    }
+
+    /**
+     * @param field {@link #LAZY_DESCRIPTION}, {@link #LAZY_STREET} or {@link #LAZY_ZIP}.
+     * @return the offset in {@link #getSource} of the undecoded field, or -1 if it is not lazy
+     */
+    int getLazyOffset(int field) {
+        switch (field) {
+            case LAZY_DESCRIPTION:
+                return mDescription == null ? mDescriptionOffset : NOT_LAZY;
+            case LAZY_STREET:
+                return mStreet == null ? mStreetOffset : NOT_LAZY;
+            case LAZY_ZIP:
+                return mZip == null ? mZipOffset : NOT_LAZY;
+            default:
+                throw new IllegalArgumentException("Unknown lazy field " + field);
+        }
+    }
+
+    /**
+     * @return true if both the latitude and longitude are known
+     */
+    public boolean hasLocation() {
+        return (mPresent & (HAS_LAT | HAS_LNG)) == (HAS_LAT | HAS_LNG);
+    }
+
+    /**
+     * @return the lat, or 0 if it is not known
+     */
+    public double getLat() {
         return mLat;
     }
 
     /**
      * @param lat the lat to set
      */
-    public void setLat(Double lat) {
+    @JsonProperty("lat")
+    public void setLat(double lat) {
         mLat = lat;
+        mPresent |= HAS_LAT;
     }
 
     /**
-     * @return the lng
+     * @return the lng, or 0 if it is not known
      */
-    public Double getLng() {
+    public double getLng() {
         return mLng;
     }
 
     /**
      * @param lng the lng to set
      */
-    public void setLng(Double lng) {
+    @JsonProperty("lng")
+    public void setLng(double lng) {
         mLng = lng;
+        mPresent |= HAS_LNG;
     }
 
     @Override
@@ -274,17 +457,21 @@ public class Wigwam implements Parcelable {
         return 0;
     }
 
-
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        // Write all string properties
-        dest.writeStringArray(new String[] { this.mName, this.mDescription, this.mSrc,
-                this.mStreet, this.mCity, this.mState, this.mZip });
-        // Write all the int properties
-        dest.writeIntArray(new int[] { this.mId, this.mPrice });
-        // Write all the double properties
-        dest.writeDoubleArray(new double[] { this.mLat, this.mLng });
+        // Primitives first, then the strings, which may be null
+        dest.writeInt(mPresent);
+        dest.writeInt(mId);
+        dest.writeInt(mPrice);
+        dest.writeDouble(mLat);
+        dest.writeDouble(mLng);
+        dest.writeString(mName);
+        dest.writeString(getDescription());
+        dest.writeString(mSrc);
+        dest.writeString(getStreet());
+        dest.writeString(mCity);
+        dest.writeString(mState);
+        dest.writeString(getZip());
     }
 
 }
-
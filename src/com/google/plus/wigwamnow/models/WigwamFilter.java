@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.models;
+
+/**
+ * Criteria for listing the {@link Wigwam}s of a catalog: which ones to show and in what order.
+ * Applied by a {@link WigwamFilterEngine}.  Every criterion is off by default.
+ */
+public class WigwamFilter {
+
+    /**
+     * Orders of the listed wigwams.
+     */
+    public enum Sort {
+
+        /** Catalog order, or best match first for search results **/
+        DEFAULT,
+
+        /** Cheapest first, wigwams without a price last **/
+        PRICE,
+
+        /** By name ignoring case, wigwams without a name last **/
+        NAME,
+
+        /** Nearest the origin first, wigwams without a location last **/
+        DISTANCE
+
+    }
+
+    /** Value of a price bound that is not set **/
+    public static final int NO_PRICE_LIMIT = -1;
+
+    /** The order **/
+    private Sort mSort = Sort.DEFAULT;
+
+    /** Latitude to sort by distance from **/
+    private double mOriginLat;
+
+    /** Longitude to sort by distance from **/
+    private double mOriginLng;
+
+    /** Lowest price shown, or {@link #NO_PRICE_LIMIT} **/
+    private int mMinPrice = NO_PRICE_LIMIT;
+
+    /** Highest price shown, or {@link #NO_PRICE_LIMIT} **/
+    private int mMaxPrice = NO_PRICE_LIMIT;
+
+    /** City shown, ignoring case, or null for any **/
+    private String mCity;
+
+    /** State shown, ignoring case, or null for any **/
+    private String mState;
+
+    public Sort getSort() {
+        return mSort;
+    }
+
+    public void setSort(Sort sort) {
+        mSort = sort;
+    }
+
+    public double getOriginLat() {
+        return mOriginLat;
+    }
+
+    public double getOriginLng() {
+        return mOriginLng;
+    }
+
+    /**
+     * @param lat the latitude to sort by distance from.
+     * @param lng the longitude to sort by distance from.
+     */
+    public void setOrigin(double lat, double lng) {
+        mOriginLat = lat;
+        mOriginLng = lng;
+    }
+
+    public int getMinPrice() {
+        return mMinPrice;
+    }
+
+    /**
+     * @param minPrice the lowest price shown, or {@link #NO_PRICE_LIMIT}.
+     */
+    public void setMinPrice(int minPrice) {
+        mMinPrice = minPrice;
+    }
+
+    public int getMaxPrice() {
+        return mMaxPrice;
+    }
+
+    /**
+     * @param maxPrice the highest price shown, or {@link #NO_PRICE_LIMIT}.
+     */
+    public void setMaxPrice(int maxPrice) {
+        mMaxPrice = maxPrice;
+    }
+
+    public String getCity() {
+        return mCity;
+    }
+
+    /**
+     * @param city the city shown, ignoring case, or null for any.
+     */
+    public void setCity(String city) {
+        mCity = city;
+    }
+
+    public String getState() {
+        return mState;
+    }
+
+    /**
+     * @param state the state shown, ignoring case, or null for any.
+     */
+    public void setState(String state) {
+        mState = state;
+    }
+
+    /**
+     * @return true if the price is limited either way.
+     */
+    public boolean hasPriceRange() {
+        return mMinPrice != NO_PRICE_LIMIT || mMaxPrice != NO_PRICE_LIMIT;
+    }
+
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.models;
+
+import java.util.Arrays;
+
+/**
+ * Applies {@link WigwamFilter}s to the rows of a {@link WigwamTable} without sorting on each
+ * change of criteria.  The orders by price and by name are computed once, and the order by
+ * distance once per origin.  Each criterion is evaluated to a bitset of the rows it allows, from
+ * the rows grouped by city and by state or from the price order, and cached until that criterion
+ * changes; the bitsets are intersected and the chosen order is walked once, keeping the rows
+ * left.  A change of one criterion therefore costs time proportional to the rows it allows plus
+ * one pass over the table, with no sort.  Thread-safe.
+ */
+public class WigwamFilterEngine {
+
+    /** The table filtered **/
+    private final WigwamTable mTable;
+
+    /** Index for ordering by distance **/
+    private final WigwamSpatialIndex mSpatialIndex;
+
+    /** Number of longs in a bitset of the rows **/
+    private final int mBitsetLength;
+
+    /** Rows ordered by price, rows without a price last **/
+    private final int[] mPriceOrder;
+
+    /** Price of each row of {@link #mPriceOrder} that has one, in ascending order **/
+    private final int[] mSortedPrices;
+
+    /** Rows ordered by name, rows without a name last **/
+    private final int[] mNameOrder;
+
+    /** Start in {@link #mCityRows} of the rows of each dictionary string, plus an end **/
+    private final int[] mCityStarts;
+
+    /** Rows grouped by city, each group in table order, then unused entries **/
+    private final int[] mCityRows;
+
+    /** Start in {@link #mStateRows} of the rows of each dictionary string, plus an end **/
+    private final int[] mStateStarts;
+
+    /** Rows grouped by state, each group in table order, then unused entries **/
+    private final int[] mStateRows;
+
+    /** City of {@link #mCityBits} **/
+    private String mCachedCity;
+
+    /** Rows in {@link #mCachedCity} **/
+    private long[] mCityBits;
+
+    /** State of {@link #mStateBits} **/
+    private String mCachedState;
+
+    /** Rows in {@link #mCachedState} **/
+    private long[] mStateBits;
+
+    /** Price range of {@link #mPriceBits} **/
+    private int mCachedMinPrice;
+
+    private int mCachedMaxPrice;
+
+    /** Rows in the cached price range, or null **/
+    private long[] mPriceBits;
+
+    /** Origin of {@link #mDistanceOrder} **/
+    private double mCachedLat;
+
+    private double mCachedLng;
+
+    /** Rows ordered by distance from the cached origin, or null **/
+    private int[] mDistanceOrder;
+
+    /**
+     * Compute the orders and groups of a table.  Takes time proportional to sorting the table, so
+     * should be called off the main thread.
+     *
+     * @param table the table.
+     * @param spatialIndex an index over the table, for ordering by distance.
+     */
+    public WigwamFilterEngine(WigwamTable table, WigwamSpatialIndex spatialIndex) {
+        mTable = table;
+        mSpatialIndex = spatialIndex;
+        int size = table.size();
+        mBitsetLength = (size + 63) >>> 6;
+
+        // Sort prices and rows together, packed into longs to avoid boxing
+        int priced = 0;
+        for (int row = 0; row < size; row++) {
+            if (table.hasPrice(row)) {
+                priced++;
+            }
+        }
+        long[] keys = new long[priced];
+        int next = 0;
+        for (int row = 0; row < size; row++) {
+            if (table.hasPrice(row)) {
+                keys[next++] = ((long) table.getPrice(row) << 32) | row;
+            }
+        }
+        Arrays.sort(keys);
+        mPriceOrder = new int[size];
+        mSortedPrices = new int[priced];
+        for (int i = 0; i < priced; i++) {
+            mPriceOrder[i] = (int) keys[i];
+            mSortedPrices[i] = (int) (keys[i] >> 32);
+        }
+        for (int row = 0; row < size; row++) {
+            if (!table.hasPrice(row)) {
+                mPriceOrder[next++] = row;
+            }
+        }
+
+        mNameOrder = sortByName(table);
+
+        int strings = table.getDictionarySize();
+        mCityStarts = new int[strings + 1];
+        mCityRows = new int[size];
+        group(table, true, mCityStarts, mCityRows);
+        mStateStarts = new int[strings + 1];
+        mStateRows = new int[size];
+        group(table, false, mStateStarts, mStateRows);
+    }
+
+    public WigwamTable getTable() {
+        return mTable;
+    }
+
+    /**
+     * List the rows allowed by a filter, in the filter's order.
+     *
+     * @param filter the criteria.
+     * @param matches rows to restrict the list to, best first, such as search results, or null
+     *        for every row.  {@link WigwamFilter.Sort#DEFAULT} keeps this order.
+     * @return the rows to show at each position.
+     */
+    public synchronized int[] apply(WigwamFilter filter, int[] matches) {
+        long[] bits = null;
+        if (matches != null) {
+            bits = new long[mBitsetLength];
+            for (int row : matches) {
+                bits[row >>> 6] |= 1L << row;
+            }
+        }
+        if (filter.getCity() != null) {
+            bits = intersect(bits, cityBits(filter.getCity()));
+        }
+        if (filter.getState() != null) {
+            bits = intersect(bits, stateBits(filter.getState()));
+        }
+        if (filter.hasPriceRange()) {
+            bits = intersect(bits, priceBits(filter.getMinPrice(), filter.getMaxPrice()));
+        }
+
+        int[] order;
+        switch (filter.getSort()) {
+            case PRICE:
+                order = mPriceOrder;
+                break;
+            case NAME:
+                order = mNameOrder;
+                break;
+            case DISTANCE:
+                order = distanceOrder(filter.getOriginLat(), filter.getOriginLng());
+                break;
+            default:
+                order = matches;
+                break;
+        }
+
+        if (bits == null) {
+            if (order != null) {
+                return copy(order, order.length);
+            }
+            int[] rows = new int[mTable.size()];
+            for (int row = 0; row < rows.length; row++) {
+                rows[row] = row;
+            }
+            return rows;
+        }
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        int[] rows = new int[count];
+        int next = 0;
+        if (order == null) {
+            for (int row = 0; row < mTable.size(); row++) {
+                if ((bits[row >>> 6] & (1L << row)) != 0) {
+                    rows[next++] = row;
+                }
+            }
+        } else {
+            for (int i = 0; i < order.length && next < count; i++) {
+                int row = order[i];
+                if ((bits[row >>> 6] & (1L << row)) != 0) {
+                    rows[next++] = row;
+                }
+            }
+        }
+        return rows;
+    }
+
+    private long[] cityBits(String city) {
+        if (!city.equalsIgnoreCase(mCachedCity)) {
+            mCityBits = groupBits(city, mCityStarts, mCityRows);
+            mCachedCity = city;
+        }
+        return mCityBits;
+    }
+
+    private long[] stateBits(String state) {
+        if (!state.equalsIgnoreCase(mCachedState)) {
+            mStateBits = groupBits(state, mStateStarts, mStateRows);
+            mCachedState = state;
+        }
+        return mStateBits;
+    }
+
+    /**
+     * @return the rows in the groups of every dictionary string equal to a value, ignoring case.
+     */
+    private long[] groupBits(String value, int[] starts, int[] rows) {
+        long[] bits = new long[mBitsetLength];
+        for (int index = 0; index < mTable.getDictionarySize(); index++) {
+            if (!value.equalsIgnoreCase(mTable.getDictionaryString(index))) {
+                continue;
+            }
+            for (int i = starts[index]; i < starts[index + 1]; i++) {
+                int row = rows[i];
+                bits[row >>> 6] |= 1L << row;
+            }
+        }
+        return bits;
+    }
+
+    private long[] priceBits(int minPrice, int maxPrice) {
+        if (mPriceBits == null || minPrice != mCachedMinPrice || maxPrice != mCachedMaxPrice) {
+            // The allowed rows are a run of the price order
+            int from = minPrice == WigwamFilter.NO_PRICE_LIMIT ? 0
+                    : firstAtLeast(mSortedPrices, minPrice);
+            int to = maxPrice == WigwamFilter.NO_PRICE_LIMIT ? mSortedPrices.length
+                    : firstAbove(mSortedPrices, maxPrice);
+            long[] bits = new long[mBitsetLength];
+            for (int i = from; i < to; i++) {
+                int row = mPriceOrder[i];
+                bits[row >>> 6] |= 1L << row;
+            }
+            mPriceBits = bits;
+            mCachedMinPrice = minPrice;
+            mCachedMaxPrice = maxPrice;
+        }
+        return mPriceBits;
+    }
+
+    private int[] distanceOrder(double lat, double lng) {
+        if (mDistanceOrder == null || lat != mCachedLat || lng != mCachedLng) {
+            mDistanceOrder = mSpatialIndex.sortByDistance(lat, lng);
+            mCachedLat = lat;
+            mCachedLng = lng;
+        }
+        return mDistanceOrder;
+    }
+
+    /**
+     * Intersect a bitset with a cached one.
+     *
+     * @param bits the rows allowed so far, which may be modified, or null for every row.
+     * @param other the cached rows, which are not modified.
+     * @return the intersection.
+     */
+    private static long[] intersect(long[] bits, long[] other) {
+        if (bits == null) {
+            long[] result = new long[other.length];
+            System.arraycopy(other, 0, result, 0, other.length);
+            return result;
+        }
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] &= other[i];
+        }
+        return bits;
+    }
+
+    /**
+     * @return the index of the first value at least as large as a bound, in an ascending array.
+     */
+    private static int firstAtLeast(int[] sorted, int bound) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < bound) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of the first value larger than a bound, in an ascending array.  Unlike
+     *         {@code firstAtLeast(sorted, bound + 1)}, correct for {@link Integer#MAX_VALUE}.
+     */
+    private static int firstAbove(int[] sorted, int bound) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] <= bound) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Group the rows by city or state with a counting sort.  Rows without one are left out.
+     */
+    private static void group(WigwamTable table, boolean byCity, int[] starts, int[] rows) {
+        int size = table.size();
+        for (int row = 0; row < size; row++) {
+            int index = byCity ? table.getCityIndex(row) : table.getStateIndex(row);
+            if (index >= 0) {
+                starts[index + 1]++;
+            }
+        }
+        for (int i = 1; i < starts.length; i++) {
+            starts[i] += starts[i - 1];
+        }
+        int[] next = copy(starts, starts.length - 1);
+        for (int row = 0; row < size; row++) {
+            int index = byCity ? table.getCityIndex(row) : table.getStateIndex(row);
+            if (index >= 0) {
+                rows[next[index]++] = row;
+            }
+        }
+    }
+
+    /**
+     * Order the rows by name, ignoring case, with unnamed rows last.  Merge sorts the row indexes
+     * directly, so no row is boxed.
+     */
+    private static int[] sortByName(WigwamTable table) {
+        char[] text = table.getText();
+        int size = table.size();
+        int[] order = new int[size];
+        int count = 0;
+        for (int row = 0; row < size; row++) {
+            if (table.getNameLength(row) >= 0) {
+                order[count++] = row;
+            }
+        }
+        mergeSort(table, text, order, new int[count], 0, count);
+        for (int row = 0; row < size; row++) {
+            if (table.getNameLength(row) < 0) {
+                order[count++] = row;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Sort {@code rows[from, to)} by name, using {@code buffer} of at least the same range.
+     */
+    private static void mergeSort(WigwamTable table, char[] text, int[] rows, int[] buffer,
+            int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(table, text, rows, buffer, from, mid);
+        mergeSort(table, text, rows, buffer, mid, to);
+        if (compareNames(table, text, rows[mid - 1], rows[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(rows, from, buffer, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < mid
+                    && compareNames(table, text, buffer[left], buffer[right]) <= 0)) {
+                rows[i] = buffer[left++];
+            } else {
+                rows[i] = buffer[right++];
+            }
+        }
+    }
+
+    /**
+     * Compare the names of two rows, ignoring case, then by row so the order is total.
+     */
+    private static int compareNames(WigwamTable table, char[] text, int a, int b) {
+        int startA = table.getNameStart(a);
+        int lengthA = table.getNameLength(a);
+        int startB = table.getNameStart(b);
+        int lengthB = table.getNameLength(b);
+        int length = Math.min(lengthA, lengthB);
+        for (int i = 0; i < length; i++) {
+            char charA = Character.toLowerCase(text[startA + i]);
+            char charB = Character.toLowerCase(text[startB + i]);
+            if (charA != charB) {
+                return charA - charB;
+            }
+        }
+        if (lengthA != lengthB) {
+            return lengthA - lengthB;
+        }
+        return a - b;
+    }
+
+    private static int[] copy(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+}
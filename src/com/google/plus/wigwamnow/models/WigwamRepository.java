@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.models;
+
+import com.google.plus.wigwamnow.concurrent.AtomicFiles;
+import com.google.plus.wigwamnow.concurrent.Lane;
+import com.google.plus.wigwamnow.concurrent.TaskScheduler;
+import com.google.plus.wigwamnow.concurrent.TaskScope;
+import com.google.plus.wigwamnow.json.ModelMapper;
+import com.google.plus.wigwamnow.startup.Component;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process-wide map from id to {@link Wigwam}, so that screens can pass a wigwam by its id instead
+ * of parceling the whole object.  Holds one instance per id, made from the current
+ * {@link Catalog} when first asked for so that the catalog need not keep its parsed wigwams.  A
+ * lookup made while the catalog is loading waits for it, instead of reading the saved catalog a
+ * second time.  An id missing from the catalog is read from the copy saved by an earlier lookup,
+ * or else fetched from the server.  Lookups for the same id share one load, which continues when
+ * the scope of one lookup is cancelled.  Must be used from the main thread, and listeners
+ * are called on the main thread.
+ */
+public class WigwamRepository {
+
+    private static final String TAG = WigwamRepository.class.getSimpleName();
+
+    /** Prefix for files holding a single fetched wigwam, followed by its id **/
+    private static final String FILE_PREFIX = "wigwam_";
+
+    /**
+     * Receives the result of {@link #get}.
+     */
+    public interface Listener {
+
+        /**
+         * @param wigwam the wigwam.
+         */
+        void onWigwamLoaded(Wigwam wigwam);
+
+        /**
+         * @param id the id of the wigwam.
+         * @param error the reason the wigwam could not be fetched.
+         */
+        void onWigwamFailed(int id, VolleyError error);
+
+    }
+
+    /**
+     * A listener waiting on a load, with the scope of the lookup.
+     */
+    private static class Waiter {
+
+        final TaskScope mScope;
+
+        final Listener mListener;
+
+        Waiter(TaskScope scope, Listener listener) {
+            mScope = scope;
+            mListener = listener;
+        }
+
+    }
+
+    /** Queue for fetches **/
+    private final Component<RequestQueue> mQueue;
+
+    /** Scheduler for reading, parsing and saving **/
+    private final TaskScheduler mScheduler;
+
+    /** Base URL of the server **/
+    private final String mHost;
+
+    /** Directory for single wigwams **/
+    private final File mCacheDir;
+
+    /** Reused to parse wigwams, thread-safe **/
+    private final ModelMapper mMapper = new ModelMapper();
+
+    /** The latest catalog, or null **/
+    private Catalog mCatalog;
+
+    /** Boolean to determine if a catalog is loading, see {@link #setCatalogLoading} **/
+    private boolean mCatalogLoading;
+
+    /** Ids whose lookup waits for the catalog that is loading **/
+    private final List<Integer> mAwaitingCatalog = new ArrayList<Integer>();
+
+    /**
+     * Wigwams made from {@link #mCatalog}, by id.  Replaced with the catalog, so that the JSON
+     * behind their lazy text goes with it.
+     */
+    private final SparseArray<Wigwam> mCatalogWigwams = new SparseArray<Wigwam>();
+
+    /** Wigwams missing from the catalog and loaded on their own, without lazy text, by id **/
+    private final SparseArray<Wigwam> mLoadedWigwams = new SparseArray<Wigwam>();
+
+    /** Listeners waiting on a load, by id **/
+    private final SparseArray<List<Waiter>> mPending = new SparseArray<List<Waiter>>();
+
+    /**
+     * @param context any {@link Context}, used for its cache directory.
+     * @param queue the queue for fetches, not built until the first fetch.
+     * @param scheduler the scheduler for reading, parsing and saving.
+     * @param host the base URL of the server.
+     */
+    public WigwamRepository(Context context, Component<RequestQueue> queue,
+            TaskScheduler scheduler, String host) {
+        mQueue = queue;
+        mScheduler = scheduler;
+        mHost = host;
+        mCacheDir = context.getApplicationContext().getCacheDir();
+    }
+
+    /**
+     * @param id the id of the wigwam.
+     * @return the wigwam if it is in memory, or null.
+     */
+    public Wigwam peek(int id) {
+        Wigwam wigwam = mCatalogWigwams.get(id);
+        if (wigwam == null && mCatalog != null) {
+            WigwamTable table = mCatalog.getTable();
+            int row = table.indexOfId(id);
+            if (row >= 0) {
+                wigwam = table.getWigwam(row);
+                mCatalogWigwams.put(id, wigwam);
+            }
+        }
+        return wigwam != null ? wigwam : mLoadedWigwams.get(id);
+    }
+
+    /**
+     * Look up wigwams in a new catalog, such as a fresh one from the server.  Its wigwams replace
+     * every wigwam made from the previous catalog, and the ones loaded on their own with the same
+     * ids.  Lookups waiting for a load that the catalog answers are answered now.
+     *
+     * @param catalog the catalog.
+     */
+    public void setCatalog(Catalog catalog) {
+        mCatalog = catalog;
+        mCatalogWigwams.clear();
+        WigwamTable table = catalog.getTable();
+        for (int i = mLoadedWigwams.size() - 1; i >= 0; i--) {
+            int id = mLoadedWigwams.keyAt(i);
+            if (table.indexOfId(id) >= 0) {
+                mLoadedWigwams.delete(id);
+            }
+        }
+        int[] pending = new int[mPending.size()];
+        for (int i = 0; i < pending.length; i++) {
+            pending[i] = mPending.keyAt(i);
+        }
+        for (int id : pending) {
+            Wigwam wigwam = peek(id);
+            if (wigwam != null) {
+                deliver(id, wigwam);
+            }
+        }
+        setCatalogLoading(false);
+    }
+
+    /**
+     * Tell whether a catalog is loading, from disk or the server.  While one is, lookups of ids
+     * that are not in memory wait for it.  Once it is no longer loading, whether or not it could
+     * be loaded, the lookups it did not answer go on to disk and the server.
+     *
+     * @param loading true when a catalog load starts, false when it fails.
+     */
+    public void setCatalogLoading(boolean loading) {
+        mCatalogLoading = loading;
+        if (loading || mAwaitingCatalog.isEmpty()) {
+            return;
+        }
+        List<Integer> awaiting = new ArrayList<Integer>(mAwaitingCatalog);
+        mAwaitingCatalog.clear();
+        for (int id : awaiting) {
+            if (mPending.get(id) != null) {
+                readDisk(id);
+            }
+        }
+    }
+
+    /**
+     * Look up a wigwam.  If it is in memory the listener is called before this method returns.
+     * Otherwise the listener is called once the wigwam is loaded, unless the scope has been
+     * cancelled by then.
+     *
+     * @param id the id of the wigwam.
+     * @param scope the scope of the lookup, usually that of the screen showing the wigwam.
+     * @param listener the listener for the result.
+     */
+    public void get(int id, TaskScope scope, Listener listener) {
+        Wigwam wigwam = peek(id);
+        if (wigwam != null) {
+            listener.onWigwamLoaded(wigwam);
+            return;
+        }
+        List<Waiter> pending = mPending.get(id);
+        if (pending != null) {
+            pending.add(new Waiter(scope, listener));
+            return;
+        }
+        pending = new ArrayList<Waiter>();
+        pending.add(new Waiter(scope, listener));
+        mPending.put(id, pending);
+        if (mCatalogLoading) {
+            mAwaitingCatalog.add(id);
+        } else {
+            readDisk(id);
+        }
+    }
+
+    /**
+     * Look for a copy of the wigwam saved by an earlier fetch.  The saved catalog is not read
+     * here, it is loaded once by {@link com.google.plus.wigwamnow.startup.CatalogLoader}.
+     */
+    private void readDisk(final int id) {
+        final File single = getFile(id);
+        mScheduler.submit(Lane.DISK, TaskScheduler.PRIORITY_HIGH, TaskScope.APPLICATION,
+                new TaskScheduler.Task<Wigwam>() {
+
+                    @Override
+                    protected Wigwam run() throws IOException {
+                        if (!single.exists()) {
+                            return null;
+                        }
+                        Wigwam wigwam = mMapper.readValue(single, Wigwam.class);
+                        wigwam.decodeText();
+                        return wigwam;
+                    }
+
+                    @Override
+                    protected void onSuccess(Wigwam found) {
+                        if (found != null && peek(id) == null) {
+                            mLoadedWigwams.put(id, found);
+                        }
+                        if (mPending.get(id) == null) {
+                            // Answered by a catalog in the meantime
+                            return;
+                        }
+                        Wigwam wigwam = peek(id);
+                        if (wigwam != null) {
+                            deliver(id, wigwam);
+                        } else {
+                            fetch(id);
+                        }
+                    }
+
+                    @Override
+                    protected void onFailure(Exception e) {
+                        Log.w(TAG, "Could not read saved wigwam " + id, e);
+                        if (mPending.get(id) != null) {
+                            fetch(id);
+                        }
+                    }
+
+                });
+    }
+
+    /**
+     * Fetch the wigwam from the server, parse it off the main thread and save it for later runs.
+     */
+    private void fetch(final int id) {
+        String url = mHost + "/wigwams/" + Integer.toString(id) + ".json";
+        mQueue.get().add(new Request<byte[]>(url, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                Log.e(TAG, error.toString());
+                fail(id, error);
+            }
+        }) {
+
+            @Override
+            protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+                return Response.success(
+                        response.data, HttpHeaderParser.parseCacheHeaders(response));
+            }
+
+            @Override
+            protected void deliverResponse(byte[] data) {
+                onFetched(id, data);
+            }
+
+        });
+    }
+
+    private void onFetched(final int id, final byte[] data) {
+        mScheduler.submit(Lane.DISK, TaskScheduler.PRIORITY_HIGH, TaskScope.APPLICATION,
+                new TaskScheduler.Task<Wigwam>() {
+
+                    @Override
+                    protected Wigwam run() throws IOException {
+                        Wigwam wigwam = mMapper.readValue(data, 0, data.length, Wigwam.class);
+                        wigwam.decodeText();
+                        return wigwam;
+                    }
+
+                    @Override
+                    protected void onSuccess(Wigwam wigwam) {
+                        mLoadedWigwams.put(id, wigwam);
+                        deliver(id, wigwam);
+                        save(id, data);
+                    }
+
+                    @Override
+                    protected void onFailure(Exception e) {
+                        Log.e(TAG, "Unable to parse wigwam " + id, e);
+                        fail(id, new VolleyError(e));
+                    }
+
+                });
+    }
+
+    /**
+     * Replace the saved copy of a wigwam, only once the new one is fully written.
+     */
+    private void save(int id, final byte[] data) {
+        final File file = getFile(id);
+        mScheduler.submit(Lane.DISK, TaskScheduler.PRIORITY_LOW, TaskScope.APPLICATION,
+                new TaskScheduler.Task<Void>() {
+
+                    @Override
+                    protected Void run() throws IOException {
+                        AtomicFiles.write(file, data);
+                        return null;
+                    }
+
+                    @Override
+                    protected void onFailure(Exception e) {
+                        Log.e(TAG, "Could not save wigwam", e);
+                    }
+
+                });
+    }
+
+    private void deliver(int id, Wigwam wigwam) {
+        List<Waiter> pending = mPending.get(id);
+        mPending.remove(id);
+        if (pending != null) {
+            for (Waiter waiter : pending) {
+                if (!waiter.mScope.isCancelled()) {
+                    waiter.mListener.onWigwamLoaded(wigwam);
+                }
+            }
+        }
+    }
+
+    private void fail(int id, VolleyError error) {
+        List<Waiter> pending = mPending.get(id);
+        mPending.remove(id);
+        if (pending != null) {
+            for (Waiter waiter : pending) {
+                if (!waiter.mScope.isCancelled()) {
+                    waiter.mListener.onWigwamFailed(id, error);
+                }
+            }
+        }
+    }
+
+    private File getFile(int id) {
+        return new File(mCacheDir, FILE_PREFIX + id + ".json");
+    }
+
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.models;
+
+import java.util.Arrays;
+
+/**
+ * Grid index over the locations of the rows of a {@link WigwamTable}, for "near me" queries.  The
+ * globe is cut into cells of {@link #CELL_DEGREES} on a side, and the rows are sorted by cell so
+ * that each occupied cell is one range of a single {@code int[]}; empty cells take no memory.
+ * Queries only visit the cells that can hold an answer.
+ * <p>
+ * Distances are approximated by projecting onto a plane at the query point, which is accurate to
+ * well under one percent over the few hundred kilometers these queries cover and needs no
+ * trigonometry per row.  Results are rows of the table, nearest first.  Thread-safe once built.
+ * <p>
+ * The index is built in one pass rather than row by row: the catalog is parsed as a single array,
+ * so every row is known before the first can be indexed, and a refreshed catalog comes with a new
+ * {@link WigwamTable} and so a new index.  One sort of packed longs is also cheaper than keeping
+ * the cells sorted through each insert.
+ */
+public class WigwamSpatialIndex {
+
+    /** Size of a grid cell, in degrees, about 28km of latitude **/
+    private static final double CELL_DEGREES = 0.25;
+
+    /** Number of cell rows, from the south pole **/
+    private static final int GRID_ROWS = (int) Math.ceil(180 / CELL_DEGREES);
+
+    /** Number of cell columns, from the antimeridian **/
+    private static final int GRID_COLUMNS = (int) Math.ceil(360 / CELL_DEGREES);
+
+    /** Length of a degree of latitude, in kilometers **/
+    private static final double KM_PER_DEGREE = 111.195;
+
+    /** The indexed table **/
+    private final WigwamTable mTable;
+
+    /** Occupied cells, ascending **/
+    private final int[] mCells;
+
+    /** Start of each cell of {@link #mCells} in {@link #mRows}, with the end as the last entry **/
+    private final int[] mCellStarts;
+
+    /** Rows with a location, grouped by cell **/
+    private final int[] mRows;
+
+    /**
+     * Index every row of a table that has a location.  Takes time proportional to
+     * n log n, so should be called off the main thread for large tables.
+     *
+     * @param table the table.
+     */
+    public WigwamSpatialIndex(WigwamTable table) {
+        mTable = table;
+        int located = 0;
+        for (int row = 0; row < table.size(); row++) {
+            if (table.hasLocation(row)) {
+                located++;
+            }
+        }
+        // Sort (cell, row) pairs packed into longs, to avoid boxing
+        long[] entries = new long[located];
+        int next = 0;
+        for (int row = 0; row < table.size(); row++) {
+            if (table.hasLocation(row)) {
+                long cell = cellOf(table.getLat(row), table.getLng(row));
+                entries[next++] = (cell << 32) | row;
+            }
+        }
+        Arrays.sort(entries);
+
+        mRows = new int[located];
+        int cellCount = 0;
+        for (int i = 0; i < located; i++) {
+            mRows[i] = (int) entries[i];
+            if (i == 0 || (entries[i] >>> 32) != (entries[i - 1] >>> 32)) {
+                cellCount++;
+            }
+        }
+        mCells = new int[cellCount];
+        mCellStarts = new int[cellCount + 1];
+        int cell = -1;
+        for (int i = 0; i < located; i++) {
+            if (i == 0 || (entries[i] >>> 32) != (entries[i - 1] >>> 32)) {
+                cell++;
+                mCells[cell] = (int) (entries[i] >>> 32);
+                mCellStarts[cell] = i;
+            }
+        }
+        mCellStarts[cellCount] = located;
+    }
+
+    /**
+     * @return the indexed table.
+     */
+    public WigwamTable getTable() {
+        return mTable;
+    }
+
+    /**
+     * @return the number of rows with a location.
+     */
+    public int size() {
+        return mRows.length;
+    }
+
+    /**
+     * Find the rows nearest to a point.
+     *
+     * @param lat the latitude of the point.
+     * @param lng the longitude of the point.
+     * @param count the largest number of rows to return.
+     * @return up to {@code count} rows, nearest first.
+     */
+    public int[] nearest(double lat, double lng, int count) {
+        count = Math.min(count, mRows.length);
+        int[] best = new int[count];
+        double[] bestDistances = new double[count];
+        int found = 0;
+        if (count == 0) {
+            return best;
+        }
+        double cos = Math.cos(Math.toRadians(lat));
+        int centerRow = gridRow(lat);
+        int centerColumn = gridColumn(lng);
+        // Column offsets in (-half, half] name each column once, the short way round
+        int half = GRID_COLUMNS / 2;
+        // Cells shrink towards the poles, so rings take this many columns per row to stay square
+        int aspect = cos * half <= 1 ? half : (int) Math.min(half, Math.ceil(1 / cos));
+        for (int ring = 0; ring <= GRID_ROWS; ring++) {
+            // Every row outside the rings searched so far is at least this far away
+            double bound = Math.max(0, ring - 1) * CELL_DEGREES;
+            if (found == count && bestDistances[found - 1] <= bound * bound) {
+                break;
+            }
+            int outer = ring * aspect;
+            int inner = ring == 0 ? 0 : (ring - 1) * aspect + 1;
+            for (int gridRow = centerRow - ring; gridRow <= centerRow + ring; gridRow++) {
+                if (gridRow < 0 || gridRow >= GRID_ROWS) {
+                    continue;
+                }
+                if (gridRow == centerRow - ring || gridRow == centerRow + ring) {
+                    found = collectColumns(gridRow, centerColumn, -outer, outer,
+                            lat, lng, cos, best, bestDistances, found);
+                } else if (inner <= outer) {
+                    found = collectColumns(gridRow, centerColumn, -outer, -inner,
+                            lat, lng, cos, best, bestDistances, found);
+                    found = collectColumns(gridRow, centerColumn, inner, outer,
+                            lat, lng, cos, best, bestDistances, found);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Merge the rows of a range of cells of one grid row into the nearest found so far.
+     *
+     * @return the number of rows found.
+     */
+    private int collectColumns(int gridRow, int centerColumn, int from, int to, double lat,
+            double lng, double cos, int[] best, double[] bestDistances, int found) {
+        int half = GRID_COLUMNS / 2;
+        for (int dc = Math.max(from, 1 - half); dc <= Math.min(to, half); dc++) {
+            int cell = gridRow * GRID_COLUMNS + wrapColumn(centerColumn + dc);
+            found = collect(cell, lat, lng, cos, best, bestDistances, found);
+        }
+        return found;
+    }
+
+    /**
+     * Merge the rows of a cell into the nearest found so far.
+     *
+     * @return the number of rows found.
+     */
+    private int collect(int cell, double lat, double lng, double cos, int[] best,
+            double[] bestDistances, int found) {
+        int index = Arrays.binarySearch(mCells, cell);
+        if (index < 0) {
+            return found;
+        }
+        for (int i = mCellStarts[index]; i < mCellStarts[index + 1]; i++) {
+            int row = mRows[i];
+            double distance = squaredDistance(lat, lng, cos, row);
+            if (found < best.length) {
+                found++;
+            } else if (distance >= bestDistances[found - 1]) {
+                continue;
+            }
+            // Insert in order, dropping the farthest
+            int at = found - 1;
+            while (at > 0 && bestDistances[at - 1] > distance) {
+                best[at] = best[at - 1];
+                bestDistances[at] = bestDistances[at - 1];
+                at--;
+            }
+            best[at] = row;
+            bestDistances[at] = distance;
+        }
+        return found;
+    }
+
+    /**
+     * Find the rows within a distance of a point.
+     *
+     * @param lat the latitude of the point.
+     * @param lng the longitude of the point.
+     * @param radiusKm the distance, in kilometers.
+     * @return the rows, nearest first.
+     */
+    public int[] within(double lat, double lng, double radiusKm) {
+        double radius = radiusKm / KM_PER_DEGREE;
+        double cos = Math.cos(Math.toRadians(lat));
+        double lngRadius = cos > radius / 180 ? Math.min(180, radius / cos) : 180;
+        int[] candidates = inBox(lat - radius, lng - lngRadius, lat + radius, lng + lngRadius);
+        long[] matches = new long[candidates.length];
+        int count = 0;
+        double limit = radius * radius;
+        for (int row : candidates) {
+            double distance = squaredDistance(lat, lng, cos, row);
+            if (distance <= limit) {
+                matches[count++] = sortKey(distance, row);
+            }
+        }
+        return sortedRows(matches, count);
+    }
+
+    /**
+     * Find the rows inside a box.  The box may cross the antimeridian, in which case
+     * {@code west} is greater than {@code east}.
+     *
+     * @param south the southern edge, in degrees.
+     * @param west the western edge, in degrees.
+     * @param north the northern edge, in degrees.
+     * @param east the eastern edge, in degrees.
+     * @return the rows, in no particular order.
+     */
+    public int[] inBox(double south, double west, double north, double east) {
+        south = Math.max(-90, south);
+        north = Math.min(90, north);
+        double width = east - west;
+        if (width < 0) {
+            width += 360;
+        }
+        boolean allColumns = width >= 360 - CELL_DEGREES;
+        int firstColumn = gridColumn(west);
+        int columns = allColumns ? GRID_COLUMNS
+                : Math.min(GRID_COLUMNS, (int) Math.ceil(width / CELL_DEGREES) + 1);
+        int[] result = new int[16];
+        int count = 0;
+        for (int gridRow = gridRow(south); gridRow <= gridRow(north); gridRow++) {
+            for (int dc = 0; dc < columns; dc++) {
+                int cell = gridRow * GRID_COLUMNS + wrapColumn(firstColumn + dc);
+                int index = Arrays.binarySearch(mCells, cell);
+                if (index < 0) {
+                    continue;
+                }
+                for (int i = mCellStarts[index]; i < mCellStarts[index + 1]; i++) {
+                    int row = mRows[i];
+                    if (!inside(row, south, west, north, width, allColumns)) {
+                        continue;
+                    }
+                    if (count == result.length) {
+                        result = copy(result, count * 2);
+                    }
+                    result[count++] = row;
+                }
+            }
+        }
+        return copy(result, count);
+    }
+
+    /**
+     * Order every row of the table by distance from a point, for a list sorted nearest first.
+     * Rows without a location come last, in table order.
+     *
+     * @param lat the latitude of the point.
+     * @param lng the longitude of the point.
+     * @return a permutation of the rows of the table.
+     */
+    public int[] sortByDistance(double lat, double lng) {
+        double cos = Math.cos(Math.toRadians(lat));
+        long[] keys = new long[mRows.length];
+        for (int i = 0; i < mRows.length; i++) {
+            keys[i] = sortKey(squaredDistance(lat, lng, cos, mRows[i]), mRows[i]);
+        }
+        int[] order = new int[mTable.size()];
+        System.arraycopy(sortedRows(keys, keys.length), 0, order, 0, keys.length);
+        int next = keys.length;
+        for (int row = 0; row < mTable.size(); row++) {
+            if (!mTable.hasLocation(row)) {
+                order[next++] = row;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Approximate distance between two points, accurate for distances much smaller than the
+     * Earth's radius.
+     *
+     * @return the distance, in kilometers.
+     */
+    public static double distanceKm(double lat1, double lng1, double lat2, double lng2) {
+        double cos = Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double dLat = lat2 - lat1;
+        double dLng = wrapDegrees(lng2 - lng1) * cos;
+        return Math.sqrt(dLat * dLat + dLng * dLng) * KM_PER_DEGREE;
+    }
+
+    /**
+     * @return the squared distance from a point to a row, in degrees of latitude squared.
+     */
+    private double squaredDistance(double lat, double lng, double cos, int row) {
+        double dLat = mTable.getLat(row) - lat;
+        double dLng = wrapDegrees(mTable.getLng(row) - lng) * cos;
+        return dLat * dLat + dLng * dLng;
+    }
+
+    private boolean inside(int row, double south, double west, double north, double width,
+            boolean allColumns) {
+        double lat = mTable.getLat(row);
+        if (lat < south || lat > north) {
+            return false;
+        }
+        if (allColumns) {
+            return true;
+        }
+        double offset = (mTable.getLng(row) - west) % 360;
+        if (offset < 0) {
+            offset += 360;
+        }
+        return offset <= width;
+    }
+
+    /**
+     * Pack a non-negative distance and a row into a long that sorts by distance.
+     */
+    private static long sortKey(double distance, int row) {
+        return ((long) Float.floatToIntBits((float) distance) << 32) | row;
+    }
+
+    private static int[] sortedRows(long[] keys, int count) {
+        Arrays.sort(keys, 0, count);
+        int[] rows = new int[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = (int) keys[i];
+        }
+        return rows;
+    }
+
+    /**
+     * Copy the start of an array into a new array, which may be longer.
+     */
+    private static int[] copy(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(length, array.length));
+        return copy;
+    }
+
+    private static long cellOf(double lat, double lng) {
+        return (long) gridRow(lat) * GRID_COLUMNS + gridColumn(lng);
+    }
+
+    private static int gridRow(double lat) {
+        int row = (int) Math.floor((lat + 90) / CELL_DEGREES);
+        return Math.max(0, Math.min(GRID_ROWS - 1, row));
+    }
+
+    private static int gridColumn(double lng) {
+        return wrapColumn((int) Math.floor((wrapDegrees(lng) + 180) / CELL_DEGREES));
+    }
+
+    private static int wrapColumn(int column) {
+        int wrapped = column % GRID_COLUMNS;
+        return wrapped < 0 ? wrapped + GRID_COLUMNS : wrapped;
+    }
+
+    /**
+     * @return the angle in [-180, 180).
+     */
+    private static double wrapDegrees(double degrees) {
+        double wrapped = (degrees + 180) % 360;
+        if (wrapped < 0) {
+            wrapped += 360;
+        }
+        return wrapped - 180;
+    }
+
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.models;
+
+import com.google.plus.wigwamnow.json.ModelMapper;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only, column-oriented copy of a catalog of {@link Wigwam}s, for lists of tens of thousands
+ * of rows.  Numbers are kept in primitive arrays, city and state as indexes into a dictionary of
+ * distinct strings, and names as ranges of one shared {@code char[]}, so the whole table is a few
+ * dozen objects however many rows it has.  Descriptions, streets and zips are kept as offsets into
+ * the catalog's JSON and decoded on each access, so the table does not hold on to the parsed
+ * {@link Wigwam}s; {@link #getWigwam} makes a new one for a row when one is needed.  The other row
+ * accessors do not allocate.  Thread-safe once built.
+ */
+public class WigwamTable {
+
+    /** Presence flag for the id **/
+    private static final byte HAS_ID = 1;
+
+    /** Presence flag for the price **/
+    private static final byte HAS_PRICE = 1 << 1;
+
+    /** Presence flag for the location **/
+    private static final byte HAS_LOCATION = 1 << 2;
+
+    /** Dictionary index for a missing string **/
+    private static final int NO_STRING = -1;
+
+    /** Number of text fields kept as offsets, see {@link Wigwam#LAZY_DESCRIPTION} **/
+    private static final int LAZY_FIELDS = 3;
+
+    /** Offset of a text field that is missing or was decoded before the table was built **/
+    private static final int NOT_LAZY = -1;
+
+    /** Number of rows **/
+    private final int mSize;
+
+    /** Presence flags of each row **/
+    private final byte[] mPresent;
+
+    /** Id of each row **/
+    private final int[] mIds;
+
+    /** Price of each row **/
+    private final int[] mPrices;
+
+    /** Latitude of each row **/
+    private final double[] mLats;
+
+    /** Longitude of each row **/
+    private final double[] mLngs;
+
+    /** Distinct cities and states **/
+    private final String[] mDictionary;
+
+    /** Index into {@link #mDictionary} of each row's city, or {@link #NO_STRING} **/
+    private final int[] mCities;
+
+    /** Index into {@link #mDictionary} of each row's state, or {@link #NO_STRING} **/
+    private final int[] mStates;
+
+    /** Image URL of each row, kept as strings as they are handed to the network as is **/
+    private final String[] mSrcs;
+
+    /** JSON the lazy text fields are read from, or null if none are lazy **/
+    private final byte[] mSource;
+
+    /**
+     * Offset in {@link #mSource} of each row's description, street and zip, at
+     * {@code row * LAZY_FIELDS + field}, or {@link #NOT_LAZY}
+     */
+    private final int[] mTextOffsets;
+
+    /** Text fields that are not lazy, at the same index as {@link #mTextOffsets}, or null **/
+    private final String[] mTextValues;
+
+    /** Names of every row, back to back **/
+    private final char[] mText;
+
+    /** Start of each row's name in {@link #mText} **/
+    private final int[] mNameStarts;
+
+    /** Length of each row's name, or -1 if it has none **/
+    private final int[] mNameLengths;
+
+    /** Ids and rows of the rows with an id, packed into longs and sorted by id, then row **/
+    private final long[] mRowsById;
+
+    /**
+     * Copy a catalog into columns.  Takes time proportional to the catalog, so should be called
+     * off the main thread for large catalogs.
+     *
+     * @param wigwams the catalog, which need not be kept afterwards.
+     */
+    public WigwamTable(Wigwam[] wigwams) {
+        int size = wigwams.length;
+        mSize = size;
+        byte[] source = null;
+        for (Wigwam wigwam : wigwams) {
+            if (wigwam.getSource() != null) {
+                source = wigwam.getSource();
+                break;
+            }
+        }
+        mSource = source;
+        mTextOffsets = new int[size * LAZY_FIELDS];
+        mPresent = new byte[size];
+        mIds = new int[size];
+        mPrices = new int[size];
+        mLats = new double[size];
+        mLngs = new double[size];
+        mCities = new int[size];
+        mStates = new int[size];
+        mSrcs = new String[size];
+        mNameStarts = new int[size];
+        mNameLengths = new int[size];
+
+        int textLength = 0;
+        for (Wigwam wigwam : wigwams) {
+            textLength += length(wigwam.getName());
+        }
+        mText = new char[textLength];
+
+        Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        String[] textValues = null;
+        int offset = 0;
+        for (int row = 0; row < size; row++) {
+            Wigwam wigwam = wigwams[row];
+            byte present = 0;
+            if (wigwam.hasId()) {
+                present |= HAS_ID;
+                mIds[row] = wigwam.getId();
+            }
+            if (wigwam.hasPrice()) {
+                present |= HAS_PRICE;
+                mPrices[row] = wigwam.getPrice();
+            }
+            if (wigwam.hasLocation()) {
+                present |= HAS_LOCATION;
+                mLats[row] = wigwam.getLat();
+                mLngs[row] = wigwam.getLng();
+            }
+            mPresent[row] = present;
+            mCities[row] = intern(dictionary, wigwam.getCity());
+            mStates[row] = intern(dictionary, wigwam.getState());
+            mSrcs[row] = wigwam.getSrc();
+
+            mNameStarts[row] = offset;
+            mNameLengths[row] = copy(wigwam.getName(), offset);
+            offset += length(wigwam.getName());
+
+            for (int field = 0; field < LAZY_FIELDS; field++) {
+                int index = row * LAZY_FIELDS + field;
+                int lazyOffset = wigwam.getLazyOffset(field);
+                if (lazyOffset != NOT_LAZY && wigwam.getSource() == source) {
+                    mTextOffsets[index] = lazyOffset;
+                    continue;
+                }
+                // Decoded already, or read from another buffer, which is not kept
+                mTextOffsets[index] = NOT_LAZY;
+                String value = readText(wigwam, field);
+                if (value != null) {
+                    if (textValues == null) {
+                        textValues = new String[mTextOffsets.length];
+                    }
+                    textValues[index] = value;
+                }
+            }
+        }
+        mTextValues = textValues;
+
+        mDictionary = new String[dictionary.size()];
+        for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+            mDictionary[entry.getValue()] = entry.getKey();
+        }
+
+        int withId = 0;
+        for (int row = 0; row < size; row++) {
+            if (hasId(row)) {
+                withId++;
+            }
+        }
+        mRowsById = new long[withId];
+        int next = 0;
+        for (int row = 0; row < size; row++) {
+            if (hasId(row)) {
+                mRowsById[next++] = ((long) mIds[row] << 32) | row;
+            }
+        }
+        Arrays.sort(mRowsById);
+    }
+
+    /**
+     * @return the number of rows.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public boolean hasId(int row) {
+        return (mPresent[row] & HAS_ID) != 0;
+    }
+
+    /**
+     * @return the id, or 0 if it is not known.
+     */
+    public int getId(int row) {
+        return mIds[row];
+    }
+
+    public boolean hasPrice(int row) {
+        return (mPresent[row] & HAS_PRICE) != 0;
+    }
+
+    /**
+     * @return the price, or 0 if it is not known.
+     */
+    public int getPrice(int row) {
+        return mPrices[row];
+    }
+
+    public boolean hasLocation(int row) {
+        return (mPresent[row] & HAS_LOCATION) != 0;
+    }
+
+    /**
+     * @return the latitude, or 0 if it is not known.
+     */
+    public double getLat(int row) {
+        return mLats[row];
+    }
+
+    /**
+     * @return the longitude, or 0 if it is not known.
+     */
+    public double getLng(int row) {
+        return mLngs[row];
+    }
+
+    /**
+     * @return the city, shared with every other row in the same city, or null.
+     */
+    public String getCity(int row) {
+        return lookup(mCities[row]);
+    }
+
+    /**
+     * @return the state, shared with every other row in the same state, or null.
+     */
+    public String getState(int row) {
+        return lookup(mStates[row]);
+    }
+
+    /**
+     * @return the index of the city in the dictionary of cities and states, or -1.
+     */
+    public int getCityIndex(int row) {
+        return mCities[row];
+    }
+
+    /**
+     * @return the index of the state in the dictionary of cities and states, or -1.
+     */
+    public int getStateIndex(int row) {
+        return mStates[row];
+    }
+
+    /**
+     * @return the number of distinct cities and states.
+     */
+    public int getDictionarySize() {
+        return mDictionary.length;
+    }
+
+    /**
+     * @param index an index from {@link #getCityIndex} or {@link #getStateIndex}.
+     * @return the city or state.
+     */
+    public String getDictionaryString(int index) {
+        return mDictionary[index];
+    }
+
+    /**
+     * @return the image URL, or null.
+     */
+    public String getSrc(int row) {
+        return mSrcs[row];
+    }
+
+    /**
+     * The buffer holding every name.  Read with {@link #getNameStart} and {@link #getNameLength}.
+     * Must not be modified.
+     *
+     * @return the shared buffer.
+     */
+    public char[] getText() {
+        return mText;
+    }
+
+    public int getNameStart(int row) {
+        return mNameStarts[row];
+    }
+
+    /**
+     * @return the length of the name in {@link #getText}, or -1 if the row has no name.
+     */
+    public int getNameLength(int row) {
+        return mNameLengths[row];
+    }
+
+    /**
+     * @return the name, as a new string, or null.  Prefer {@link #getText} for drawing.
+     */
+    public String getName(int row) {
+        int length = mNameLengths[row];
+        return length < 0 ? null : new String(mText, mNameStarts[row], length);
+    }
+
+    /**
+     * @return the description, decoded on every call, or null.
+     */
+    public String getDescription(int row) {
+        return getText(row, Wigwam.LAZY_DESCRIPTION);
+    }
+
+    /**
+     * @return the street, decoded on every call, or null.
+     */
+    public String getStreet(int row) {
+        return getText(row, Wigwam.LAZY_STREET);
+    }
+
+    /**
+     * @return the zip, decoded on every call, or null.
+     */
+    public String getZip(int row) {
+        return getText(row, Wigwam.LAZY_ZIP);
+    }
+
+    /**
+     * Make a {@link Wigwam} holding a row.  Its description, street and zip stay in the catalog's
+     * JSON until first accessed.
+     *
+     * @return a new wigwam.
+     */
+    public Wigwam getWigwam(int row) {
+        Wigwam wigwam = new Wigwam();
+        if (hasId(row)) {
+            wigwam.setId(mIds[row]);
+        }
+        if (hasPrice(row)) {
+            wigwam.setPrice(mPrices[row]);
+        }
+        if (hasLocation(row)) {
+            wigwam.setLat(mLats[row]);
+            wigwam.setLng(mLngs[row]);
+        }
+        wigwam.setName(getName(row));
+        wigwam.setSrc(mSrcs[row]);
+        wigwam.setCity(getCity(row));
+        wigwam.setState(getState(row));
+        if (mTextValues != null) {
+            wigwam.setDescription(mTextValues[row * LAZY_FIELDS + Wigwam.LAZY_DESCRIPTION]);
+            wigwam.setStreet(mTextValues[row * LAZY_FIELDS + Wigwam.LAZY_STREET]);
+            wigwam.setZip(mTextValues[row * LAZY_FIELDS + Wigwam.LAZY_ZIP]);
+        }
+        // After the values, as setting a value drops the lazy text of the field
+        for (int field = 0; field < LAZY_FIELDS; field++) {
+            int index = row * LAZY_FIELDS + field;
+            if (mTextOffsets[index] != NOT_LAZY) {
+                wigwam.setLazyText(field, mSource, mTextOffsets[index]);
+            }
+        }
+        return wigwam;
+    }
+
+    /**
+     * @param id the id of a wigwam.
+     * @return the first row with the id, or -1.
+     */
+    public int indexOfId(int id) {
+        // The smallest key with the id, to find its first row
+        int index = Arrays.binarySearch(mRowsById, (long) id << 32);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        if (index < mRowsById.length && (int) (mRowsById[index] >> 32) == id) {
+            return (int) mRowsById[index];
+        }
+        return -1;
+    }
+
+    private String getText(int row, int field) {
+        int index = row * LAZY_FIELDS + field;
+        if (mTextOffsets[index] != NOT_LAZY) {
+            return ModelMapper.decodeString(mSource, mTextOffsets[index]);
+        }
+        return mTextValues == null ? null : mTextValues[index];
+    }
+
+    private String lookup(int index) {
+        return index == NO_STRING ? null : mDictionary[index];
+    }
+
+    /**
+     * Copy a string into {@link #mText}.
+     *
+     * @return the length of the string, or -1 if it is null.
+     */
+    private int copy(String value, int offset) {
+        if (value == null) {
+            return -1;
+        }
+        value.getChars(0, value.length(), mText, offset);
+        return value.length();
+    }
+
+    private static String readText(Wigwam wigwam, int field) {
+        switch (field) {
+            case Wigwam.LAZY_DESCRIPTION:
+                return wigwam.readDescription();
+            case Wigwam.LAZY_STREET:
+                return wigwam.readStreet();
+            default:
+                return wigwam.readZip();
+        }
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private static int intern(Map<String, Integer> dictionary, String value) {
+        if (value == null) {
+            return NO_STRING;
+        }
+        Integer index = dictionary.get(value);
+        if (index == null) {
+            index = dictionary.size();
+            dictionary.put(value, index);
+        }
+        return index;
+    }
+
+}
@@ -16,23 +16,30 @@
 
 package com.google.plus.wigwamnow.network;
 
+import com.google.plus.wigwamnow.memory.Trimmable;
+
 import android.graphics.Bitmap;
 import android.support.v4.util.LruCache;
 
 import com.android.volley.toolbox.ImageLoader.ImageCache;
 
 /**
- * Extension of {@link LruCache} for downloading {@link Bitmap}s using Volley.
+ * Extension of {@link LruCache} for downloading {@link Bitmap}s using Volley.  Its budget can be
+ * lowered below {@link #maxSize()} under memory pressure, see {@link Trimmable}.
  *
  * @author samstern@google.com (Sam Stern)
  */
-public class BitmapCache extends LruCache<String, Bitmap> implements ImageCache {
+public class BitmapCache extends LruCache<String, Bitmap> implements ImageCache, Trimmable {
+
+    /** The number of bitmaps currently allowed, at most {@link #maxSize()} **/
+    private volatile int mBudget;
 
     /**
      * See: {@link LruCache#LruCache}
      */
     public BitmapCache(int maxSize) {
         super(maxSize);
+        mBudget = maxSize;
     }
 
     @Override
@@ -42,8 +49,43 @@ public class BitmapCache extends LruCache<String, Bitmap> implements ImageCache
 
     @Override
     public void putBitmap(String url, Bitmap bitmap) {
+        if (mBudget == 0) {
+            // Trimmed completely, don't hold on to anything
+            return;
+        }
         put(url, bitmap);
+        evictToBudget();
     }
 
-}
+    @Override
+    public long getSizeBytes() {
+        long bytes = 0;
+        for (Bitmap bitmap : snapshot().values()) {
+            bytes += bitmap.getRowBytes() * bitmap.getHeight();
+        }
+        return bytes;
+    }
 
+    @Override
+    public void trimToFraction(float fraction) {
+        mBudget = Math.round(maxSize() * fraction);
+        evictToBudget();
+    }
+
+    /**
+     * Evict least recently used bitmaps until the cache is within {@link #mBudget}.
+     */
+    private void evictToBudget() {
+        if (size() <= mBudget) {
+            return;
+        }
+        // The snapshot is ordered from least to most recently used
+        for (String key : snapshot().keySet()) {
+            if (size() <= mBudget) {
+                break;
+            }
+            remove(key);
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.network;
+
+/**
+ * A single caller's interest in an image loaded by the {@link ImagePipeline}.  Cancelling the
+ * handle detaches its listener; the underlying download and decode are dropped once no handle
+ * wants them.  Handles must be used from the main thread.
+ */
+public class ImageHandle {
+
+    /** The pipeline that issued this handle **/
+    private final ImagePipeline mPipeline;
+
+    /** Cache key of the requested image, including the decode size **/
+    final String mKey;
+
+    /** The requested URL **/
+    private final String mUrl;
+
+    /** Priority of the request, see {@link ImagePipeline#PRIORITY_VISIBLE} **/
+    final int mPriority;
+
+    /** Listener for the result **/
+    final ImagePipeline.Listener mListener;
+
+    /** Boolean to determine if the caller no longer wants the image **/
+    private boolean mCanceled;
+
+    /** Width of the image before it was subsampled, or 0 if unknown **/
+    int mSourceWidth;
+
+    /** Height of the image before it was subsampled, or 0 if unknown **/
+    int mSourceHeight;
+
+    ImageHandle(ImagePipeline pipeline, String key, String url, int priority,
+            ImagePipeline.Listener listener) {
+        mPipeline = pipeline;
+        mKey = key;
+        mUrl = url;
+        mPriority = priority;
+        mListener = listener;
+    }
+
+    /**
+     * Stop delivery to this handle's listener and release its share of the request.
+     */
+    public void cancel() {
+        if (!mCanceled) {
+            mCanceled = true;
+            mPipeline.cancel(this);
+        }
+    }
+
+    /**
+     * @return true if {@link #cancel} has been called.
+     */
+    public boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * @return the URL that was requested.
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return the width of the downloaded image before subsampling, or 0 if served from memory.
+     */
+    public int getSourceWidth() {
+        return mSourceWidth;
+    }
+
+    /**
+     * @return the height of the downloaded image before subsampling, or 0 if served from memory.
+     */
+    public int getSourceHeight() {
+        return mSourceHeight;
+    }
+
+}
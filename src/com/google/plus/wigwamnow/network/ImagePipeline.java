@@ -0,0 +1,505 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.network;
+
+import com.google.plus.wigwamnow.concurrent.Lane;
+import com.google.plus.wigwamnow.concurrent.TaskScheduler;
+import com.google.plus.wigwamnow.concurrent.TaskScope;
+import com.google.plus.wigwamnow.metrics.Histogram;
+import com.google.plus.wigwamnow.metrics.Metrics;
+import com.google.plus.wigwamnow.startup.Component;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads images with Volley for the download and disk cache, but decodes them on the
+ * {@link Lane#DECODE} lane of the {@link TaskScheduler} instead of Volley's network
+ * dispatchers, so that image decoding does not hold
+ * up JSON and auth requests.  Decodes for visible rows run before prefetch decodes, and a decode
+ * whose every caller has cancelled (for example because its row was recycled) is dropped before
+ * it starts.  Decoded bitmaps go into the shared {@link BitmapCache}.
+ *
+ * <p>{@link #load} and {@link ImageHandle#cancel} must be called from the main thread, and
+ * listeners are called on the main thread.
+ */
+public class ImagePipeline {
+
+    private static final String TAG = ImagePipeline.class.getSimpleName();
+
+    /** Priority for images that are on screen now **/
+    public static final int PRIORITY_VISIBLE = TaskScheduler.PRIORITY_HIGH;
+
+    /** Priority for images that may be on screen soon **/
+    public static final int PRIORITY_PREFETCH = TaskScheduler.PRIORITY_LOW;
+
+    /** Time spent decoding each image **/
+    private static final Histogram sDecodeLatency = Metrics.histogram("image_decode_ms");
+
+    /** Time each decode waited in the queue before starting **/
+    private static final Histogram sDecodeWait = Metrics.histogram("image_decode_wait_ms");
+
+    /** Number of decodes waiting when a new one is queued **/
+    private static final Histogram sQueueDepth = Metrics.histogram("image_decode_queue_depth");
+
+    /** Decodes dropped because nobody wanted the image any more **/
+    private static final AtomicLong sDropped = Metrics.counter("image_decodes_dropped");
+
+    /**
+     * Receives the result of {@link ImagePipeline#load}.
+     */
+    public interface Listener {
+
+        /**
+         * @param handle the handle returned by {@link ImagePipeline#load}.
+         * @param bitmap the decoded image.
+         * @param isImmediate true if the image came from memory during the call to load.
+         */
+        void onImageLoaded(ImageHandle handle, Bitmap bitmap, boolean isImmediate);
+
+        /**
+         * @param handle the handle returned by {@link ImagePipeline#load}.
+         * @param error the reason the image could not be loaded.
+         */
+        void onImageFailed(ImageHandle handle, VolleyError error);
+
+    }
+
+    /** Queue for downloads, which also provides the disk cache, built on the first download **/
+    private final Component<RequestQueue> mQueue;
+
+    /** Memory cache of decoded images **/
+    private final BitmapCache mCache;
+
+    /** Scheduler for decodes **/
+    private final TaskScheduler mScheduler;
+
+    /** Downloads and decodes in progress, by cache key.  Main thread only **/
+    private final HashMap<String, Batch> mInFlight = new HashMap<String, Batch>();
+
+    /**
+     * @param queue the Volley {@link RequestQueue} to download with, not built until needed.
+     * @param cache the memory cache for decoded images.
+     * @param scheduler the scheduler to decode on.
+     */
+    public ImagePipeline(Component<RequestQueue> queue, BitmapCache cache,
+            TaskScheduler scheduler) {
+        mQueue = queue;
+        mCache = cache;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Determine if an image can be delivered immediately from memory.
+     *
+     * @param url the image URL.
+     * @param maxWidth the maximum decoded width, or 0 for no limit.
+     * @param maxHeight the maximum decoded height, or 0 for no limit.
+     * @return true if the image is in the memory cache.
+     */
+    public boolean isCached(String url, int maxWidth, int maxHeight) {
+        return mCache.getBitmap(cacheKey(url, maxWidth, maxHeight)) != null;
+    }
+
+    /**
+     * Load an image, from memory if possible and otherwise from Volley's disk cache or the
+     * network.  If the image is in memory the listener is called before this method returns.
+     *
+     * @param url the image URL.
+     * @param maxWidth the maximum decoded width, or 0 for no limit.
+     * @param maxHeight the maximum decoded height, or 0 for no limit.
+     * @param priority {@link #PRIORITY_VISIBLE} or {@link #PRIORITY_PREFETCH}.
+     * @param listener the listener for the result.
+     * @return a handle that can be used to cancel the request.
+     */
+    public ImageHandle load(
+            String url, int maxWidth, int maxHeight, int priority, Listener listener) {
+        String key = cacheKey(url, maxWidth, maxHeight);
+        ImageHandle handle = new ImageHandle(this, key, url, priority, listener);
+        Bitmap cached = mCache.getBitmap(key);
+        if (cached != null) {
+            listener.onImageLoaded(handle, cached, true);
+            return handle;
+        }
+
+        Batch batch = mInFlight.get(key);
+        if (batch == null) {
+            batch = new Batch(key, url, maxWidth, maxHeight);
+            mInFlight.put(key, batch);
+            batch.add(handle);
+            mQueue.get().add(new RawImageRequest(batch, false));
+        } else if (batch.add(handle)) {
+            promote(batch);
+        }
+        return handle;
+    }
+
+    /**
+     * Move a batch's queued work up to the batch's new priority, typically when a prefetched image
+     * scrolls into view.  Queued decodes are moved within the decode lane.  Volley fixes a
+     * request's place when it is queued, so a download that has not started is cancelled and
+     * queued again; one that has started, or is being looked up in the disk cache, is left as it
+     * is, and its decode is queued at the new priority when it finishes.
+     */
+    private void promote(Batch batch) {
+        if (batch.mDecode != null) {
+            mScheduler.reprioritize(batch.mDecode, batch.mPriority);
+            return;
+        }
+        RawImageRequest waiting = batch.mRequest;
+        if (waiting == null || !waiting.isWaiting()) {
+            return;
+        }
+        waiting.cancel();
+        mQueue.get().add(new RawImageRequest(batch, waiting.hasMissedCache()));
+    }
+
+    /**
+     * @return the number of decodes waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return mScheduler.getQueueDepth(Lane.DECODE);
+    }
+
+    /**
+     * Detach a cancelled handle, dropping the download or decode if nothing else wants it.
+     *
+     * @param handle the handle that was cancelled.
+     */
+    void cancel(ImageHandle handle) {
+        Batch batch = mInFlight.get(handle.mKey);
+        if (batch != null && batch.remove(handle) && batch.isEmpty()) {
+            batch.mCanceled = true;
+            if (batch.mRequest != null) {
+                batch.mRequest.cancel();
+            }
+            if (batch.mDecode != null) {
+                batch.mDecode.cancel();
+            }
+            mInFlight.remove(handle.mKey);
+        }
+    }
+
+    /**
+     * Queue a downloaded image for decoding.  Called on the main thread.
+     *
+     * @param batch the batch the data belongs to.
+     * @param data the encoded image.
+     */
+    private void enqueueDecode(Batch batch, byte[] data) {
+        if (batch.mCanceled) {
+            sDropped.incrementAndGet();
+            return;
+        }
+        sQueueDepth.record(getQueueDepth());
+        batch.mDecode = new DecodeTask(batch, data);
+        mScheduler.submit(Lane.DECODE, batch.mPriority, TaskScope.APPLICATION, batch.mDecode);
+    }
+
+    /**
+     * Hand a decoded image (or a failure) to every handle still waiting for it.  Called on the
+     * main thread.
+     *
+     * @param batch the batch that finished.
+     * @param bitmap the decoded image, or null on failure.
+     * @param error the failure, if bitmap is null.
+     */
+    private void deliver(Batch batch, Bitmap bitmap, VolleyError error) {
+        if (mInFlight.get(batch.mKey) == batch) {
+            mInFlight.remove(batch.mKey);
+        }
+        if (batch.mCanceled) {
+            return;
+        }
+        if (bitmap != null) {
+            mCache.putBitmap(batch.mKey, bitmap);
+        }
+        for (ImageHandle handle : batch.mHandles) {
+            if (bitmap != null) {
+                handle.mSourceWidth = batch.mSourceWidth;
+                handle.mSourceHeight = batch.mSourceHeight;
+                handle.mListener.onImageLoaded(handle, bitmap, false);
+            } else {
+                handle.mListener.onImageFailed(handle, error);
+            }
+        }
+        batch.mHandles.clear();
+    }
+
+    /**
+     * Decode an image, subsampling it so that it is no smaller than the maximum size but not
+     * needlessly larger.  Called on a decode thread.
+     *
+     * @param batch the batch being decoded, which receives the source dimensions.
+     * @param data the encoded image.
+     * @return the decoded image, or null if it could not be decoded.
+     */
+    private static Bitmap decode(Batch batch, byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        batch.mSourceWidth = options.outWidth;
+        batch.mSourceHeight = options.outHeight;
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = findSampleSize(
+                options.outWidth, options.outHeight, batch.mMaxWidth, batch.mMaxHeight);
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory decoding " + batch.mUrl, e);
+            return null;
+        }
+    }
+
+    /**
+     * Find the largest power of two sample size that keeps the image at least as large as the
+     * requested size.
+     *
+     * @return the sample size, 1 if no limit was requested.
+     */
+    static int findSampleSize(int width, int height, int maxWidth, int maxHeight) {
+        if (maxWidth <= 0 && maxHeight <= 0) {
+            return 1;
+        }
+        double widthRatio = maxWidth > 0 ? (double) width / maxWidth : Double.MAX_VALUE;
+        double heightRatio = maxHeight > 0 ? (double) height / maxHeight : Double.MAX_VALUE;
+        double ratio = Math.min(widthRatio, heightRatio);
+        int sampleSize = 1;
+        while (sampleSize * 2 <= ratio) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return the memory cache key for an image at a decoded size.
+     */
+    private static String cacheKey(String url, int maxWidth, int maxHeight) {
+        return new StringBuilder(url.length() + 16).append("#P").append(maxWidth).append('x')
+                .append(maxHeight).append('#').append(url).toString();
+    }
+
+    /**
+     * All handles waiting for the same image at the same decoded size.
+     */
+    private static class Batch {
+
+        final String mKey;
+
+        final String mUrl;
+
+        final int mMaxWidth;
+
+        final int mMaxHeight;
+
+        /** Handles waiting for the image.  Main thread only **/
+        final ArrayList<ImageHandle> mHandles = new ArrayList<ImageHandle>(2);
+
+        /** Highest (numerically lowest) priority of any waiting handle **/
+        volatile int mPriority = PRIORITY_PREFETCH;
+
+        /** Boolean to determine if every handle has gone away **/
+        volatile boolean mCanceled;
+
+        /** The download, once queued **/
+        RawImageRequest mRequest;
+
+        /** The decode, once queued **/
+        DecodeTask mDecode;
+
+        int mSourceWidth;
+
+        int mSourceHeight;
+
+        Batch(String key, String url, int maxWidth, int maxHeight) {
+            mKey = key;
+            mUrl = url;
+            mMaxWidth = maxWidth;
+            mMaxHeight = maxHeight;
+        }
+
+        /**
+         * @return true if the handle raised the batch's priority.
+         */
+        boolean add(ImageHandle handle) {
+            mHandles.add(handle);
+            if (handle.mPriority < mPriority) {
+                mPriority = handle.mPriority;
+                return true;
+            }
+            return false;
+        }
+
+        boolean remove(ImageHandle handle) {
+            return mHandles.remove(handle);
+        }
+
+        boolean isEmpty() {
+            return mHandles.isEmpty();
+        }
+
+    }
+
+    /**
+     * Volley request that returns the raw bytes of an image, leaving the decode to the pipeline.
+     * Follows the markers Volley's dispatchers add, to tell whether it is still waiting in a queue.
+     */
+    private class RawImageRequest extends Request<byte[]> {
+
+        private final Batch mBatch;
+
+        /**
+         * Priority in Volley's queues, fixed because they are heaps that would be corrupted if it
+         * changed while queued.
+         */
+        private final Priority mPriority;
+
+        /** Boolean to determine if the disk cache has been looked up **/
+        private volatile boolean mCacheTaken;
+
+        /** Boolean to determine if the disk cache missed and the request is queued for download **/
+        private volatile boolean mCacheMissed;
+
+        /** Boolean to determine if a network dispatcher has taken the request **/
+        private volatile boolean mNetworkTaken;
+
+        /**
+         * @param batch the batch to download for.
+         * @param skipCache true if an earlier request for the batch missed the disk cache, so
+         *        this one goes straight to the network queue.  Volley then also skips writing the
+         *        download to the disk cache; the decoded image still goes to the memory cache.
+         */
+        RawImageRequest(Batch batch, boolean skipCache) {
+            super(batch.mUrl, null);
+            mBatch = batch;
+            mPriority = batch.mPriority == PRIORITY_VISIBLE ? Priority.NORMAL : Priority.LOW;
+            mCacheTaken = skipCache;
+            mCacheMissed = skipCache;
+            setShouldCache(!skipCache);
+            batch.mRequest = this;
+        }
+
+        /**
+         * @return true if no dispatcher is working on the request, so it can be queued again.
+         */
+        boolean isWaiting() {
+            return !mNetworkTaken && (!mCacheTaken || mCacheMissed);
+        }
+
+        boolean hasMissedCache() {
+            return mCacheMissed;
+        }
+
+        @Override
+        public void addMarker(String tag) {
+            super.addMarker(tag);
+            if ("cache-queue-take".equals(tag)) {
+                mCacheTaken = true;
+            } else if ("cache-miss".equals(tag) || "cache-hit-expired".equals(tag)) {
+                mCacheMissed = true;
+            } else if ("network-queue-take".equals(tag)) {
+                mNetworkTaken = true;
+            }
+        }
+
+        @Override
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(response.data, HttpHeaderParser.parseCacheHeaders(response));
+        }
+
+        @Override
+        protected void deliverResponse(byte[] data) {
+            enqueueDecode(mBatch, data);
+        }
+
+        @Override
+        public void deliverError(VolleyError error) {
+            deliver(mBatch, null, error);
+        }
+
+    }
+
+    /**
+     * Decode of one downloaded image.
+     */
+    private class DecodeTask extends TaskScheduler.Task<Bitmap> {
+
+        private final Batch mBatch;
+
+        private final byte[] mData;
+
+        private final long mEnqueueTime = SystemClock.uptimeMillis();
+
+        DecodeTask(Batch batch, byte[] data) {
+            mBatch = batch;
+            mData = data;
+        }
+
+        @Override
+        protected Bitmap run() {
+            if (mBatch.mCanceled) {
+                // The view that wanted this image has been recycled
+                return null;
+            }
+            long start = SystemClock.uptimeMillis();
+            sDecodeWait.record(start - mEnqueueTime);
+            Bitmap bitmap = decode(mBatch, mData);
+            sDecodeLatency.record(SystemClock.uptimeMillis() - start);
+            return bitmap;
+        }
+
+        @Override
+        protected void onSuccess(Bitmap bitmap) {
+            if (mBatch.mCanceled) {
+                sDropped.incrementAndGet();
+                return;
+            }
+            deliver(mBatch, bitmap, bitmap == null ? new ParseError() : null);
+        }
+
+        @Override
+        protected void onCancelled() {
+            sDropped.incrementAndGet();
+        }
+
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.network;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.SparseArray;
+import android.widget.AbsListView;
+
+import com.android.volley.VolleyError;
+
+/**
+ * Scroll listener that downloads and decodes images for the rows just beyond the visible part of
+ * a list, in the direction of scroll, so that they are already in the {@link BitmapCache} when the
+ * row is bound.  The size of the window grows with scroll velocity and with the observed image
+ * fetch latency, and prefetches that fall out of the window are cancelled.  Prefetches run at
+ * {@link ImagePipeline#PRIORITY_PREFETCH}, so they never delay the decode of a visible row.
+ */
+public class ImagePrefetcher implements AbsListView.OnScrollListener {
+
+    /** Rows to prefetch even when the list is idle **/
+    private static final int MIN_WINDOW = 2;
+
+    /** Upper bound on rows prefetched at once, to avoid flooding the request queue **/
+    private static final int MAX_WINDOW = 12;
+
+    /** Fetch latency assumed before any prefetch has completed, in milliseconds **/
+    private static final long INITIAL_LATENCY_MS = 400;
+
+    /** Weight of a new sample in the moving averages **/
+    private static final float SMOOTHING = 0.3f;
+
+    /**
+     * Source of image URLs by adapter position.
+     */
+    public interface ImageUrlProvider {
+
+        /**
+         * @return the number of rows in the list.
+         */
+        int getCount();
+
+        /**
+         * @param position the adapter position of a row.
+         * @return the URL of the image for that row, or null if it has none.
+         */
+        String getImageUrl(int position);
+
+    }
+
+    /** Provider of the URLs to prefetch **/
+    private final ImageUrlProvider mProvider;
+
+    /** Pipeline used for both prefetching and display, so they share a cache **/
+    private final ImagePipeline mPipeline;
+
+    /** Rewriter that sizes image URLs the same way the rows do **/
+    private final ImageUrlRewriter mRewriter;
+
+    /** In-flight prefetches, keyed by adapter position **/
+    private final SparseArray<ImageHandle> mInFlight = new SparseArray<ImageHandle>();
+
+    /** First visible position at the previous scroll callback **/
+    private int mLastFirstVisible = -1;
+
+    /** Time of the previous scroll callback that changed the first visible position **/
+    private long mLastScrollTime;
+
+    /** Smoothed scroll velocity in rows per second, always positive **/
+    private float mVelocity;
+
+    /** Direction of the most recent scroll: 1 towards the end of the list, -1 towards the start **/
+    private int mDirection = 1;
+
+    /** Smoothed time for a prefetched image to arrive, in milliseconds **/
+    private float mLatencyMs = INITIAL_LATENCY_MS;
+
+    /**
+     * @param provider the source of image URLs by position.
+     * @param pipeline the {@link ImagePipeline} that the list rows also use.
+     * @param rewriter the {@link ImageUrlRewriter} that the list rows also use.
+     */
+    public ImagePrefetcher(
+            ImageUrlProvider provider, ImagePipeline pipeline, ImageUrlRewriter rewriter) {
+        mProvider = provider;
+        mPipeline = pipeline;
+        mRewriter = rewriter;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState == SCROLL_STATE_IDLE) {
+            // Nothing is moving, fall back to the minimum window in the last direction
+            mVelocity = 0;
+            prefetch(view.getFirstVisiblePosition(), view.getChildCount());
+        }
+    }
+
+    @Override
+    public void onScroll(
+            AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (visibleItemCount == 0 || totalItemCount == 0) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mLastFirstVisible >= 0 && firstVisibleItem != mLastFirstVisible) {
+            int delta = firstVisibleItem - mLastFirstVisible;
+            long elapsed = Math.max(1, now - mLastScrollTime);
+            float rowsPerSecond = Math.abs(delta) * 1000f / elapsed;
+            mVelocity += SMOOTHING * (rowsPerSecond - mVelocity);
+            mDirection = delta > 0 ? 1 : -1;
+        }
+        if (firstVisibleItem != mLastFirstVisible) {
+            mLastFirstVisible = firstVisibleItem;
+            mLastScrollTime = now;
+            prefetch(firstVisibleItem, visibleItemCount);
+        }
+    }
+
+    /**
+     * Cancel every outstanding prefetch, for example when the list is torn down.
+     */
+    public void cancelAll() {
+        for (int i = 0; i < mInFlight.size(); i++) {
+            mInFlight.valueAt(i).cancel();
+        }
+        mInFlight.clear();
+    }
+
+    /**
+     * @return the number of rows that would be prefetched at the current velocity and latency.
+     */
+    int getWindowSize() {
+        // Cover the rows that will scroll into view while an image is in flight
+        int window = MIN_WINDOW + (int) Math.ceil(mVelocity * mLatencyMs / 1000f);
+        return Math.min(MAX_WINDOW, window);
+    }
+
+    /**
+     * Start prefetches for the window beyond the visible rows and cancel those outside it.
+     *
+     * @param firstVisible the first visible adapter position.
+     * @param visibleCount the number of visible rows.
+     */
+    private void prefetch(int firstVisible, int visibleCount) {
+        int count = mProvider.getCount();
+        int window = getWindowSize();
+        int start;
+        int end;
+        if (mDirection > 0) {
+            start = firstVisible + visibleCount;
+            end = Math.min(count, start + window);
+        } else {
+            end = firstVisible;
+            start = Math.max(0, end - window);
+        }
+
+        // Drop anything that has scrolled out of range
+        for (int i = mInFlight.size() - 1; i >= 0; i--) {
+            int position = mInFlight.keyAt(i);
+            if (position < start || position >= end) {
+                mInFlight.valueAt(i).cancel();
+                mInFlight.delete(position);
+            }
+        }
+
+        for (int position = start; position < end; position++) {
+            if (mInFlight.get(position) != null) {
+                continue;
+            }
+            String src = mProvider.getImageUrl(position);
+            if (src == null) {
+                continue;
+            }
+            // Request exactly what the row will request, so the row finds it in the cache
+            if (mRewriter.isWigwamImageCached(mPipeline, src)) {
+                continue;
+            }
+            ImageHandle handle = mRewriter.loadWigwamImage(mPipeline, src,
+                    ImagePipeline.PRIORITY_PREFETCH, new PrefetchListener(position));
+            mInFlight.put(position, handle);
+        }
+    }
+
+    /**
+     * Listener that completes a single prefetch and feeds its latency into the estimate.
+     */
+    private class PrefetchListener implements ImagePipeline.Listener {
+
+        private final int mPosition;
+
+        private final long mStartTime = SystemClock.uptimeMillis();
+
+        PrefetchListener(int position) {
+            mPosition = position;
+        }
+
+        @Override
+        public void onImageLoaded(ImageHandle handle, Bitmap bitmap, boolean isImmediate) {
+            if (isImmediate) {
+                // Delivered synchronously from the cache, nothing was fetched
+                return;
+            }
+            long latency = SystemClock.uptimeMillis() - mStartTime;
+            mLatencyMs += SMOOTHING * (latency - mLatencyMs);
+            mRewriter.onWigwamImageLoaded(handle, bitmap);
+            mInFlight.remove(mPosition);
+        }
+
+        @Override
+        public void onImageFailed(ImageHandle handle, VolleyError error) {
+            mInFlight.remove(mPosition);
+        }
+
+    }
+
+}
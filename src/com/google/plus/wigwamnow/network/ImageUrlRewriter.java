@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.network;
+
+import com.google.plus.wigwamnow.R;
+import com.google.plus.wigwamnow.metrics.Metrics;
+
+import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.Build;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rewrites image URLs so that the image server resizes and recompresses images for the view that
+ * will display them, rather than sending the original upload.  Width and height are rounded up to
+ * a step based on the screen density so that rows share cache entries, and quality drops when the
+ * active network is metered.  The metered state is kept up to date by a connectivity receiver, so
+ * rewriting a URL makes no system calls and every URL built between two network changes agrees.
+ * Hosts that are seen to ignore the parameters fall back to the plain URL, subsampled down to the
+ * target size on the device instead.
+ */
+public class ImageUrlRewriter {
+
+    private static final String TAG = ImageUrlRewriter.class.getSimpleName();
+
+    /** Query parameter for the requested width, in pixels **/
+    static final String PARAM_WIDTH = "w";
+
+    /** Query parameter for the requested height, in pixels **/
+    static final String PARAM_HEIGHT = "h";
+
+    /** Query parameter for the requested JPEG quality, 1-100 **/
+    static final String PARAM_QUALITY = "q";
+
+    /** Width of the preview painted while the full image loads **/
+    static final int THUMBNAIL_WIDTH = 48;
+
+    /** JPEG quality requested on unmetered networks **/
+    static final int QUALITY_DEFAULT = 85;
+
+    /** JPEG quality requested when saving data on metered networks **/
+    static final int QUALITY_DATA_SAVER = 60;
+
+    /** Marks a URL built by {@link #rewrite}, the quality parameter is always appended last **/
+    private static final String QUALITY_MARKER = "&" + PARAM_QUALITY + "=";
+
+    /** Counter name for wigwam images downloaded and decoded **/
+    public static final String METRIC_IMAGES_LOADED = "wigwam_images_loaded";
+
+    /** Counter name for the decoded size of downloaded wigwam images, in bytes **/
+    public static final String METRIC_BYTES_LOADED = "wigwam_image_bytes_loaded";
+
+    /** Count of downloaded wigwam images **/
+    private static final AtomicLong sImagesLoaded = Metrics.counter(METRIC_IMAGES_LOADED);
+
+    /** Total decoded size of downloaded wigwam images **/
+    private static final AtomicLong sBytesLoaded = Metrics.counter(METRIC_BYTES_LOADED);
+
+    /** Fraction of the view size requested when saving data **/
+    private static final float DATA_SAVER_SCALE = 0.75f;
+
+    /** Size step, in dp, that requested dimensions are rounded up to **/
+    private static final int SIZE_STEP_DP = 32;
+
+    /**
+     * How much larger than requested a returned image may be before the server is assumed to have
+     * ignored the size parameters.
+     */
+    private static final float IGNORED_TOLERANCE = 1.5f;
+
+    /** Application context, for connectivity state **/
+    private final Context mContext;
+
+    /** Size step in pixels for the current density bucket **/
+    private final int mSizeStep;
+
+    /** Width of images displayed in a {@link com.google.plus.wigwamnow.views.WigwamView} **/
+    private final int mWigwamImageWidth;
+
+    /** Height of images displayed in a {@link com.google.plus.wigwamnow.views.WigwamView} **/
+    private final int mWigwamImageHeight;
+
+    /** Hosts that returned full-size images for a resized URL **/
+    private final Set<String> mIgnoringHosts = new HashSet<String>();
+
+    /** Boolean to determine if the active network is treated as metered **/
+    private volatile boolean mDataSaver;
+
+    /** Refreshes {@link #mDataSaver} when the active network changes **/
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean dataSaver = readDataSaver();
+            if (dataSaver != mDataSaver) {
+                Log.i(TAG, dataSaver ? "Metered network, saving data" : "Unmetered network");
+                mDataSaver = dataSaver;
+            }
+        }
+    };
+
+    /**
+     * @param context any {@link Context}, the application context is retained.
+     */
+    public ImageUrlRewriter(Context context) {
+        mContext = context.getApplicationContext();
+        DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+        mSizeStep = Math.max(1, Math.round(SIZE_STEP_DP * metrics.density));
+        mWigwamImageWidth = metrics.widthPixels;
+        mWigwamImageHeight =
+                mContext.getResources().getDimensionPixelSize(R.dimen.wigwam_image_height);
+        mDataSaver = readDataSaver();
+        // Lives as long as the process, like the rewriter
+        mContext.registerReceiver(mConnectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * @return the width, in pixels, at which wigwam images are displayed.
+     */
+    public int getWigwamImageWidth() {
+        return mWigwamImageWidth;
+    }
+
+    /**
+     * @return the height, in pixels, at which wigwam images are displayed.
+     */
+    public int getWigwamImageHeight() {
+        return mWigwamImageHeight;
+    }
+
+    /**
+     * Build the URL for a wigwam image sized for a
+     * {@link com.google.plus.wigwamnow.views.WigwamView}.
+     *
+     * @param src the URL of the original image.
+     * @return the rewritten URL, or {@code src} if its host ignores size parameters.
+     */
+    public String wigwamImage(String src) {
+        return rewrite(src, mWigwamImageWidth, mWigwamImageHeight);
+    }
+
+    /**
+     * Build the URL for an image sized to a target view.
+     *
+     * @param src the URL of the original image.
+     * @param width the width of the target view, in pixels.
+     * @param height the height of the target view, in pixels.
+     * @return the rewritten URL, or {@code src} if its host ignores size parameters.
+     */
+    public String rewrite(String src, int width, int height) {
+        if (isIgnoringHost(src)) {
+            return src;
+        }
+        int quality = QUALITY_DEFAULT;
+        if (isDataSaver()) {
+            width = (int) (width * DATA_SAVER_SCALE);
+            height = (int) (height * DATA_SAVER_SCALE);
+            quality = QUALITY_DATA_SAVER;
+        }
+        String url = appendParam(src, PARAM_WIDTH, roundUp(width));
+        url = appendParam(url, PARAM_HEIGHT, roundUp(height));
+        return appendParam(url, PARAM_QUALITY, quality);
+    }
+
+    /**
+     * Build the URL of a very small preview of an image.
+     *
+     * @param src the URL of the original image.
+     * @return the URL of the preview variant, or null if the host cannot produce one.
+     */
+    public String thumbnail(String src) {
+        if (isIgnoringHost(src)) {
+            // The "preview" would be the full original, don't download it twice
+            return null;
+        }
+        return appendParam(src, PARAM_WIDTH, THUMBNAIL_WIDTH);
+    }
+
+    /**
+     * Load a wigwam image through the {@link ImagePipeline}, decoded no smaller than the view.
+     *
+     * @param pipeline the pipeline to use.
+     * @param src the URL of the original image.
+     * @param priority {@link ImagePipeline#PRIORITY_VISIBLE} or
+     *  {@link ImagePipeline#PRIORITY_PREFETCH}.
+     * @param listener the listener for the result.
+     * @return the {@link ImageHandle} for the request.
+     */
+    public ImageHandle loadWigwamImage(ImagePipeline pipeline, String src, int priority,
+            ImagePipeline.Listener listener) {
+        return pipeline.load(
+                wigwamImage(src), mWigwamImageWidth, mWigwamImageHeight, priority, listener);
+    }
+
+    /**
+     * Determine if a wigwam image is in the memory cache, using the same key as
+     * {@link #loadWigwamImage}.
+     *
+     * @param pipeline the pipeline to check.
+     * @param src the URL of the original image.
+     * @return true if the image can be displayed immediately.
+     */
+    public boolean isWigwamImageCached(ImagePipeline pipeline, String src) {
+        return pipeline.isCached(wigwamImage(src), mWigwamImageWidth, mWigwamImageHeight);
+    }
+
+    /**
+     * Record a downloaded wigwam image, and inspect its size before decoding to learn whether its
+     * host honours the size parameters.
+     *
+     * @param handle the handle the image was delivered to.
+     * @param bitmap the decoded image.
+     */
+    public void onWigwamImageLoaded(ImageHandle handle, Bitmap bitmap) {
+        sImagesLoaded.incrementAndGet();
+        sBytesLoaded.addAndGet(bitmap.getRowBytes() * bitmap.getHeight());
+        String requestUrl = handle.getUrl();
+        if (requestUrl.indexOf(QUALITY_MARKER) < 0) {
+            return;
+        }
+        if (handle.getSourceWidth() > roundUp(mWigwamImageWidth) * IGNORED_TOLERANCE
+                && handle.getSourceHeight() > roundUp(mWigwamImageHeight) * IGNORED_TOLERANCE) {
+            String host = Uri.parse(requestUrl).getHost();
+            synchronized (mIgnoringHosts) {
+                if (mIgnoringHosts.add(host)) {
+                    Log.i(TAG, host + " ignores image size parameters, using plain URLs");
+                }
+            }
+        }
+    }
+
+    /**
+     * Determine if the active network should be treated as metered, as of the last network
+     * change.
+     *
+     * @return true if images should be requested at reduced size and quality.
+     */
+    public boolean isDataSaver() {
+        return mDataSaver;
+    }
+
+    /**
+     * Ask the system if the active network is metered.  Makes calls to the system server.
+     */
+    @SuppressLint("NewApi")
+    private boolean readDataSaver() {
+        ConnectivityManager cm =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return cm.isActiveNetworkMetered();
+        }
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.getType() == ConnectivityManager.TYPE_MOBILE;
+    }
+
+    /**
+     * @param src an image URL.
+     * @return true if the URL's host is known to ignore size parameters.
+     */
+    private boolean isIgnoringHost(String src) {
+        synchronized (mIgnoringHosts) {
+            return !mIgnoringHosts.isEmpty() && mIgnoringHosts.contains(Uri.parse(src).getHost());
+        }
+    }
+
+    /**
+     * Round a dimension up to the density-dependent size step.
+     *
+     * @param size a size in pixels.
+     * @return the smallest multiple of the step that is at least {@code size}.
+     */
+    private int roundUp(int size) {
+        return ((size + mSizeStep - 1) / mSizeStep) * mSizeStep;
+    }
+
+    /**
+     * Append a single integer query parameter to a URL.
+     *
+     * @param url the URL to extend, with or without an existing query string.
+     * @param name the parameter name.
+     * @param value the parameter value.
+     * @return the extended URL.
+     */
+    static String appendParam(String url, String name, int value) {
+        char separator = url.indexOf('?') < 0 ? '?' : '&';
+        return url + separator + name + '=' + value;
+    }
+
+}
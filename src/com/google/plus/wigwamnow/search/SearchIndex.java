@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.search;
+
+import com.google.plus.wigwamnow.models.Wigwam;
+import com.google.plus.wigwamnow.models.WigwamTable;
+
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Inverted index over the text of {@link Wigwam}s: name, description and address.  Text is split
+ * into lower-case words of letters and digits, and each word maps to the wigwams containing it
+ * with a weight for where it appears, a match in the name counting most.
+ * <p>
+ * A query matches the wigwams containing every one of its words, each as a whole word or as the
+ * start of one, so results narrow as the user types.  Results are ranked by the summed weights
+ * of the words, with whole-word matches counting double.
+ * <p>
+ * The index is kept up to date with {@link #update}, which only re-indexes the wigwams that were
+ * added or changed, found by a hash of their text.  Thread-safe; the text of a wigwam is read and
+ * split into words without holding the lock, which is taken only to change the postings, so
+ * queries are answered while an update is running.  Updates and queries take time proportional to
+ * the text involved, so neither should run on the main thread.
+ */
+public class SearchIndex {
+
+    /** Weight of a word in the name **/
+    private static final int WEIGHT_NAME = 8;
+
+    /** Weight of a word in the street, city, state or zip **/
+    private static final int WEIGHT_ADDRESS = 3;
+
+    /** Weight of a word in the description **/
+    private static final int WEIGHT_DESCRIPTION = 1;
+
+    /** Offset basis and prime of the 64-bit FNV-1a hash of the text **/
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The wigwams containing a word, by slot, with a weight for each.
+     */
+    private static class Postings {
+
+        int[] mSlots = new int[4];
+
+        int[] mWeights = new int[4];
+
+        int mSize;
+
+        void add(int slot, int weight) {
+            if (mSize == mSlots.length) {
+                mSlots = grow(mSlots);
+                mWeights = grow(mWeights);
+            }
+            mSlots[mSize] = slot;
+            mWeights[mSize] = weight;
+            mSize++;
+        }
+
+        void remove(int slot) {
+            for (int i = 0; i < mSize; i++) {
+                if (mSlots[i] == slot) {
+                    // Order does not matter, move the last one in
+                    mSize--;
+                    mSlots[i] = mSlots[mSize];
+                    mWeights[i] = mWeights[mSize];
+                    return;
+                }
+            }
+        }
+
+    }
+
+    /** Postings of every word, sorted so the words starting with a prefix are adjacent **/
+    private final TreeMap<String, Postings> mWords = new TreeMap<String, Postings>();
+
+    /** Slot of each indexed wigwam, by id **/
+    private final SparseIntArray mSlots = new SparseIntArray();
+
+    /** Id of the wigwam indexed in each slot **/
+    private int[] mSlotIds = new int[16];
+
+    /** Hash of the indexed text of the wigwam in each slot **/
+    private long[] mSlotHashes = new long[16];
+
+    /** Words of the wigwam in each slot, or null if the slot is free **/
+    private String[][] mSlotWords = new String[16][];
+
+    /** Number of slots ever used **/
+    private int mSlotCount;
+
+    /** Slots freed by removed wigwams, for reuse **/
+    private final List<Integer> mFreeSlots = new ArrayList<Integer>();
+
+    /** Held for a whole {@link #update}, so that updates do not interleave **/
+    private final Object mUpdateLock = new Object();
+
+    /**
+     * Make the index hold exactly the wigwams of a catalog.  Wigwams whose text is unchanged
+     * since the last update are not re-indexed, and wigwams no longer present are removed.
+     * Wigwams without an id are not indexed.
+     *
+     * @param table the catalog.
+     */
+    public void update(WigwamTable table) {
+        synchronized (mUpdateLock) {
+            int[] present = new int[table.size()];
+            int count = 0;
+            for (int row = 0; row < table.size(); row++) {
+                if (table.hasId(row)) {
+                    int id = table.getId(row);
+                    put(id, new String[] {
+                            table.getName(row), table.getStreet(row), table.getCity(row),
+                            table.getState(row), table.getZip(row), table.getDescription(row) });
+                    present[count++] = id;
+                }
+            }
+            Arrays.sort(present, 0, count);
+            synchronized (this) {
+                for (int i = mSlots.size() - 1; i >= 0; i--) {
+                    int id = mSlots.keyAt(i);
+                    if (Arrays.binarySearch(present, 0, count, id) < 0) {
+                        remove(id);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a wigwam, or re-index it if its text changed.
+     *
+     * @param wigwam the wigwam, which must have an id.
+     */
+    public void put(Wigwam wigwam) {
+        // Lazy text is decoded without being kept, so indexing does not hold on to it
+        put(wigwam.getId(), new String[] {
+                wigwam.getName(), wigwam.readStreet(), wigwam.getCity(), wigwam.getState(),
+                wigwam.readZip(), wigwam.readDescription() });
+    }
+
+    /**
+     * @param text the name, street, city, state, zip and description.
+     */
+    private void put(int id, String[] text) {
+        long hash = hash(text);
+        synchronized (this) {
+            int slot = mSlots.get(id, -1);
+            if (slot >= 0 && mSlotHashes[slot] == hash) {
+                return;
+            }
+        }
+
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+        addWords(weights, text[0], WEIGHT_NAME);
+        addWords(weights, text[1], WEIGHT_ADDRESS);
+        addWords(weights, text[2], WEIGHT_ADDRESS);
+        addWords(weights, text[3], WEIGHT_ADDRESS);
+        addWords(weights, text[4], WEIGHT_ADDRESS);
+        addWords(weights, text[5], WEIGHT_DESCRIPTION);
+        String[] words = weights.keySet().toArray(new String[weights.size()]);
+
+        synchronized (this) {
+            int slot = mSlots.get(id, -1);
+            if (slot >= 0) {
+                unindex(slot);
+            } else {
+                slot = allocateSlot();
+                mSlots.put(id, slot);
+            }
+            mSlotIds[slot] = id;
+            mSlotHashes[slot] = hash;
+            for (String word : words) {
+                Postings postings = mWords.get(word);
+                if (postings == null) {
+                    postings = new Postings();
+                    mWords.put(word, postings);
+                }
+                postings.add(slot, weights.get(word));
+            }
+            mSlotWords[slot] = words;
+        }
+    }
+
+    /**
+     * Remove a wigwam.
+     *
+     * @param id the id of the wigwam.
+     */
+    public synchronized void remove(int id) {
+        int slot = mSlots.get(id, -1);
+        if (slot < 0) {
+            return;
+        }
+        unindex(slot);
+        mSlots.delete(id);
+        mFreeSlots.add(slot);
+    }
+
+    /**
+     * @return the number of wigwams indexed.
+     */
+    public synchronized int size() {
+        return mSlots.size();
+    }
+
+    /**
+     * Find the wigwams matching a query.
+     *
+     * @param query the text typed by the user.
+     * @return the ids of the matching wigwams, best first, or an empty array if the query has no
+     *         words.
+     */
+    public synchronized int[] search(String query) {
+        List<String> tokens = new ArrayList<String>();
+        tokenize(query, tokens);
+        if (tokens.isEmpty()) {
+            return new int[0];
+        }
+        int[] totals = new int[mSlotCount];
+        int[] best = new int[mSlotCount];
+        // Number of tokens each slot has matched, a slot is dropped once it misses one
+        int[] matched = new int[mSlotCount];
+        for (int t = 0; t < tokens.size(); t++) {
+            String token = tokens.get(t);
+            SortedMap<String, Postings> words = mWords.subMap(token, token + Character.MAX_VALUE);
+            for (Map.Entry<String, Postings> entry : words.entrySet()) {
+                int factor = entry.getKey().length() == token.length() ? 2 : 1;
+                Postings postings = entry.getValue();
+                for (int i = 0; i < postings.mSize; i++) {
+                    int slot = postings.mSlots[i];
+                    int score = postings.mWeights[i] * factor;
+                    if (matched[slot] == t) {
+                        // First word matching this token
+                        matched[slot] = t + 1;
+                        best[slot] = score;
+                        totals[slot] += score;
+                    } else if (matched[slot] == t + 1 && score > best[slot]) {
+                        // A token counts once, for its best word
+                        totals[slot] += score - best[slot];
+                        best[slot] = score;
+                    }
+                }
+            }
+        }
+        // Sort by descending score then id, packed into longs to avoid boxing
+        long[] keys = new long[mSlotCount];
+        int count = 0;
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            if (matched[slot] == tokens.size()) {
+                keys[count++] = ((long) (Integer.MAX_VALUE - totals[slot]) << 32)
+                        | (mSlotIds[slot] & 0xffffffffL);
+            }
+        }
+        Arrays.sort(keys, 0, count);
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = (int) keys[i];
+        }
+        return ids;
+    }
+
+    /**
+     * Split text into lower-case words of letters and digits.
+     *
+     * @param text the text, or null.
+     * @param out the list to add the words to.
+     */
+    public static void tokenize(String text, List<String> out) {
+        if (text == null) {
+            return;
+        }
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean wordChar = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                out.add(text.substring(start, i).toLowerCase(Locale.US));
+                start = -1;
+            }
+        }
+    }
+
+    private void unindex(int slot) {
+        String[] words = mSlotWords[slot];
+        if (words == null) {
+            return;
+        }
+        for (String word : words) {
+            Postings postings = mWords.get(word);
+            postings.remove(slot);
+            if (postings.mSize == 0) {
+                mWords.remove(word);
+            }
+        }
+        mSlotWords[slot] = null;
+    }
+
+    private int allocateSlot() {
+        if (!mFreeSlots.isEmpty()) {
+            return mFreeSlots.remove(mFreeSlots.size() - 1);
+        }
+        if (mSlotCount == mSlotIds.length) {
+            mSlotIds = grow(mSlotIds);
+            long[] hashes = new long[mSlotCount * 2];
+            System.arraycopy(mSlotHashes, 0, hashes, 0, mSlotCount);
+            mSlotHashes = hashes;
+            String[][] words = new String[mSlotCount * 2][];
+            System.arraycopy(mSlotWords, 0, words, 0, mSlotCount);
+            mSlotWords = words;
+        }
+        return mSlotCount++;
+    }
+
+    /**
+     * Add the words of a field, keeping the highest weight of a word found in several fields.
+     */
+    private static void addWords(Map<String, Integer> weights, String text, int weight) {
+        List<String> words = new ArrayList<String>();
+        tokenize(text, words);
+        for (String word : words) {
+            Integer current = weights.get(word);
+            if (current == null || current < weight) {
+                weights.put(word, weight);
+            }
+        }
+    }
+
+    /**
+     * @return a 64-bit FNV-1a hash of the fields, which tells null apart from empty and keeps the
+     *         fields apart.
+     */
+    private static long hash(String[] fields) {
+        long hash = FNV_OFFSET;
+        for (String field : fields) {
+            // A value no char can take starts each field, telling a null field apart
+            hash = (hash ^ (field == null ? 0x10000 : 0x10001)) * FNV_PRIME;
+            if (field != null) {
+                for (int i = 0; i < field.length(); i++) {
+                    hash = (hash ^ field.charAt(i)) * FNV_PRIME;
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+}
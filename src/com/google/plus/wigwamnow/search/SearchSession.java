@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.search;
+
+import com.google.plus.wigwamnow.concurrent.Lane;
+import com.google.plus.wigwamnow.concurrent.TaskScheduler;
+import com.google.plus.wigwamnow.concurrent.TaskScope;
+import com.google.plus.wigwamnow.metrics.Histogram;
+import com.google.plus.wigwamnow.metrics.Metrics;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Runs the queries typed into one search box against a {@link SearchIndex}.  Each change of the
+ * query waits {@link #DEBOUNCE_MS} for the next keystroke before it is run, off the main thread,
+ * and a newer query cancels an older one that has not finished, so only the results for the
+ * latest query are delivered.  Must be used from the main thread, and the listener is called on
+ * the main thread.
+ */
+public class SearchSession {
+
+    /** Time to wait after a change of the query before running it, in milliseconds **/
+    public static final long DEBOUNCE_MS = 250;
+
+    /** Time to run one query against the index **/
+    private static final Histogram sQueryTime = Metrics.histogram("search_query_ms");
+
+    /**
+     * Receives the results of the latest query.
+     */
+    public interface Listener {
+
+        /**
+         * @param query the query.
+         * @param ids the ids of the matching wigwams, best first.
+         */
+        void onSearchResults(String query, int[] ids);
+
+    }
+
+    /** The index to query **/
+    private final SearchIndex mIndex;
+
+    /** Scheduler for the queries **/
+    private final TaskScheduler mScheduler;
+
+    /** Scope of the queries, usually that of the screen with the search box **/
+    private final TaskScope mScope;
+
+    /** Receives the results **/
+    private final Listener mListener;
+
+    /** Handler to wait out the debounce on the main thread **/
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** The latest query **/
+    private String mQuery;
+
+    /** Query being run, or null **/
+    private TaskScheduler.Task<int[]> mTask;
+
+    /** Runs {@link #mQuery} once the user stops typing **/
+    private final Runnable mRunQuery = new Runnable() {
+        @Override
+        public void run() {
+            runQuery(mQuery);
+        }
+    };
+
+    /**
+     * @param index the index to query.
+     * @param scheduler the scheduler for the queries.
+     * @param scope the scope of the queries.
+     * @param listener the listener for the results.
+     */
+    public SearchSession(
+            SearchIndex index, TaskScheduler scheduler, TaskScope scope, Listener listener) {
+        mIndex = index;
+        mScheduler = scheduler;
+        mScope = scope;
+        mListener = listener;
+    }
+
+    /**
+     * Change the query.  The results are delivered once the query has not changed for
+     * {@link #DEBOUNCE_MS}.
+     *
+     * @param query the text in the search box.
+     */
+    public void setQuery(String query) {
+        mQuery = query;
+        cancel();
+        mHandler.postDelayed(mRunQuery, DEBOUNCE_MS);
+    }
+
+    /**
+     * @return the latest query, or null.
+     */
+    public String getQuery() {
+        return mQuery;
+    }
+
+    /**
+     * Drop any query that is waiting or running.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mRunQuery);
+        if (mTask != null) {
+            mTask.cancel();
+            mTask = null;
+        }
+    }
+
+    private void runQuery(final String query) {
+        mTask = mScheduler.submit(Lane.UI_CRITICAL, TaskScheduler.PRIORITY_HIGH,
+                mScope, new TaskScheduler.Task<int[]>() {
+
+                    @Override
+                    protected int[] run() {
+                        long start = SystemClock.uptimeMillis();
+                        int[] ids = mIndex.search(query);
+                        sQueryTime.record(SystemClock.uptimeMillis() - start);
+                        return ids;
+                    }
+
+                    @Override
+                    protected void onSuccess(int[] ids) {
+                        mTask = null;
+                        mListener.onSearchResults(query, ids);
+                    }
+
+                });
+    }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.social;
+
+import com.google.plus.wigwamnow.concurrent.Lane;
+import com.google.plus.wigwamnow.concurrent.TaskScheduler;
+import com.google.plus.wigwamnow.concurrent.TaskScope;
+import com.google.plus.wigwamnow.metrics.Histogram;
+import com.google.plus.wigwamnow.metrics.Metrics;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide owner of hybrid (server-side) authorization.  At most one exchange runs per
+ * {@link SocialProvider} at a time, and callers that arrive while one is in flight wait for its
+ * result instead of starting another.  The credential the server accepted is cached with its
+ * expiry, repeated requests are answered from the cache, and a refresh is started in the
+ * background shortly before the credential expires.  Must be used from the main thread.
+ */
+public class AuthCoordinator {
+
+    private static final String TAG = AuthCoordinator.class.getSimpleName();
+
+    /** How long before expiry a credential is refreshed **/
+    static final long REFRESH_MARGIN_MS = 24 * 60 * 60 * 1000L;
+
+    /** Histogram name for the duration of a hybrid auth exchange **/
+    public static final String METRIC_AUTH_MS = "hybrid_auth_ms";
+
+    /** Counter name for auth requests answered from the cache **/
+    public static final String METRIC_CACHE_HITS = "hybrid_auth_cache_hits";
+
+    /** Counter name for auth requests that joined an exchange in flight **/
+    public static final String METRIC_JOINED = "hybrid_auth_joined";
+
+    /** Duration of exchanges **/
+    private static final Histogram sAuthMs = Metrics.histogram(METRIC_AUTH_MS);
+
+    /** Requests answered from the cache **/
+    private static final AtomicLong sCacheHits = Metrics.counter(METRIC_CACHE_HITS);
+
+    /** Requests that joined an exchange in flight **/
+    private static final AtomicLong sJoined = Metrics.counter(METRIC_JOINED);
+
+    /**
+     * A credential accepted by the server.
+     */
+    public static class Credential {
+
+        /** The token or code that was sent **/
+        final String mToken;
+
+        /** Expiry in milliseconds since the epoch, {@link Long#MAX_VALUE} if it never expires **/
+        final long mExpiresAt;
+
+        public Credential(String token, long expiresAt) {
+            mToken = token;
+            mExpiresAt = expiresAt;
+        }
+
+        public String getToken() {
+            return mToken;
+        }
+
+        public long getExpiresAt() {
+            return mExpiresAt;
+        }
+
+    }
+
+    /**
+     * Receives the result of {@link #authenticate} on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param credential the credential the server accepted, or null if the exchange failed.
+         */
+        void onAuthResult(Credential credential);
+
+    }
+
+    /**
+     * Per-provider state.
+     */
+    private static class Entry {
+
+        /** The cached credential, if any **/
+        Credential mCredential;
+
+        /** Listeners waiting for the exchange in flight, null if none is in flight **/
+        List<Listener> mWaiting;
+
+        /** Starts the proactive refresh **/
+        Runnable mRefresh;
+
+        /** Incremented by {@link AuthCoordinator#invalidate}, to ignore exchanges in flight **/
+        int mGeneration;
+
+    }
+
+    /** Application context, for background refreshes **/
+    private final Context mContext;
+
+    /** Scheduler for the exchanges **/
+    private final TaskScheduler mScheduler;
+
+    /** State by provider, providers are singletons so identity is enough **/
+    private final Map<SocialProvider, Entry> mEntries = new HashMap<SocialProvider, Entry>();
+
+    /** Handler to schedule refreshes on the main thread **/
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param context any {@link Context}, the application context is retained.
+     * @param scheduler the scheduler to run exchanges on.
+     */
+    public AuthCoordinator(Context context, TaskScheduler scheduler) {
+        mContext = context.getApplicationContext();
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Make sure the server holds a valid credential for a provider.  Answers from the cache if the
+     * credential is not close to expiry, joins the exchange in flight if there is one, and starts
+     * a new exchange otherwise.
+     *
+     * @param provider the provider to authorize.
+     * @param activity the activity that asked, used for any user interaction.
+     * @param listener the listener for the result, may be null.
+     */
+    public void authenticate(SocialProvider provider, Activity activity, Listener listener) {
+        Entry entry = getEntry(provider);
+        Credential cached = entry.mCredential;
+        if (cached != null && !provider.isCredentialStale(cached)
+                && System.currentTimeMillis() < cached.mExpiresAt - REFRESH_MARGIN_MS) {
+            sCacheHits.incrementAndGet();
+            if (listener != null) {
+                listener.onAuthResult(cached);
+            }
+            return;
+        }
+        if (entry.mWaiting != null) {
+            sJoined.incrementAndGet();
+        } else {
+            entry.mWaiting = new ArrayList<Listener>();
+            exchange(provider, entry, activity);
+        }
+        if (listener != null) {
+            entry.mWaiting.add(listener);
+        }
+    }
+
+    /**
+     * Drop the cached credential for a provider, such as when the user signs out.  Listeners
+     * waiting for an exchange in flight are told it failed, and its result is ignored, so the
+     * next request starts a new exchange.
+     *
+     * @param provider the provider.
+     */
+    public void invalidate(SocialProvider provider) {
+        Entry entry = mEntries.get(provider);
+        if (entry == null) {
+            return;
+        }
+        entry.mCredential = null;
+        entry.mGeneration++;
+        mHandler.removeCallbacks(entry.mRefresh);
+        List<Listener> waiting = entry.mWaiting;
+        entry.mWaiting = null;
+        if (waiting != null) {
+            for (Listener listener : waiting) {
+                listener.onAuthResult(null);
+            }
+        }
+    }
+
+    /**
+     * @param provider a provider.
+     * @return the cached credential, or null.
+     */
+    public Credential getCredential(SocialProvider provider) {
+        Entry entry = mEntries.get(provider);
+        return entry == null ? null : entry.mCredential;
+    }
+
+    private Entry getEntry(final SocialProvider provider) {
+        Entry entry = mEntries.get(provider);
+        if (entry == null) {
+            entry = new Entry();
+            entry.mRefresh = new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "Refreshing " + provider.getName() + " credential");
+                    Entry refreshed = mEntries.get(provider);
+                    if (refreshed.mWaiting == null) {
+                        refreshed.mWaiting = new ArrayList<Listener>();
+                        exchange(provider, refreshed, null);
+                    }
+                }
+            };
+            mEntries.put(provider, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Run a provider's exchange on the network lane and hand the result to every waiting listener.
+     */
+    private void exchange(final SocialProvider provider, final Entry entry,
+            final Activity activity) {
+        final long start = System.currentTimeMillis();
+        final int generation = entry.mGeneration;
+        // Someone is waiting unless this is a proactive refresh
+        int priority =
+                activity == null ? TaskScheduler.PRIORITY_NORMAL : TaskScheduler.PRIORITY_HIGH;
+        mScheduler.submit(Lane.NETWORK, priority, TaskScope.APPLICATION,
+                new TaskScheduler.Task<Credential>() {
+
+                    @Override
+                    protected Credential run() {
+                        return provider.exchangeCredential(mContext, activity);
+                    }
+
+                    @Override
+                    protected void onSuccess(Credential credential) {
+                        onExchanged(provider, entry, generation, start, credential);
+                    }
+
+                    @Override
+                    protected void onFailure(Exception e) {
+                        Log.e(TAG, provider.getName() + " hybrid auth threw", e);
+                        onExchanged(provider, entry, generation, start, null);
+                    }
+
+                });
+    }
+
+    /**
+     * Cache the result of an exchange and hand it to every waiting listener.
+     */
+    private void onExchanged(SocialProvider provider, Entry entry, int generation, long start,
+            Credential credential) {
+        long elapsed = System.currentTimeMillis() - start;
+        sAuthMs.record(elapsed);
+        Log.d(TAG, provider.getName() + " hybrid auth "
+                + (credential == null ? "failed" : "succeeded") + " in " + elapsed + "ms");
+
+        if (generation != entry.mGeneration) {
+            // Signed out while the exchange ran, its listeners were already told
+            return;
+        }
+        mHandler.removeCallbacks(entry.mRefresh);
+        if (credential != null) {
+            entry.mCredential = credential;
+            long delay = credential.mExpiresAt - REFRESH_MARGIN_MS - System.currentTimeMillis();
+            if (credential.mExpiresAt != Long.MAX_VALUE && delay > 0) {
+                // If it is already inside the margin, the next request will retry
+                mHandler.postDelayed(entry.mRefresh, delay);
+            }
+        }
+        List<Listener> waiting = entry.mWaiting;
+        entry.mWaiting = null;
+        for (Listener listener : waiting) {
+            listener.onAuthResult(credential);
+        }
+    }
+
+}
@@ -20,22 +20,19 @@ import com.google.plus.wigwamnow.R;
 import com.google.plus.wigwamnow.WigwamDetailActivity;
 import com.google.plus.wigwamnow.WigwamNow;
 import com.google.plus.wigwamnow.models.Wigwam;
+import com.google.plus.wigwamnow.upload.UploadItem;
+import com.google.plus.wigwamnow.upload.UploadOutbox;
 
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.app.ProgressDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
 import com.facebook.FacebookException;
 import com.facebook.FacebookRequestError;
 import com.facebook.HttpMethod;
@@ -50,8 +47,10 @@ import com.facebook.widget.WebDialog.OnCompleteListener;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
 
 /**
@@ -82,21 +81,19 @@ public class FacebookProvider extends SocialProvider {
     /** List of permissions needed for posting to Facebook **/
     private static final List<String> PERMISSIONS = Arrays.asList("publish_stream");
 
-    /** Array of SocialFeatures that this SocialProvider implements **/
-    public static SocialFeature[] sSupportedFeatures = {
+    /** SocialFeatures that this SocialProvider implements **/
+    private static final EnumSet<SocialFeature> FEATURES = EnumSet.of(
         SocialFeature.SHARE,
         SocialFeature.STRUCTURED_SHARE,
         SocialFeature.RENT,
         SocialFeature.HYBRID_AUTH,
-        SocialFeature.POST_PHOTO
-    };
-    
-    /** Progress dialog display during long-running actions **/
-    private ProgressDialog mProgressDialog;
+        SocialFeature.POST_PHOTO);
 
-    @Override
-    public boolean supports(SocialFeature feature) {
-        return (Arrays.asList(sSupportedFeatures).contains(feature));
+    /**
+     * Use {@link SocialProvider#get} for the shared instance.
+     */
+    FacebookProvider() {
+        super(FEATURES);
     }
 
     /**
@@ -140,109 +137,76 @@ public class FacebookProvider extends SocialProvider {
     }
 
     /**
-     * Create a rental action for the {@link Wigwam} on the Open Graph.
+     * Create a rental action for the {@link Wigwam} on the Open Graph.  The action is queued in the
+     * {@link SocialActionOutbox} and sent in the background.
      */
     @Override
     public boolean rent(Wigwam wigwam, Activity activity) {
-        // Write an OpenGraph action to Facebook
-        Session session = Session.getActiveSession();
-
-        if (session == null || !session.isOpened()) {
-            return false;
-        }
-
-        if (!hasPublishPermissions()) {
-            // Get user's permission to post OG Actions
-            requestPublishPermissions(session, activity);
-            return false;
-        }
-
-        String postingString = activity.getResources().getString(R.string.posting);
-        showProgressDialog(postingString, activity);
-
-        final Wigwam toShare = wigwam;
-        final Activity hostActivity = activity;
-        AsyncTask<Void, Void, Response> task = new AsyncTask<Void, Void, Response>() {
-
-            @Override
-            protected Response doInBackground(Void... params) {
-                RentAction rentAction = GraphObject.Factory.create(RentAction.class);
-                WigwamGraphObject wigwamObject = GraphObject.Factory.create(
-                        WigwamGraphObject.class);
-                // Set wigwam URL
-                String host = hostActivity.getResources().getString(R.string.external_host);
-                String wigwamUrl = host + "/wigwams/" + toShare.getId().toString();
-                wigwamObject.setUrl(wigwamUrl);
-                // Add wigwam
-                rentAction.setWigwam(wigwamObject);
-                // Post to OpenGraph
-                Request request = new Request(
-                        Session.getActiveSession(), RENT_ACTION_PATH, null, HttpMethod.POST);
-                request.setGraphObject(rentAction);
-                return request.executeAndWait();
-            }
-
-            @Override
-            protected void onPostExecute(Response response) {
-                onPostActionResponse(response, hostActivity);
-            }
-
-        };
-        task.execute();
-        
-        return true;
+        return enqueueAction(SocialAction.Type.RENT, wigwam, activity);
     }
     
     /**
-     * Create a share action for the {@link Wigwam} on the Open Graph.
+     * Create a share action for the {@link Wigwam} on the Open Graph.  The action is queued in the
+     * {@link SocialActionOutbox} and sent in the background.
      */
     @Override
     public boolean structuredShare(Wigwam wigwam, Activity activity) {
-        
+        return enqueueAction(SocialAction.Type.STRUCTURED_SHARE, wigwam, activity);
+    }
+
+    /**
+     * Queue an Open Graph action, asking for publish permissions first if needed.  The outbox
+     * holds the action until they are granted.
+     *
+     * @return false if there is no open session to post with.
+     */
+    private boolean enqueueAction(SocialAction.Type type, Wigwam wigwam, Activity activity) {
         Session session = Session.getActiveSession();
         if (session == null || !session.isOpened()) {
             return false;
         }
+
+        String host = activity.getResources().getString(R.string.external_host);
+        String wigwamUrl = host + "/wigwams/" + Integer.toString(wigwam.getId());
+        WigwamNow.getSocialActionOutbox().enqueue(type, wigwam.getId(), wigwamUrl);
+
         if (!hasPublishPermissions()) {
             // Get user's permission to post OG Actions
             requestPublishPermissions(session, activity);
-            return false;
         }
-        
-        final Activity hostActivity = activity;
-        
-        String postingString = activity.getResources().getString(R.string.posting);
-        showProgressDialog(postingString, activity);
-
-        final Wigwam toShare = wigwam;
-        AsyncTask<Void, Void, Response> task = new AsyncTask<Void, Void, Response>() {
-
-            @Override
-            protected Response doInBackground(Void... params) {
-                ShareAction shareAction = GraphObject.Factory.create(ShareAction.class);
-                WigwamGraphObject wigwamObject = GraphObject.Factory.create(WigwamGraphObject.class);
-                // Set wigwam URL
-                String host = hostActivity.getResources().getString(R.string.external_host);
-                String wigwamUrl = host + "/wigwams/" + toShare.getId().toString();
-                wigwamObject.setUrl(wigwamUrl);
-                // Add wigwam
-                shareAction.setWigwam(wigwamObject);
-                // Post to OpenGraph
-                Request request = new Request(
-                        Session.getActiveSession(), SHARE_ACTION_PATH, null, HttpMethod.POST);
-                request.setGraphObject(shareAction);
-                return request.executeAndWait();
-            }
-
-            @Override
-            protected void onPostExecute(Response response) {
-                onPostActionResponse(response, hostActivity);
-            }
+        return true;
+    }
 
-        };
+    /**
+     * Build the Graph API request for a queued Open Graph action.  The action's key is sent as the
+     * {@code ref} so that repeated attempts can be matched up.
+     *
+     * @param session the session to post with.
+     * @param action the queued action.
+     * @return the request, ready to execute.
+     */
+    static Request newActionRequest(Session session, SocialAction action) {
+        WigwamGraphObject wigwamObject = GraphObject.Factory.create(WigwamGraphObject.class);
+        wigwamObject.setUrl(action.getWigwamUrl());
+
+        OpenGraphAction graphAction;
+        String path;
+        if (action.getType() == SocialAction.Type.RENT) {
+            RentAction rentAction = GraphObject.Factory.create(RentAction.class);
+            rentAction.setWigwam(wigwamObject);
+            graphAction = rentAction;
+            path = RENT_ACTION_PATH;
+        } else {
+            ShareAction shareAction = GraphObject.Factory.create(ShareAction.class);
+            shareAction.setWigwam(wigwamObject);
+            graphAction = shareAction;
+            path = SHARE_ACTION_PATH;
+        }
+        graphAction.setProperty("ref", action.getKey());
 
-        task.execute();
-        return true;
+        Request request = new Request(session, path, null, HttpMethod.POST);
+        request.setGraphObject(graphAction);
+        return request;
     }
 
     /**
@@ -251,55 +215,101 @@ public class FacebookProvider extends SocialProvider {
      * @return true if the app is authorized to publish on behalf of the user.
      */
     private boolean hasPublishPermissions() {
-        Session session = Session.getActiveSession();
+        return hasPublishPermissions(Session.getActiveSession());
+    }
+
+    /**
+     * Determines if a session has the publish_stream permission.
+     *
+     * @param session an open Facebook session.
+     * @return true if the app is authorized to publish on behalf of the user.
+     */
+    static boolean hasPublishPermissions(Session session) {
         List<String> permissions = session.getPermissions();
         return (permissions.containsAll(PERMISSIONS));
     }
 
+    /**
+     * Determine if a failed request may succeed if sent again later.
+     *
+     * @param error the error from a Graph API request.
+     * @return true for server, throttling and connection errors.
+     */
+    public static boolean isTransientError(FacebookRequestError error) {
+        switch (error.getCategory()) {
+            case SERVER:
+            case THROTTLING:
+            case CLIENT:
+                // CLIENT covers connection failures, where no response was received
+                return true;
+            default:
+                return false;
+        }
+    }
+
     /** 
-     * Send the <code>access_token</code> to the server for authorization.
+     * Send the <code>access_token</code> to the server for authorization.  The
+     * {@link AuthCoordinator} skips the request if the server already has the current token.
      */
     @Override
     public void hybridAuth(Activity activity) {
-        String host = activity.getResources().getString(R.string.external_host);
-        final String endpoint = host + "/auth/facebook/hybrid.json";
-        // Send the Facebook access_token, which is portable, to the server alone with the Date
-        // when it expires.
-        String fbAccessToken = Session.getActiveSession().getAccessToken();
-        Date fbAccessTokenExpires = Session.getActiveSession().getExpirationDate();
+        WigwamNow.getAuthCoordinator().authenticate(this, activity, null);
+    }
+
+    /**
+     * Send the access token, which is portable, to the server along with the Date when it
+     * expires.  A token close to expiry is given a chance to be extended first.
+     */
+    @Override
+    protected AuthCoordinator.Credential exchangeCredential(Context context, Activity activity) {
+        Session session = Session.getActiveSession();
+        if (session == null || !session.isOpened()) {
+            return null;
+        }
+        long remaining = session.getExpirationDate().getTime() - System.currentTimeMillis();
+        if (remaining < AuthCoordinator.REFRESH_MARGIN_MS) {
+            // Any Graph call lets the SDK extend a token that is due for it
+            Request.newMeRequest(session, null).executeAndWait();
+        }
+
+        String host = context.getResources().getString(R.string.external_host);
+        String endpoint = host + "/auth/facebook/hybrid.json";
+        String fbAccessToken = session.getAccessToken();
+        Date fbAccessTokenExpires = session.getExpirationDate();
         JSONObject params = new JSONObject();
         try {
             params.put("access_token", fbAccessToken);
             params.put("expires_at", fbAccessTokenExpires.toString());
         } catch (JSONException e) {
             Log.e(TAG, "JSON Exception", e);
+            return null;
         }
 
-        JsonObjectRequest jor = new JsonObjectRequest(
-                com.android.volley.Request.Method.POST,
-                endpoint,
-                params,
-                new com.android.volley.Response.Listener<JSONObject>() {
-                    @Override
-                    public void onResponse(JSONObject json) {
-                        Log.i(TAG, json.toString());
-                    }
-                },
-                new com.android.volley.Response.ErrorListener() {
-                    @Override
-                    public void onErrorResponse(VolleyError e) {
-                        Log.e(TAG, "FB Auth Error", e);
-                    }     
-                });
-        WigwamNow.getQueue().add(jor);
+        JSONObject json = postAndWait(endpoint, params);
+        if (json == null) {
+            return null;
+        }
+        Log.i(TAG, json.toString());
+        return new AuthCoordinator.Credential(fbAccessToken, fbAccessTokenExpires.getTime());
+    }
+
+    /**
+     * The cached token is stale once the session holds a different one.
+     */
+    @Override
+    protected boolean isCredentialStale(AuthCoordinator.Credential credential) {
+        Session session = Session.getActiveSession();
+        return session == null || !credential.getToken().equals(session.getAccessToken());
     }
     
     /**
-     * Post a photo from a {@link Uri} to the user's WigwamNow album.
+     * Post a photo from a {@link Uri} to the user's WigwamNow album.  The photo is queued in the
+     * {@link UploadOutbox}, which keeps retrying it in the background if the upload fails, and the
+     * activity shows its progress.
      */
     @Override
     public boolean postPhoto(Uri photoUri, Activity activity) {
-        final WigwamDetailActivity wda = (WigwamDetailActivity) activity;
+        WigwamDetailActivity wda = (WigwamDetailActivity) activity;
         
         Session session = Session.getActiveSession();       
         if (!hasPublishPermissions()) {
@@ -307,20 +317,9 @@ public class FacebookProvider extends SocialProvider {
             return false;
         }
         
-        String postingPhotoString = activity.getResources().getString(R.string.posting_photo);
-        showProgressDialog(postingPhotoString, activity);
-        
-        Request.Callback callback = new Request.Callback() {
-            @Override
-            public void onCompleted(Response response) {
-                onPostActionResponse(response, wda);
-            }      
-        };
-        
-        Bitmap bitmap = BitmapFactory.decodeFile(photoUri.getPath());
-        Request request = Request.newUploadPhotoRequest(session, bitmap, callback);
-        request.executeAsync(); 
-        
+        UploadItem queued = WigwamNow.getUploadOutbox()
+                .enqueue(wda.getWigwam().getId(), new File(photoUri.getPath()));
+        wda.showUpload(queued);
         return true;
     }
     
@@ -431,9 +430,6 @@ public class FacebookProvider extends SocialProvider {
      * @param response the action result.
      */
     public void onPostActionResponse(Response response, Activity activity) {
-        // Dismiss the progress spinner if it's showing
-        dismissProgressDialog();
-
         PostResponse postResponse = response.getGraphObjectAs(PostResponse.class);
         if (postResponse != null && postResponse.getId() != null) {
             String dialogBody = "Action posted.  ID: " + postResponse.getId();
@@ -448,22 +444,6 @@ public class FacebookProvider extends SocialProvider {
         }
     }
     
-    /**
-     * Display a String in a progress dialog.
-     * 
-     * @param message the String to display
-     */
-    private void showProgressDialog(String message, Activity activity) {
-        mProgressDialog = ProgressDialog.show(activity, "", message, true);
-    }
-    
-    private void dismissProgressDialog() {
-        if (mProgressDialog != null) {
-            mProgressDialog.dismiss();
-            mProgressDialog = null;
-        }
-    }
-
     /**
      * Graph response allowing typed access to an ID.
      */
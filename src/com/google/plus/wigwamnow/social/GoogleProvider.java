@@ -30,23 +30,19 @@ import com.google.plus.wigwamnow.WigwamNow;
 import com.google.plus.wigwamnow.models.Wigwam;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
+import android.content.res.Resources;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.android.volley.Request;
-import com.android.volley.Response;
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
-
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.EnumSet;
 
 /**
  * An implementation of {@link SocialProvider} to handle all logic associated with Google APIs
@@ -64,19 +60,20 @@ public class GoogleProvider extends SocialProvider {
     /** Request code for identification with {@link PlusClientFragment} **/
     public static int REQUEST_CODE_TOKEN_AUTH = 9001;
    
-    /** Boolean to determine if sending hybrid auth is pending **/
-    private boolean mPendingCodeSend = false;
+    /** Account name of the last user to authorize, for background refreshes **/
+    private volatile String mAccountName;
 
-    /** Array of SocialFeatures that this SocialProvider implements **/
-    public static SocialFeature[] sSupportedFeatures = {
+    /** SocialFeatures that this SocialProvider implements **/
+    private static final EnumSet<SocialFeature> FEATURES = EnumSet.of(
         SocialFeature.SHARE,
         SocialFeature.RENT,
-        SocialFeature.HYBRID_AUTH
-    };
+        SocialFeature.HYBRID_AUTH);
 
-    @Override
-    public boolean supports(SocialFeature feature) {
-        return (Arrays.asList(sSupportedFeatures).contains(feature));
+    /**
+     * Use {@link SocialProvider#get} for the shared instance.
+     */
+    GoogleProvider() {
+        super(FEATURES);
     }
 
     /**
@@ -142,7 +139,8 @@ public class GoogleProvider extends SocialProvider {
     }
 
     /**
-     * Initiate server-side authorization by sending a one time code to the server.
+     * Initiate server-side authorization by sending a one time code to the server.  The
+     * {@link AuthCoordinator} makes sure only one code is fetched and sent at a time.
      */
     @Override
     public void hybridAuth(final Activity activity) {
@@ -151,108 +149,90 @@ public class GoogleProvider extends SocialProvider {
             throw new IllegalArgumentException("Activity must host a PlusClient!");
         }
         
-        final PlusClientHostActivity clientHost = (PlusClientHostActivity) activity;
+        WigwamNow.getAuthCoordinator().authenticate(this, activity,
+                new AuthCoordinator.Listener() {
+                    @Override
+                    public void onAuthResult(AuthCoordinator.Credential credential) {
+                        if (credential != null && activity instanceof MainActivity) {
+                            ((MainActivity) activity).recordCodeSent(
+                                    SocialProviderConstants.GOOGLE, 1);
+                        }
+                    }
+                });
+    }
+    
+    /**
+     * Get a one time code with {@link GoogleAuthUtil#getToken} and send it to the server, which
+     * exchanges it for its own tokens.  See
+     * {@link "https://developers.google.com/+/web/signin/server-side-flow"}
+     */
+    @Override
+    protected AuthCoordinator.Credential exchangeCredential(Context context,
+            final Activity activity) {
+        if (activity != null) {
+            mAccountName = ((PlusClientHostActivity) activity).getPlusClient().getAccountName();
+        }
+        if (mAccountName == null) {
+            // A background refresh before anyone signed in
+            return null;
+        }
         
         // Create the hybrid authorization resources
-        final String clientId = activity.getResources().getString(R.string.plus_client_id);
-        final String[] activities = activity.getResources()
-                .getStringArray(R.array.visible_activities);
-        final String[] scopes = activity.getResources().getStringArray(R.array.plus_scopes);
-        final String scopeString = "oauth2:server:client_id:" + clientId + ":api_scope:" +
+        Resources res = context.getResources();
+        String clientId = res.getString(R.string.plus_client_id);
+        String[] activities = res.getStringArray(R.array.visible_activities);
+        String[] scopes = res.getStringArray(R.array.plus_scopes);
+        String scopeString = "oauth2:server:client_id:" + clientId + ":api_scope:" +
                 TextUtils.join(" ", scopes);
 
-        final Bundle appActivities = new Bundle();
+        Bundle appActivities = new Bundle();
         appActivities.putString(GoogleAuthUtil.KEY_REQUEST_VISIBLE_ACTIVITIES,
                 TextUtils.join(" ", activities));
 
-        AsyncTask<Void, Void, String> task = new AsyncTask<Void, Void, String>() {
-            
-            final Activity hostActivity = activity;
-            
-            @Override
-            protected String doInBackground(Void... params) {
-                try {
-                    return GoogleAuthUtil.getToken(
-                            hostActivity,
-                            clientHost.getPlusClient().getAccountName(),
-                            scopeString,
-                            appActivities);
-                } catch (IOException transientEx) {
-                    // Network or server error, try later
-                    Log.e(TAG, transientEx.toString(), transientEx);
-                    return null;
-                } catch (UserRecoverableAuthException e) {
-                    // Recover (with e.getIntent())
-                    Log.e(TAG, e.toString(), e);
-                    Intent recover = e.getIntent();
-                    hostActivity.startActivityForResult(recover, REQUEST_CODE_TOKEN_AUTH);
-                } catch (GoogleAuthException authEx) {
-                    // The call is not ever expected to succeed and should not be retried.
-                    Log.e(TAG, authEx.toString(), authEx);
-                    return null;
-                } catch (Exception e) {
-                    Log.e(TAG, e.toString(), e);
-                    throw new RuntimeException(e);
-                }
-
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(String code) {
-                Log.d(TAG, "Authorization code retrieved:" + code);
-                if (code != null && !mPendingCodeSend) {
-                    mPendingCodeSend = true;
-                    initGoogleHybridFlow(code, hostActivity);
-                }
+        String code;
+        try {
+            code = GoogleAuthUtil.getToken(context, mAccountName, scopeString, appActivities);
+        } catch (IOException transientEx) {
+            // Network or server error, try later
+            Log.e(TAG, transientEx.toString(), transientEx);
+            return null;
+        } catch (final UserRecoverableAuthException e) {
+            // Recover (with e.getIntent()), only possible with an activity to start it from
+            Log.e(TAG, e.toString(), e);
+            if (activity != null) {
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        activity.startActivityForResult(e.getIntent(), REQUEST_CODE_TOKEN_AUTH);
+                    }
+                });
             }
-
-        };
-        task.execute();
-
-    }
-    
-    /**
-     * Initiate the hybrid authorization flow with Google+ by sending the one time code to the
-     * server.  See {@link "https://developers.google.com/+/web/signin/server-side-flow"}
-     * 
-     * @param code the one time authorization flow, retrieved from {@link GoogleAuthUtil#getToken}
-     */
-    private void initGoogleHybridFlow(String code, final Activity activity) {
-        String host = activity.getResources().getString(R.string.external_host);
-        final String endpoint = host + "/auth/gplus/hybrid.json";
+            return null;
+        } catch (GoogleAuthException authEx) {
+            // The call is not ever expected to succeed and should not be retried.
+            Log.e(TAG, authEx.toString(), authEx);
+            return null;
+        }
+        Log.d(TAG, "Authorization code retrieved:" + code);
+        
         // Send the one time code and the Android redirect uri to the server, so the server can get
         // an access_token
+        String endpoint = res.getString(R.string.external_host) + "/auth/gplus/hybrid.json";
         JSONObject params = new JSONObject();
         try {
             params.put("code", code);
-            params.put("redirect_uri", activity.getResources().getString(R.string.redirect_uri));
+            params.put("redirect_uri", res.getString(R.string.redirect_uri));
         } catch (JSONException e1) {
             Log.e(TAG, "JSON Exception", e1);
-            return;
+            return null;
         }
-        
-        JsonObjectRequest jor = new JsonObjectRequest(
-                Request.Method.POST, 
-                endpoint,
-                params,
-                new Response.Listener<JSONObject>() {
-                    @Override
-                    public void onResponse(JSONObject json) {
-                        mPendingCodeSend = false;
-                        // TODO(samstern): Refactor into listener
-                        ((MainActivity) activity).recordCodeSent(SocialProviderConstants.GOOGLE, 1);
-                        Log.i(TAG, json.toString());
-                    }     
-                },
-                new Response.ErrorListener() {
-                    @Override
-                    public void onErrorResponse(VolleyError e) {
-                        mPendingCodeSend = false;
-                        Log.e(TAG, "Code seding error", e);
-                    }
-                });
-        WigwamNow.getQueue().add(jor);
+        JSONObject json = postAndWait(endpoint, params);
+        if (json == null) {
+            return null;
+        }
+        Log.i(TAG, json.toString());
+        // The server keeps its own refresh token, so there is nothing to renew on this side
+        return new AuthCoordinator.Credential(code, Long.MAX_VALUE);
     }
 
     @Override
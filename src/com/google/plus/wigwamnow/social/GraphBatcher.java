@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.social;
+
+import com.google.plus.wigwamnow.concurrent.Lane;
+import com.google.plus.wigwamnow.concurrent.TaskScheduler;
+import com.google.plus.wigwamnow.concurrent.TaskScope;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.facebook.Request;
+import com.facebook.RequestBatch;
+import com.facebook.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects Graph API requests made within a short window and sends them as a single Graph batch,
+ * so that several actions cost one round trip.  Each caller's {@link Callback} receives the
+ * response to its own request on the main thread.  The batch is sent through a {@link Transport}
+ * which can be replaced by a stub.  Must be used from the main thread.
+ */
+public class GraphBatcher {
+
+    private static final String TAG = GraphBatcher.class.getSimpleName();
+
+    /** Default time to wait for more requests before sending a batch **/
+    public static final long DEFAULT_WINDOW_MS = 250;
+
+    /** Most requests the Graph API accepts in one batch **/
+    public static final int MAX_BATCH_SIZE = 50;
+
+    /**
+     * Receives the response to a single request of a batch.
+     */
+    public interface Callback {
+
+        /**
+         * @param response the response to the request, which may carry an error, or null if the
+         *  batch did not answer the request.
+         */
+        void onResponse(Response response);
+
+    }
+
+    /**
+     * Sends a batch and waits for the responses.  Called on a background thread.
+     */
+    public interface Transport {
+
+        /**
+         * @param batch the requests to send.
+         * @return one response per request, in the order of the batch.
+         */
+        List<Response> execute(RequestBatch batch);
+
+    }
+
+    /**
+     * {@link Transport} that sends batches with the Facebook SDK.
+     */
+    public static class SdkTransport implements Transport {
+
+        @Override
+        public List<Response> execute(RequestBatch batch) {
+            return Request.executeBatchAndWait(batch);
+        }
+
+    }
+
+    /** Scheduler to send the batches on **/
+    private final TaskScheduler mScheduler;
+
+    /** Transport for the batches **/
+    private final Transport mTransport;
+
+    /** Time to wait for more requests before sending a batch **/
+    private final long mWindowMs;
+
+    /** Requests collected in the current window **/
+    private List<Request> mRequests = new ArrayList<Request>();
+
+    /** Callbacks for {@link #mRequests}, by position **/
+    private List<Callback> mCallbacks = new ArrayList<Callback>();
+
+    /** Handler to close the window on the main thread **/
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Sends the current batch when the window closes **/
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public GraphBatcher(TaskScheduler scheduler, Transport transport) {
+        this(scheduler, transport, DEFAULT_WINDOW_MS);
+    }
+
+    /**
+     * @param scheduler the scheduler to send the batches on.
+     * @param transport the transport for the batches.
+     * @param windowMs the time to wait for more requests before sending a batch.
+     */
+    public GraphBatcher(TaskScheduler scheduler, Transport transport, long windowMs) {
+        mScheduler = scheduler;
+        mTransport = transport;
+        mWindowMs = windowMs;
+    }
+
+    /**
+     * Add a request to the current batch, opening a new window if there is none.  The request's
+     * own {@link Request.Callback} is not used.
+     *
+     * @param request the request to send.
+     * @param callback the callback for its response.
+     */
+    public void add(Request request, Callback callback) {
+        mRequests.add(request);
+        mCallbacks.add(callback);
+        if (mRequests.size() >= MAX_BATCH_SIZE) {
+            flush();
+        } else if (mRequests.size() == 1) {
+            mHandler.postDelayed(mFlushRunnable, mWindowMs);
+        }
+    }
+
+    /**
+     * Send the current batch immediately.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mRequests.isEmpty()) {
+            return;
+        }
+        final List<Request> requests = mRequests;
+        final List<Callback> callbacks = mCallbacks;
+        mRequests = new ArrayList<Request>();
+        mCallbacks = new ArrayList<Callback>();
+
+        mScheduler.submit(Lane.NETWORK, TaskScheduler.PRIORITY_NORMAL, TaskScope.APPLICATION,
+                new TaskScheduler.Task<List<Response>>() {
+
+                    @Override
+                    protected List<Response> run() {
+                        return mTransport.execute(new RequestBatch(requests));
+                    }
+
+                    @Override
+                    protected void onSuccess(List<Response> responses) {
+                        deliver(requests, callbacks, responses);
+                    }
+
+                    @Override
+                    protected void onFailure(Exception e) {
+                        Log.e(TAG, "Batch of " + requests.size() + " failed", e);
+                        deliver(requests, callbacks, new ArrayList<Response>());
+                    }
+
+                });
+    }
+
+    /**
+     * Hand each response to the callback of the request it answers.  Responses are matched by
+     * the request they carry, falling back to their position in the batch.
+     */
+    private void deliver(List<Request> requests, List<Callback> callbacks,
+            List<Response> responses) {
+        Response[] matched = new Response[requests.size()];
+        for (int i = 0; i < responses.size(); i++) {
+            Response response = responses.get(i);
+            int index = requests.indexOf(response.getRequest());
+            if (index < 0) {
+                index = i;
+            }
+            if (index < matched.length && matched[index] == null) {
+                matched[index] = response;
+            }
+        }
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i] == null) {
+                Log.e(TAG, "No response for request " + i + " of " + matched.length);
+            }
+            callbacks.get(i).onResponse(matched[i]);
+        }
+    }
+
+}
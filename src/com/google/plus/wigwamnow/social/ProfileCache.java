@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.social;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.plus.PlusClient;
+import com.google.android.gms.plus.model.people.Person;
+import com.google.plus.wigwamnow.R;
+import com.google.plus.wigwamnow.concurrent.Lane;
+import com.google.plus.wigwamnow.concurrent.TaskScheduler;
+import com.google.plus.wigwamnow.concurrent.TaskScope;
+import com.google.plus.wigwamnow.memory.Trimmable;
+import com.google.plus.wigwamnow.metrics.Metrics;
+import com.google.plus.wigwamnow.models.Profile;
+import com.google.plus.wigwamnow.network.ImageHandle;
+import com.google.plus.wigwamnow.network.ImagePipeline;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.volley.VolleyError;
+import com.facebook.Request;
+import com.facebook.Response;
+import com.facebook.Session;
+import com.facebook.model.GraphUser;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the signed-in user's profile for each provider: name, id and an avatar already scaled
+ * to the header's size.  Profiles are kept on disk, so the header can be drawn as soon as the
+ * screen appears, and refreshed from the provider only once they are older than
+ * {@link #TTL_MS}, with at most one refresh per provider in flight.  Avatars are dropped from
+ * memory under memory pressure and read back from disk.  Must be used from the main thread.
+ */
+public class ProfileCache implements Trimmable {
+
+    private static final String TAG = ProfileCache.class.getSimpleName();
+
+    /** How long a profile is used before it is refreshed **/
+    static final long TTL_MS = 60 * 60 * 1000;
+
+    /** Name of the {@link SharedPreferences} holding the profiles **/
+    private static final String PREFS_NAME = "profile_cache";
+
+    /** Key for the provider of the most recent profile **/
+    private static final String KEY_CURRENT = "current";
+
+    /** Counter name for refreshes skipped because the profile was fresh or loading **/
+    public static final String METRIC_HITS = "profile_cache_hits";
+
+    /** Counter name for requests made to a provider **/
+    public static final String METRIC_FETCHES = "profile_fetches";
+
+    /** Refreshes skipped **/
+    private static final AtomicLong sHits = Metrics.counter(METRIC_HITS);
+
+    /** Requests made **/
+    private static final AtomicLong sFetches = Metrics.counter(METRIC_FETCHES);
+
+    /**
+     * Receives changes on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param provider the {@link SocialProviderConstants} value whose profile or avatar
+         *  changed, see {@link ProfileCache#getProfile} and {@link ProfileCache#getAvatar}.
+         */
+        void onProfileChanged(int provider);
+
+        /**
+         * @param provider the {@link SocialProviderConstants} value whose refresh failed.
+         */
+        void onProfileFailed(int provider);
+
+    }
+
+    /**
+     * Cached state of one provider.
+     */
+    private static class Entry {
+
+        Profile mProfile;
+
+        /** Avatar scaled to the header, null if not loaded or trimmed **/
+        Bitmap mAvatar;
+
+        /** When the profile was fetched, in milliseconds since the epoch **/
+        long mFetchedAt;
+
+        /** Boolean to determine if a refresh is in flight **/
+        boolean mLoading;
+
+        /** Identity of the session or client being loaded for, to ignore stale answers **/
+        Object mOwner;
+
+        /** The avatar download in flight, if any **/
+        ImageHandle mAvatarHandle;
+
+    }
+
+    /** Application context **/
+    private final Context mContext;
+
+    /** Pipeline for avatar downloads **/
+    private final ImagePipeline mPipeline;
+
+    /** Scheduler for avatar files **/
+    private final TaskScheduler mScheduler;
+
+    /** Persisted profiles **/
+    private final SharedPreferences mPrefs;
+
+    /** Width and height of avatars, in pixels **/
+    private final int mAvatarSize;
+
+    /** State by {@link SocialProviderConstants} value **/
+    private final SparseArray<Entry> mEntries = new SparseArray<Entry>();
+
+    /** Registered listeners **/
+    private final List<Listener> mListeners = new ArrayList<Listener>();
+
+    /** Provider of the most recent profile, or {@link SocialProviderConstants#NONE} **/
+    private int mCurrent;
+
+    /**
+     * Create a cache and load the profiles persisted by a previous process.
+     *
+     * @param context any {@link Context}, the application context is retained.
+     * @param pipeline the pipeline for avatar downloads.
+     * @param scheduler the scheduler for avatar files.
+     */
+    public ProfileCache(Context context, ImagePipeline pipeline, TaskScheduler scheduler) {
+        mContext = context.getApplicationContext();
+        mPipeline = pipeline;
+        mScheduler = scheduler;
+        mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mAvatarSize = mContext.getResources().getDimensionPixelSize(R.dimen.profile_avatar_size);
+        mCurrent = mPrefs.getInt(KEY_CURRENT, SocialProviderConstants.NONE);
+        load(SocialProviderConstants.FACEBOOK);
+        load(SocialProviderConstants.GOOGLE);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return the provider of the most recent profile, or {@link SocialProviderConstants#NONE}.
+     */
+    public int getCurrentProvider() {
+        return mCurrent;
+    }
+
+    /**
+     * @param provider a {@link SocialProviderConstants} value.
+     * @return the cached profile, possibly older than {@link #TTL_MS}, or null.
+     */
+    public Profile getProfile(int provider) {
+        Entry entry = mEntries.get(provider);
+        return entry == null ? null : entry.mProfile;
+    }
+
+    /**
+     * @param provider a {@link SocialProviderConstants} value.
+     * @return the cached avatar, or null if it is not in memory yet.
+     */
+    public Bitmap getAvatar(int provider) {
+        Entry entry = mEntries.get(provider);
+        return entry == null ? null : entry.mAvatar;
+    }
+
+    /**
+     * Refresh the Facebook profile if it is missing or expired and no refresh is in flight.
+     *
+     * @param session an open session.
+     */
+    public void refreshFacebook(final Session session) {
+        final Entry entry = startRefresh(SocialProviderConstants.FACEBOOK, session);
+        if (entry == null) {
+            return;
+        }
+        Request.newMeRequest(session, new Request.GraphUserCallback() {
+            @Override
+            public void onCompleted(GraphUser user, Response response) {
+                if (entry.mOwner != session) {
+                    // Signed out while loading
+                    return;
+                }
+                if (user != null) {
+                    String avatarUrl = "https://graph.facebook.com/" + user.getId()
+                            + "/picture?width=" + mAvatarSize + "&height=" + mAvatarSize;
+                    onLoaded(SocialProviderConstants.FACEBOOK, entry, new Profile(
+                            SocialProviderConstants.FACEBOOK, user.getId(), user.getName(),
+                            avatarUrl));
+                } else {
+                    Log.e(TAG, String.valueOf(response.getError()));
+                    onFailed(SocialProviderConstants.FACEBOOK, entry);
+                }
+            }
+        }).executeAsync();
+    }
+
+    /**
+     * Refresh the Google+ profile if it is missing or expired and no refresh is in flight.
+     *
+     * @param plusClient a connected client.
+     */
+    public void refreshPlus(final PlusClient plusClient) {
+        final Entry entry = startRefresh(SocialProviderConstants.GOOGLE, plusClient);
+        if (entry == null) {
+            return;
+        }
+        plusClient.loadPerson(new PlusClient.OnPersonLoadedListener() {
+            @Override
+            public void onPersonLoaded(ConnectionResult status, Person person) {
+                if (entry.mOwner != plusClient) {
+                    return;
+                }
+                if (status.getErrorCode() == ConnectionResult.SUCCESS && person != null) {
+                    onLoaded(SocialProviderConstants.GOOGLE, entry, new Profile(
+                            SocialProviderConstants.GOOGLE, person.getId(),
+                            person.getDisplayName(), sizePlusImage(person.getImage().getUrl())));
+                } else {
+                    Log.e(TAG, "Could not load person: " + status);
+                    onFailed(SocialProviderConstants.GOOGLE, entry);
+                }
+            }
+        }, "me");
+    }
+
+    /**
+     * Forget every profile, such as when the user signs out.
+     */
+    public void clear() {
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry entry = mEntries.valueAt(i);
+            if (entry.mAvatarHandle != null) {
+                entry.mAvatarHandle.cancel();
+            }
+            // Answers in flight are for the previous user
+            entry.mOwner = null;
+            avatarFile(mEntries.keyAt(i)).delete();
+        }
+        mEntries.clear();
+        mCurrent = SocialProviderConstants.NONE;
+        mPrefs.edit().clear().commit();
+    }
+
+    @Override
+    public long getSizeBytes() {
+        long size = 0;
+        for (int i = 0; i < mEntries.size(); i++) {
+            Bitmap avatar = mEntries.valueAt(i).mAvatar;
+            if (avatar != null) {
+                size += avatar.getRowBytes() * avatar.getHeight();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void trimToFraction(float fraction) {
+        if (fraction > 0f) {
+            // Avatars are tiny, only give them up when everything goes
+            return;
+        }
+        for (int i = 0; i < mEntries.size(); i++) {
+            mEntries.valueAt(i).mAvatar = null;
+        }
+    }
+
+    /**
+     * Decide whether a refresh is needed and mark it in flight.
+     *
+     * @return the entry to refresh, or null if the profile is fresh or already loading.
+     */
+    private Entry startRefresh(int provider, Object owner) {
+        Entry entry = getEntry(provider);
+        if (entry.mOwner == owner && (entry.mLoading
+                || System.currentTimeMillis() < entry.mFetchedAt + TTL_MS)) {
+            sHits.incrementAndGet();
+            if (entry.mProfile != null && entry.mAvatar == null && !entry.mLoading
+                    && entry.mAvatarHandle == null) {
+                // Trimmed under memory pressure
+                loadAvatarFile(provider, entry);
+            }
+            return null;
+        }
+        if (entry.mOwner == null && entry.mProfile != null
+                && System.currentTimeMillis() < entry.mFetchedAt + TTL_MS) {
+            // Persisted by a previous process for the same, still signed-in, user
+            sHits.incrementAndGet();
+            entry.mOwner = owner;
+            return null;
+        }
+        sFetches.incrementAndGet();
+        entry.mOwner = owner;
+        entry.mLoading = true;
+        return entry;
+    }
+
+    private void onLoaded(int provider, Entry entry, Profile profile) {
+        entry.mLoading = false;
+        entry.mFetchedAt = System.currentTimeMillis();
+        boolean avatarChanged = entry.mProfile == null || entry.mAvatar == null
+                || !profile.getImageUrl().equals(entry.mProfile.getImageUrl());
+        entry.mProfile = profile;
+        mCurrent = provider;
+        save(provider, entry);
+        notifyChanged(provider);
+        if (avatarChanged) {
+            loadAvatar(provider, entry);
+        }
+    }
+
+    private void onFailed(int provider, Entry entry) {
+        entry.mLoading = false;
+        for (Listener listener : new ArrayList<Listener>(mListeners)) {
+            listener.onProfileFailed(provider);
+        }
+    }
+
+    /**
+     * Download an avatar, then scale it to the header's size and save it off the main thread.
+     */
+    private void loadAvatar(final int provider, final Entry entry) {
+        if (entry.mAvatarHandle != null) {
+            entry.mAvatarHandle.cancel();
+        }
+        final Profile profile = entry.mProfile;
+        // An avatar in memory is delivered before load returns, so there is no handle to keep
+        boolean immediate = mPipeline.isCached(profile.getImageUrl(), mAvatarSize, mAvatarSize);
+        ImageHandle avatarHandle = mPipeline.load(profile.getImageUrl(), mAvatarSize, mAvatarSize,
+                ImagePipeline.PRIORITY_VISIBLE, new ImagePipeline.Listener() {
+
+                    @Override
+                    public void onImageLoaded(ImageHandle handle, Bitmap bitmap,
+                            boolean isImmediate) {
+                        entry.mAvatarHandle = null;
+                        storeAvatar(provider, entry, profile, bitmap);
+                    }
+
+                    @Override
+                    public void onImageFailed(ImageHandle handle, VolleyError error) {
+                        entry.mAvatarHandle = null;
+                        Log.w(TAG, "Could not load avatar: " + error);
+                    }
+
+                });
+        entry.mAvatarHandle = immediate ? null : avatarHandle;
+    }
+
+    private void storeAvatar(final int provider, final Entry entry, final Profile profile,
+            final Bitmap bitmap) {
+        mScheduler.submit(Lane.DISK, TaskScheduler.PRIORITY_NORMAL, TaskScope.APPLICATION,
+                new TaskScheduler.Task<Bitmap>() {
+
+                    @Override
+                    protected Bitmap run() throws IOException {
+                        Bitmap scaled = bitmap;
+                        if (bitmap.getWidth() != mAvatarSize
+                                || bitmap.getHeight() != mAvatarSize) {
+                            scaled = Bitmap.createScaledBitmap(
+                                    bitmap, mAvatarSize, mAvatarSize, true);
+                        }
+                        OutputStream out = new BufferedOutputStream(
+                                new FileOutputStream(avatarFile(provider)));
+                        try {
+                            scaled.compress(Bitmap.CompressFormat.PNG, 100, out);
+                        } finally {
+                            out.close();
+                        }
+                        return scaled;
+                    }
+
+                    @Override
+                    protected void onSuccess(Bitmap scaled) {
+                        if (entry.mProfile == profile) {
+                            entry.mAvatar = scaled;
+                            notifyChanged(provider);
+                        }
+                    }
+
+                });
+    }
+
+    /**
+     * Read a persisted profile, and its avatar off the main thread.
+     */
+    private void load(int provider) {
+        String id = mPrefs.getString(key("id", provider), null);
+        if (id == null) {
+            return;
+        }
+        Entry entry = getEntry(provider);
+        entry.mProfile = new Profile(provider, id, mPrefs.getString(key("name", provider), null),
+                mPrefs.getString(key("image", provider), null));
+        entry.mFetchedAt = mPrefs.getLong(key("fetched", provider), 0);
+        loadAvatarFile(provider, entry);
+    }
+
+    private void loadAvatarFile(final int provider, final Entry entry) {
+        final Profile profile = entry.mProfile;
+        mScheduler.submit(Lane.DISK, TaskScheduler.PRIORITY_HIGH, TaskScope.APPLICATION,
+                new TaskScheduler.Task<Bitmap>() {
+
+                    @Override
+                    protected Bitmap run() {
+                        return BitmapFactory.decodeFile(avatarFile(provider).getPath());
+                    }
+
+                    @Override
+                    protected void onSuccess(Bitmap avatar) {
+                        if (entry.mProfile != profile) {
+                            return;
+                        }
+                        if (avatar == null) {
+                            loadAvatar(provider, entry);
+                        } else if (entry.mAvatar == null) {
+                            entry.mAvatar = avatar;
+                            notifyChanged(provider);
+                        }
+                    }
+
+                });
+    }
+
+    private void save(int provider, Entry entry) {
+        Profile profile = entry.mProfile;
+        mPrefs.edit()
+                .putInt(KEY_CURRENT, provider)
+                .putString(key("id", provider), profile.getId())
+                .putString(key("name", provider), profile.getName())
+                .putString(key("image", provider), profile.getImageUrl())
+                .putLong(key("fetched", provider), entry.mFetchedAt)
+                .commit();
+    }
+
+    private void notifyChanged(int provider) {
+        for (Listener listener : new ArrayList<Listener>(mListeners)) {
+            listener.onProfileChanged(provider);
+        }
+    }
+
+    private Entry getEntry(int provider) {
+        Entry entry = mEntries.get(provider);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(provider, entry);
+        }
+        return entry;
+    }
+
+    private File avatarFile(int provider) {
+        return new File(mContext.getCacheDir(), "avatar_" + provider + ".png");
+    }
+
+    private static String key(String field, int provider) {
+        return field + "_" + provider;
+    }
+
+    /**
+     * @return a Google+ image URL asking for the avatar size instead of the default 50px.
+     */
+    private String sizePlusImage(String url) {
+        if (url.matches(".*[?&]sz=\\d+.*")) {
+            return url.replaceFirst("([?&])sz=\\d+", "$1sz=" + mAvatarSize);
+        }
+        return url + (url.indexOf('?') < 0 ? '?' : '&') + "sz=" + mAvatarSize;
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.social;
+
+import org.codehaus.jackson.annotate.JsonAutoDetect;
+import org.codehaus.jackson.annotate.JsonAutoDetect.Visibility;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * An Open Graph action waiting in the {@link SocialActionOutbox}.  Persisted as JSON so that
+ * actions survive the process being killed.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonAutoDetect(getterVisibility = Visibility.NONE, isGetterVisibility = Visibility.NONE)
+public class SocialAction {
+
+    /**
+     * The kinds of action the outbox can send.
+     */
+    public enum Type {
+        RENT,
+        STRUCTURED_SHARE
+    }
+
+    /** Idempotency key, sent with every attempt so the action can be recognized if repeated **/
+    @JsonProperty("key")
+    private String mKey;
+
+    /** The kind of action **/
+    @JsonProperty("type")
+    private Type mType;
+
+    /** Id of the wigwam the action is about **/
+    @JsonProperty("wigwam_id")
+    private int mWigwamId;
+
+    /** External URL of the wigwam, the action's object **/
+    @JsonProperty("wigwam_url")
+    private String mWigwamUrl;
+
+    /** Time the action was enqueued, in milliseconds since the epoch **/
+    @JsonProperty("enqueued_at")
+    private long mEnqueuedAt;
+
+    /** Number of attempts made so far **/
+    @JsonProperty("attempts")
+    private int mAttempts;
+
+    /** Earliest time of the next attempt, in milliseconds since the epoch **/
+    @JsonProperty("next_attempt_at")
+    private long mNextAttemptAt;
+
+    public SocialAction() {}
+
+    SocialAction(String key, Type type, int wigwamId, String wigwamUrl, long enqueuedAt) {
+        mKey = key;
+        mType = type;
+        mWigwamId = wigwamId;
+        mWigwamUrl = wigwamUrl;
+        mEnqueuedAt = enqueuedAt;
+    }
+
+    /**
+     * Copy an action, so it can be saved off the main thread while the original changes.
+     */
+    SocialAction(SocialAction other) {
+        mKey = other.mKey;
+        mType = other.mType;
+        mWigwamId = other.mWigwamId;
+        mWigwamUrl = other.mWigwamUrl;
+        mEnqueuedAt = other.mEnqueuedAt;
+        mAttempts = other.mAttempts;
+        mNextAttemptAt = other.mNextAttemptAt;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public int getWigwamId() {
+        return mWigwamId;
+    }
+
+    public String getWigwamUrl() {
+        return mWigwamUrl;
+    }
+
+    public long getEnqueuedAt() {
+        return mEnqueuedAt;
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    void setAttempts(int attempts) {
+        mAttempts = attempts;
+    }
+
+    public long getNextAttemptAt() {
+        return mNextAttemptAt;
+    }
+
+    void setNextAttemptAt(long nextAttemptAt) {
+        mNextAttemptAt = nextAttemptAt;
+    }
+
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.social;
+
+import com.google.plus.wigwamnow.concurrent.AtomicFiles;
+import com.google.plus.wigwamnow.concurrent.Lane;
+import com.google.plus.wigwamnow.concurrent.TaskScheduler;
+import com.google.plus.wigwamnow.concurrent.TaskScope;
+import com.google.plus.wigwamnow.metrics.Histogram;
+import com.google.plus.wigwamnow.metrics.Metrics;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.facebook.FacebookRequestError;
+import com.facebook.Response;
+import com.facebook.Session;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Disk-backed queue of Open Graph actions.  Actions are enqueued immediately, so the UI can treat
+ * them as done, and sent in the background once a Facebook session with publish permissions is
+ * open.  Requests go through a {@link GraphBatcher}, so actions due together share one round
+ * trip.  Every attempt carries the action's idempotency key as the Open Graph {@code ref},
+ * transient failures are retried with exponential backoff, and the queue is persisted so actions
+ * survive the process being killed.  The file is read and written on the {@link Lane#DISK} lane;
+ * until it has been read, actions can be enqueued but none are sent.  Must be used from the main
+ * thread.
+ */
+public class SocialActionOutbox {
+
+    private static final String TAG = SocialActionOutbox.class.getSimpleName();
+
+    /** Name of the file the outbox is persisted to, in the app's files directory **/
+    private static final String OUTBOX_FILENAME = "social_outbox.json";
+
+    /** Number of attempts before an action is dropped **/
+    static final int MAX_ATTEMPTS = 8;
+
+    /** Delay before the first retry, doubled for every further attempt **/
+    static final long BASE_BACKOFF_MS = 2 * 1000;
+
+    /** Longest delay between attempts **/
+    static final long MAX_BACKOFF_MS = 15 * 60 * 1000;
+
+    /** Counter name for the number of actions waiting to be sent **/
+    public static final String METRIC_QUEUE_DEPTH = "social_outbox_depth";
+
+    /** Histogram name for the duration of a single send attempt **/
+    public static final String METRIC_SEND_MS = "social_action_send_ms";
+
+    /** Histogram name for the time from enqueueing an action to its delivery **/
+    public static final String METRIC_DELIVERY_MS = "social_action_delivery_ms";
+
+    /** Number of actions waiting to be sent **/
+    private static final AtomicLong sQueueDepth = Metrics.counter(METRIC_QUEUE_DEPTH);
+
+    /** Duration of send attempts **/
+    private static final Histogram sSendMs = Metrics.histogram(METRIC_SEND_MS);
+
+    /** Time from enqueueing to delivery **/
+    private static final Histogram sDeliveryMs = Metrics.histogram(METRIC_DELIVERY_MS);
+
+    /**
+     * Receives the outcome of actions on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param action an action that was delivered.
+         */
+        void onActionSent(SocialAction action);
+
+        /**
+         * @param action an action that was dropped after a permanent failure, or too many.
+         * @param error the last error, or null if the last attempt got no response.
+         */
+        void onActionFailed(SocialAction action, FacebookRequestError error);
+
+    }
+
+    /** The file the outbox is persisted to **/
+    private final File mFile;
+
+    /** Actions waiting to be sent, oldest first **/
+    private final List<SocialAction> mActions = new ArrayList<SocialAction>();
+
+    /** Registered listeners **/
+    private final List<Listener> mListeners = new ArrayList<Listener>();
+
+    /** Handler to schedule retries on the main thread **/
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Source of jitter for backoff delays **/
+    private final Random mRandom = new Random();
+
+    /** Reused to read and write the outbox file **/
+    private final ObjectMapper mMapper = new ObjectMapper();
+
+    /** Batches the requests for the actions **/
+    private final GraphBatcher mBatcher;
+
+    /** Scheduler to read and write the outbox file on **/
+    private final TaskScheduler mScheduler;
+
+    /** Boolean to determine if the persisted actions have been read **/
+    private boolean mLoaded;
+
+    /** Copy of the actions waiting to be written, or null if no write is queued **/
+    private final AtomicReference<List<SocialAction>> mUnsaved =
+            new AtomicReference<List<SocialAction>>();
+
+    /** Actions whose request is in flight **/
+    private final Set<SocialAction> mSending = new HashSet<SocialAction>();
+
+    /** Pumps the outbox when a retry becomes due **/
+    private final Runnable mPumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    /**
+     * Create an outbox and start loading any actions persisted by a previous process.
+     *
+     * @param context any {@link Context}, used for its files directory.
+     * @param scheduler the scheduler to read and write the outbox file on.
+     * @param batcher the batcher to send requests through.
+     */
+    public SocialActionOutbox(Context context, TaskScheduler scheduler, GraphBatcher batcher) {
+        mScheduler = scheduler;
+        mBatcher = batcher;
+        mFile = new File(context.getApplicationContext().getFilesDir(), OUTBOX_FILENAME);
+        load();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return the number of actions waiting to be sent, including those in flight.
+     */
+    public int getQueueDepth() {
+        return mActions.size();
+    }
+
+    /**
+     * Queue an action and send it as soon as possible.
+     *
+     * @param type the kind of action.
+     * @param wigwamId the id of the wigwam the action is about.
+     * @param wigwamUrl the external URL of the wigwam.
+     * @return the new action.
+     */
+    public SocialAction enqueue(SocialAction.Type type, int wigwamId, String wigwamUrl) {
+        // The ref parameter is limited to 50 alphanumeric characters
+        String key = UUID.randomUUID().toString().replace("-", "");
+        SocialAction action =
+                new SocialAction(key, type, wigwamId, wigwamUrl, System.currentTimeMillis());
+        mActions.add(action);
+        save();
+        pump();
+        return action;
+    }
+
+    /**
+     * Send every action that is due and not already in flight.  Does nothing until a Facebook
+     * session with publish permissions is open, so should be called again once one is.
+     */
+    public void pump() {
+        mHandler.removeCallbacks(mPumpRunnable);
+        if (!mLoaded) {
+            // Pumped again once loaded
+            return;
+        }
+        Session session = Session.getActiveSession();
+        if (session == null || !session.isOpened()
+                || !FacebookProvider.hasPublishPermissions(session)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long nextDue = Long.MAX_VALUE;
+        for (SocialAction action : mActions) {
+            if (mSending.contains(action)) {
+                continue;
+            }
+            if (action.getNextAttemptAt() <= now) {
+                send(session, action);
+            } else {
+                nextDue = Math.min(nextDue, action.getNextAttemptAt());
+            }
+        }
+        if (nextDue != Long.MAX_VALUE) {
+            mHandler.postDelayed(mPumpRunnable, nextDue - now);
+        }
+    }
+
+    /**
+     * Add a single action to the current batch.
+     */
+    private void send(Session session, final SocialAction action) {
+        mSending.add(action);
+        action.setAttempts(action.getAttempts() + 1);
+        save();
+
+        final long start = System.currentTimeMillis();
+        mBatcher.add(FacebookProvider.newActionRequest(session, action),
+                new GraphBatcher.Callback() {
+                    @Override
+                    public void onResponse(Response response) {
+                        sSendMs.record(System.currentTimeMillis() - start);
+                        mSending.remove(action);
+                        onAttemptFinished(action, response);
+                        pump();
+                    }
+                });
+    }
+
+    /**
+     * Decide the fate of an action after an attempt.
+     */
+    private void onAttemptFinished(SocialAction action, Response response) {
+        FacebookRequestError error = response == null ? null : response.getError();
+        if (response != null && error == null) {
+            sDeliveryMs.record(System.currentTimeMillis() - action.getEnqueuedAt());
+            mActions.remove(action);
+            save();
+            for (Listener listener : copyListeners()) {
+                listener.onActionSent(action);
+            }
+        } else if ((error == null || FacebookProvider.isTransientError(error))
+                && action.getAttempts() < MAX_ATTEMPTS) {
+            // A missing response is treated like a lost connection
+            action.setNextAttemptAt(System.currentTimeMillis() + backoff(action.getAttempts()));
+            save();
+            Log.i(TAG, "Action " + action.getKey() + " failed, attempt " + action.getAttempts()
+                    + ": " + error);
+        } else {
+            Log.e(TAG, "Dropping action " + action.getKey() + ": " + error);
+            mActions.remove(action);
+            save();
+            for (Listener listener : copyListeners()) {
+                listener.onActionFailed(action, error);
+            }
+        }
+    }
+
+    /**
+     * @param attempts the number of attempts made so far.
+     * @return the delay before the next attempt, with up to 50% random jitter.
+     */
+    long backoff(int attempts) {
+        long delay = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempts - 1, 20));
+        return delay + (long) (mRandom.nextFloat() * delay / 2);
+    }
+
+    private List<Listener> copyListeners() {
+        return new ArrayList<Listener>(mListeners);
+    }
+
+    /**
+     * Read the persisted actions, ahead of those enqueued meanwhile.
+     */
+    private void load() {
+        mScheduler.submit(Lane.DISK, TaskScheduler.PRIORITY_HIGH, TaskScope.APPLICATION,
+                new TaskScheduler.Task<SocialAction[]>() {
+
+                    @Override
+                    protected SocialAction[] run() throws IOException {
+                        return mFile.exists()
+                                ? mMapper.readValue(mFile, SocialAction[].class)
+                                : new SocialAction[0];
+                    }
+
+                    @Override
+                    protected void onSuccess(SocialAction[] actions) {
+                        Log.d(TAG, "Loaded " + actions.length + " pending actions");
+                        mActions.addAll(0, Arrays.asList(actions));
+                        onLoaded();
+                    }
+
+                    @Override
+                    protected void onFailure(Exception e) {
+                        Log.e(TAG, "Could not read outbox, starting empty", e);
+                        onLoaded();
+                    }
+
+                });
+    }
+
+    private void onLoaded() {
+        mLoaded = true;
+        save();
+        pump();
+    }
+
+    /**
+     * Persist a copy of the actions on the disk lane, replacing the previous file only once the
+     * new one is fully written.  Writes queued behind one another are merged into the latest.
+     */
+    private void save() {
+        sQueueDepth.set(mActions.size());
+        if (!mLoaded) {
+            // Would replace the file before it is read, saved once it is
+            return;
+        }
+        List<SocialAction> copy = new ArrayList<SocialAction>(mActions.size());
+        for (SocialAction action : mActions) {
+            copy.add(new SocialAction(action));
+        }
+        if (mUnsaved.getAndSet(copy) != null) {
+            // A queued write will pick up the copy
+            return;
+        }
+        mScheduler.submit(Lane.DISK, TaskScheduler.PRIORITY_NORMAL, TaskScope.APPLICATION,
+                new TaskScheduler.Task<Void>() {
+
+                    @Override
+                    protected Void run() throws IOException {
+                        byte[] data = mMapper.writeValueAsBytes(mUnsaved.getAndSet(null));
+                        AtomicFiles.write(mFile, data);
+                        return null;
+                    }
+
+                    @Override
+                    protected void onFailure(Exception e) {
+                        Log.e(TAG, "Could not save outbox", e);
+                    }
+
+                });
+    }
+
+}
@@ -16,21 +16,43 @@
 
 package com.google.plus.wigwamnow.social;
 
+import com.google.plus.wigwamnow.WigwamNow;
 import com.google.plus.wigwamnow.models.Wigwam;
 
 import android.app.Activity;
+import android.content.Context;
 import android.net.Uri;
+import android.util.Log;
+
+import com.android.volley.Request;
+import com.android.volley.toolbox.JsonObjectRequest;
+import com.android.volley.toolbox.RequestFuture;
+
+import org.json.JSONObject;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A base class to abstract all social actions in the WigwamNow app.  Should be extended once for
  * each Social SocialProviderConstants (Google+, Facebook, etc.) that will be linked to the app.
+ * Instances are long-lived singletons held by the {@link SocialProviderRegistry}, so any state
+ * tied to a screen belongs in that screen, not in the provider.
  * 
  * @author Sam Stern (samstern@google.com)
  */
 public abstract class SocialProvider {
     
+    private static final String TAG = SocialProvider.class.getSimpleName();
+    
+    /** How long to wait for the server to answer a hybrid auth request **/
+    private static final long AUTH_TIMEOUT_SECONDS = 30;
+    
     /**
      * Enumeration of possible features that a SocialProvider can implement.  Each has an
      * associated method.
@@ -43,22 +65,30 @@ public abstract class SocialProvider {
         HYBRID_AUTH
     }
     
+    /** The features this provider implements, never modified **/
+    private final EnumSet<SocialFeature> mFeatures;
+    
+    /** Read-only view of {@link #mFeatures} **/
+    private final Set<SocialFeature> mFeaturesView;
+    
+    /**
+     * @param features the features the subclass implements, copied.
+     */
+    protected SocialProvider(EnumSet<SocialFeature> features) {
+        mFeatures = EnumSet.copyOf(features);
+        mFeaturesView = Collections.unmodifiableSet(mFeatures);
+    }
+    
     /**
-     * Create the right {@link SocialProvider} subclass object, based on the value of a
-     * {@link SocialProviderConstants} enum value.
+     * Get the shared {@link SocialProvider} for a {@link SocialProviderConstants} value.
      * 
-     * @param provider the {@link SocialProviderConstants} for which the method should instantiate a
-     * {@link SocialProvider}.
-     * @return a subclass of the {@link SocialProvider} class, such as {@link GoogleProvider}.
+     * @param provider the {@link SocialProviderConstants} value, or the id of a provider added to
+     * the {@link SocialProviderRegistry}.
+     * @return a subclass of the {@link SocialProvider} class, such as {@link GoogleProvider}, or
+     * null if there is none.
      */
     public static SocialProvider get(int provider) {
-        if (provider == SocialProviderConstants.GOOGLE) {
-            return new GoogleProvider();
-        } else if (provider == SocialProviderConstants.FACEBOOK) {
-            return new FacebookProvider();
-        } else {
-            return null;
-        }
+        return SocialProviderRegistry.get(provider);
     }
     
     /**
@@ -67,7 +97,16 @@ public abstract class SocialProvider {
      * @param feature the SocialFeature in question.
      * @return true if the action is supported, false otherwise.
      */
-    public abstract boolean supports(SocialFeature feature);
+    public final boolean supports(SocialFeature feature) {
+        return mFeatures.contains(feature);
+    }
+    
+    /**
+     * @return the read-only set of features this provider implements.
+     */
+    public final Set<SocialFeature> getFeatures() {
+        return mFeaturesView;
+    }
     
     /**
      * Share a {@link Wigwam} in the user's social feed.
@@ -103,6 +142,56 @@ public abstract class SocialProvider {
      */
     public abstract void hybridAuth(final Activity activity);
     
+    /**
+     * Obtain a credential and send it to the server.  Called by the {@link AuthCoordinator} on a
+     * background thread, never more than once at a time for the same provider.
+     * 
+     * @param context the application context.
+     * @param activity the {@link Activity} that asked, or null for a background refresh.
+     * @return the credential the server accepted, or null if the exchange failed.
+     */
+    protected AuthCoordinator.Credential exchangeCredential(Context context, Activity activity) {
+        throw new UnsupportedFeatureException(SocialFeature.HYBRID_AUTH);
+    }
+    
+    /**
+     * Determine if a cached credential no longer matches the provider's current one, so it must
+     * be sent again even though it has not expired.
+     * 
+     * @param credential the cached credential.
+     * @return true if the credential should be exchanged again.
+     */
+    protected boolean isCredentialStale(AuthCoordinator.Credential credential) {
+        return false;
+    }
+    
+    /**
+     * POST a JSON object to the server and wait for the answer.  Must not be called on the main
+     * thread.
+     * 
+     * @param endpoint the URL to post to.
+     * @param params the body.
+     * @return the server's answer, or null if the request failed.
+     */
+    protected static JSONObject postAndWait(String endpoint, JSONObject params) {
+        RequestFuture<JSONObject> future = RequestFuture.newFuture();
+        JsonObjectRequest jor =
+                new JsonObjectRequest(Request.Method.POST, endpoint, params, future, future);
+        WigwamNow.getQueue().add(jor);
+        try {
+            return future.get(AUTH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted posting to " + endpoint, e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error posting to " + endpoint, e.getCause());
+        } catch (TimeoutException e) {
+            Log.e(TAG, "Timed out posting to " + endpoint, e);
+        }
+        jor.cancel();
+        return null;
+    }
+    
     /**
      * Post a photo to the user's albums.
      * 
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.social;
+
+import android.util.SparseArray;
+
+/**
+ * Registry of the long-lived {@link SocialProvider} instances, keyed by their
+ * {@link SocialProviderConstants} value.  The built-in providers are registered up front, and
+ * other providers can be added with {@link #register}.  Providers are shared by every screen, so
+ * they must not hold on to an {@link android.app.Activity}.
+ */
+public final class SocialProviderRegistry {
+
+    /** Registered providers, by {@link SocialProviderConstants} value **/
+    private static final SparseArray<SocialProvider> sProviders = new SparseArray<SocialProvider>();
+
+    static {
+        sProviders.put(SocialProviderConstants.GOOGLE, new GoogleProvider());
+        sProviders.put(SocialProviderConstants.FACEBOOK, new FacebookProvider());
+    }
+
+    private SocialProviderRegistry() {}
+
+    /**
+     * Register a provider, replacing any provider previously registered with the same id.
+     *
+     * @param id the provider's id, distinct from the {@link SocialProviderConstants} values unless
+     *  it replaces a built-in provider.
+     * @param provider the provider.
+     */
+    public static synchronized void register(int id, SocialProvider provider) {
+        if (id == SocialProviderConstants.NONE) {
+            throw new IllegalArgumentException("Provider id must not be NONE");
+        }
+        sProviders.put(id, provider);
+    }
+
+    /**
+     * @param id a {@link SocialProviderConstants} value, or the id of a registered provider.
+     * @return the provider, or null if none is registered for the id.
+     */
+    public static synchronized SocialProvider get(int id) {
+        return sProviders.get(id);
+    }
+
+}
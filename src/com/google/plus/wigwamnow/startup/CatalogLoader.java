@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.startup;
+
+import com.google.plus.wigwamnow.concurrent.AtomicFiles;
+import com.google.plus.wigwamnow.concurrent.Lane;
+import com.google.plus.wigwamnow.concurrent.TaskScheduler;
+import com.google.plus.wigwamnow.concurrent.TaskScope;
+import com.google.plus.wigwamnow.json.ModelMapper;
+import com.google.plus.wigwamnow.models.Catalog;
+import com.google.plus.wigwamnow.models.Wigwam;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Loads the list of all {@link Wigwam}s.  The copy saved by the previous run is read from disk
+ * while the fresh list is fetched, so the list can be shown before the network answers, and each
+ * fresh list is saved for the next run.  Parsing, and building the {@link Catalog}'s indexes,
+ * happen off the main thread.  Must be used from
+ * the main thread, and listeners are called on the main thread.
+ */
+public class CatalogLoader {
+
+    private static final String TAG = CatalogLoader.class.getSimpleName();
+
+    /** Name of the file the last catalog is saved to, in the app's files directory **/
+    private static final String CACHE_FILENAME = "catalog.json";
+
+    /** Span for reading the saved catalog **/
+    public static final String SPAN_CACHE = "catalog_cache";
+
+    /** Span for fetching the catalog from the server **/
+    public static final String SPAN_NETWORK = "catalog_network";
+
+    /**
+     * Receives catalogs on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param catalog the wigwams.
+         * @param isFresh false if the list was saved by a previous run.
+         */
+        void onCatalogLoaded(Catalog catalog, boolean isFresh);
+
+        /**
+         * @param error the reason the fresh list could not be fetched.
+         */
+        void onCatalogFailed(VolleyError error);
+
+    }
+
+    /** Queue for the fetch, only built when the first fetch starts **/
+    private final Component<RequestQueue> mQueue;
+
+    /** Scheduler for reading, parsing and saving **/
+    private final TaskScheduler mScheduler;
+
+    /** URL of the catalog **/
+    private final String mUrl;
+
+    /** The file the last catalog is saved to **/
+    private final File mFile;
+
+    /** Reused to parse catalogs, thread-safe **/
+    private final ModelMapper mMapper = new ModelMapper();
+
+    /** Boolean to determine if a fresh list has been delivered, so the saved one is ignored **/
+    private boolean mHasFresh;
+
+    /** Boolean to determine if a fetch is in flight **/
+    private boolean mFetching;
+
+    /**
+     * @param context any {@link Context}, used for its files directory.
+     * @param queue the queue for the fetch, built when the first fetch starts.
+     * @param scheduler the scheduler for reading, parsing and saving.
+     * @param url the URL of the catalog.
+     */
+    public CatalogLoader(Context context, Component<RequestQueue> queue, TaskScheduler scheduler,
+            String url) {
+        mQueue = queue;
+        mScheduler = scheduler;
+        mUrl = url;
+        mFile = getSavedFile(context);
+    }
+
+    /**
+     * @param context any {@link Context}, used for its files directory.
+     * @return the file the last catalog is saved to, which may not exist.
+     */
+    public static File getSavedFile(Context context) {
+        return new File(context.getApplicationContext().getFilesDir(), CACHE_FILENAME);
+    }
+
+    /**
+     * Read the saved catalog, if any, and fetch a fresh one at the same time.  The read is
+     * queued before the {@link RequestQueue} is built, so it does not wait for Volley to start.
+     *
+     * @param listener the listener for both results.
+     */
+    public void load(final Listener listener) {
+        StartupTrace.begin(SPAN_CACHE);
+        mScheduler.submit(Lane.DISK, TaskScheduler.PRIORITY_HIGH, TaskScope.APPLICATION,
+                new TaskScheduler.Task<Catalog>() {
+
+                    @Override
+                    protected Catalog run() throws IOException {
+                        return mFile.exists() ? parse(readFile()) : null;
+                    }
+
+                    @Override
+                    protected void onSuccess(Catalog catalog) {
+                        StartupTrace.end(SPAN_CACHE);
+                        if (catalog != null && !mHasFresh) {
+                            listener.onCatalogLoaded(catalog, false);
+                        }
+                    }
+
+                    @Override
+                    protected void onFailure(Exception e) {
+                        StartupTrace.end(SPAN_CACHE);
+                        Log.w(TAG, "Could not read saved catalog", e);
+                    }
+
+                });
+        fetch(listener);
+    }
+
+    /**
+     * Fetch a fresh catalog, unless a fetch is already in flight.
+     *
+     * @param listener the listener for the result.
+     */
+    public void fetch(final Listener listener) {
+        if (mFetching) {
+            return;
+        }
+        mFetching = true;
+        StartupTrace.begin(SPAN_NETWORK);
+        mQueue.get().add(new Request<byte[]>(mUrl, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                mFetching = false;
+                StartupTrace.end(SPAN_NETWORK);
+                Log.e(TAG, error.toString());
+                listener.onCatalogFailed(error);
+            }
+        }) {
+
+            @Override
+            protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+                return Response.success(
+                        response.data, HttpHeaderParser.parseCacheHeaders(response));
+            }
+
+            @Override
+            protected void deliverResponse(byte[] data) {
+                onFetched(data, listener);
+            }
+
+        });
+    }
+
+    /**
+     * Parse and save a fetched catalog.  The user is waiting for it, but parsing and indexing
+     * take long enough to hold up filters and searches, so they run in the disk lane like the
+     * parse of the saved catalog, ahead of other file work.
+     */
+    private void onFetched(final byte[] data, final Listener listener) {
+        mScheduler.submit(Lane.DISK, TaskScheduler.PRIORITY_HIGH, TaskScope.APPLICATION,
+                new TaskScheduler.Task<Catalog>() {
+
+                    @Override
+                    protected Catalog run() throws IOException {
+                        return parse(data);
+                    }
+
+                    @Override
+                    protected void onSuccess(Catalog catalog) {
+                        mFetching = false;
+                        mHasFresh = true;
+                        StartupTrace.end(SPAN_NETWORK);
+                        listener.onCatalogLoaded(catalog, true);
+                        save(data);
+                    }
+
+                    @Override
+                    protected void onFailure(Exception e) {
+                        mFetching = false;
+                        StartupTrace.end(SPAN_NETWORK);
+                        Log.e(TAG, "Unable to parse catalog", e);
+                        listener.onCatalogFailed(new VolleyError(e));
+                    }
+
+                });
+    }
+
+    /**
+     * Replace the saved catalog, only once the new one is fully written.
+     */
+    private void save(final byte[] data) {
+        mScheduler.submit(Lane.DISK, TaskScheduler.PRIORITY_LOW, TaskScope.APPLICATION,
+                new TaskScheduler.Task<Void>() {
+
+                    @Override
+                    protected Void run() throws IOException {
+                        AtomicFiles.write(mFile, data);
+                        return null;
+                    }
+
+                    @Override
+                    protected void onFailure(Exception e) {
+                        Log.e(TAG, "Could not save catalog", e);
+                    }
+
+                });
+    }
+
+    private Catalog parse(byte[] data) throws IOException {
+        return new Catalog(mMapper.readValue(data, 0, data.length, Wigwam[].class));
+    }
+
+    private byte[] readFile() throws IOException {
+        InputStream in = new FileInputStream(mFile);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) mFile.length());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.startup;
+
+/**
+ * A process-wide object that is built on demand rather than in
+ * {@link android.app.Application#onCreate}.  The first call to {@link #get}, from any thread,
+ * builds the component's dependencies and then the component itself.  Each build is recorded in
+ * {@link StartupTrace} as {@code init_<name>}, waiting on its dependencies' builds.
+ *
+ * @param <T> the type of the object.
+ */
+public abstract class Component<T> {
+
+    /**
+     * When a component is built if nothing asks for it first.
+     */
+    public enum InitMode {
+
+        /** During {@link android.app.Application#onCreate} **/
+        EAGER,
+
+        /** When the main thread first goes idle, usually after the first frame **/
+        IDLE,
+
+        /** Only when first used **/
+        LAZY
+
+    }
+
+    /** Name of the component, for the trace **/
+    private final String mName;
+
+    /** When to build the component if nothing asks for it first **/
+    private final InitMode mMode;
+
+    /** Components that must be built first **/
+    private final Component<?>[] mDependencies;
+
+    /** The object, once built **/
+    private volatile T mInstance;
+
+    /**
+     * @param name a name for the component, used in the trace.
+     * @param mode when to build the component if nothing asks for it first.
+     * @param dependencies the components that {@link #create} uses.
+     */
+    public Component(String name, InitMode mode, Component<?>... dependencies) {
+        mName = name;
+        mMode = mode;
+        mDependencies = dependencies;
+    }
+
+    /**
+     * Build the object.  Called at most once, after every dependency has been built.
+     *
+     * @return the object.
+     */
+    protected abstract T create();
+
+    /**
+     * @return the object, built now if this is the first call.
+     */
+    public final T get() {
+        T instance = mInstance;
+        if (instance == null) {
+            synchronized (this) {
+                instance = mInstance;
+                if (instance == null) {
+                    instance = build();
+                    mInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return true if the object has been built.
+     */
+    public final boolean isCreated() {
+        return mInstance != null;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public InitMode getMode() {
+        return mMode;
+    }
+
+    private T build() {
+        String[] dependencySpans = new String[mDependencies.length];
+        for (int i = 0; i < mDependencies.length; i++) {
+            mDependencies[i].get();
+            dependencySpans[i] = mDependencies[i].getSpanName();
+        }
+        String span = getSpanName();
+        StartupTrace.begin(span);
+        T instance = create();
+        StartupTrace.end(span, dependencySpans);
+        return instance;
+    }
+
+    private String getSpanName() {
+        return "init_" + mName;
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.startup;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The app's {@link Component}s.  {@link #start} builds the {@link Component.InitMode#EAGER}
+ * components and arranges for the {@link Component.InitMode#IDLE} ones to be built one at a time
+ * whenever the main thread has nothing else to do, so they are ready before they are needed
+ * without delaying the first frame.  {@link Component.InitMode#LAZY} components are left until
+ * first use.
+ */
+public class ComponentRegistry {
+
+    /** Registered components, in registration order **/
+    private final List<Component<?>> mComponents = new ArrayList<Component<?>>();
+
+    /**
+     * Register a component.
+     *
+     * @param component the component.
+     * @return the component, for assignment.
+     */
+    public <C extends Component<?>> C register(C component) {
+        mComponents.add(component);
+        return component;
+    }
+
+    /**
+     * Build the eager components and schedule the idle ones.  Must be called on the main thread.
+     */
+    public void start() {
+        final LinkedList<Component<?>> idle = new LinkedList<Component<?>>();
+        for (Component<?> component : mComponents) {
+            if (component.getMode() == Component.InitMode.EAGER) {
+                component.get();
+            } else if (component.getMode() == Component.InitMode.IDLE) {
+                idle.add(component);
+            }
+        }
+        if (idle.isEmpty()) {
+            return;
+        }
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                // One per idle slot, so input arriving in between is not held up
+                Component<?> next = idle.poll();
+                while (next != null && next.isCreated()) {
+                    next = idle.poll();
+                }
+                if (next != null) {
+                    next.get();
+                }
+                return !idle.isEmpty();
+            }
+        });
+    }
+
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.startup;
+
+import com.google.android.gms.plus.PlusClient;
+import com.google.plus.wigwamnow.BuildConfig;
+import com.google.plus.wigwamnow.concurrent.Lane;
+import com.google.plus.wigwamnow.concurrent.TaskScheduler;
+import com.google.plus.wigwamnow.concurrent.TaskScope;
+import com.google.plus.wigwamnow.models.Catalog;
+import com.google.plus.wigwamnow.models.Profile;
+import com.google.plus.wigwamnow.models.WigwamRepository;
+import com.google.plus.wigwamnow.search.SearchIndex;
+import com.google.plus.wigwamnow.social.ProfileCache;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import com.android.volley.VolleyError;
+import com.facebook.Session;
+import com.facebook.SessionState;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the work needed to show the selection screen in parallel from the first activity's start,
+ * instead of one step after another as fragments come up.  The catalog is read from disk and
+ * fetched at once, a cached Facebook session is opened, and the user's profile is shown from the
+ * {@link ProfileCache} and refreshed as soon as either provider resolves the user's identity.
+ * The selection screen {@link #join}s when it becomes visible and receives whatever is ready,
+ * then the rest as it arrives.  The timeline is recorded in {@link StartupTrace}.  Must be used
+ * from the main thread.
+ */
+public class StartupOrchestrator implements CatalogLoader.Listener {
+
+    /** Span for resolving the signed-in user **/
+    public static final String SPAN_IDENTITY = "identity";
+
+    /** Span for loading the user's profile **/
+    public static final String SPAN_PROFILE = "profile";
+
+    /** Span for the first catalog shown, from disk or network **/
+    public static final String SPAN_CATALOG = "catalog";
+
+    /** Instant the selection screen became visible **/
+    public static final String SPAN_VISIBLE = "selection_visible";
+
+    /** Instant the selection screen showed both the catalog and the profile **/
+    public static final String SPAN_READY = "selection_ready";
+
+    /**
+     * Receives startup results on the main thread.
+     */
+    public interface Listener extends CatalogLoader.Listener {
+
+        /**
+         * @param profile the signed-in user's profile.
+         * @param avatar the user's picture sized for the header, or null until it is loaded.
+         */
+        void onProfileLoaded(Profile profile, Bitmap avatar);
+
+        /**
+         * Called when the profile could not be loaded.
+         */
+        void onProfileFailed();
+
+    }
+
+    /** Application context **/
+    private final Context mContext;
+
+    /** Loader for the catalog **/
+    private final CatalogLoader mCatalogLoader;
+
+    /** Joined listeners **/
+    private final List<Listener> mListeners = new ArrayList<Listener>();
+
+    /** The latest catalog, or null **/
+    private Catalog mCatalog;
+
+    /** Boolean to determine if {@link #mCatalog} is fresh **/
+    private boolean mCatalogFresh;
+
+    /** Boolean to determine if {@link #start} has been called **/
+    private boolean mStarted;
+
+    /** Cache of the user's profile **/
+    private final ProfileCache mProfileCache;
+
+    /** Receives every catalog, so wigwams can be looked up by id **/
+    private final WigwamRepository mRepository;
+
+    /** Receives every catalog, so wigwams can be searched **/
+    private final SearchIndex mSearchIndex;
+
+    /** Scheduler for updates of {@link #mSearchIndex} **/
+    private final TaskScheduler mScheduler;
+
+    /** Forwards profile changes to the joined listeners **/
+    private final ProfileCache.Listener mProfileListener = new ProfileCache.Listener() {
+
+        @Override
+        public void onProfileChanged(int provider) {
+            if (provider != mProfileCache.getCurrentProvider()) {
+                return;
+            }
+            endProfileSpan();
+            Profile profile = mProfileCache.getProfile(provider);
+            Bitmap avatar = mProfileCache.getAvatar(provider);
+            for (Listener listener : copyListeners()) {
+                listener.onProfileLoaded(profile, avatar);
+            }
+            checkReady();
+        }
+
+        @Override
+        public void onProfileFailed(int provider) {
+            for (Listener listener : copyListeners()) {
+                listener.onProfileFailed();
+            }
+        }
+
+    };
+
+    /** Opens the profile load once a Facebook session opened at start opens **/
+    private final Session.StatusCallback mSessionCallback = new Session.StatusCallback() {
+        @Override
+        public void call(Session session, SessionState state, Exception exception) {
+            if (state.isOpened()) {
+                session.removeCallback(this);
+                onFacebookSessionOpened(session);
+            } else if (state.isClosed()) {
+                session.removeCallback(this);
+            }
+        }
+    };
+
+    /**
+     * @param context any {@link Context}, the application context is retained.
+     * @param catalogLoader the loader for the catalog.
+     * @param profileCache the cache of the user's profile.
+     * @param repository the repository that receives every catalog.
+     * @param searchIndex the search index that receives every catalog.
+     * @param scheduler the scheduler for updates of the search index.
+     */
+    public StartupOrchestrator(Context context, CatalogLoader catalogLoader,
+            ProfileCache profileCache, WigwamRepository repository, SearchIndex searchIndex,
+            TaskScheduler scheduler) {
+        mContext = context.getApplicationContext();
+        mCatalogLoader = catalogLoader;
+        mProfileCache = profileCache;
+        mRepository = repository;
+        mSearchIndex = searchIndex;
+        mScheduler = scheduler;
+        mProfileCache.addListener(mProfileListener);
+    }
+
+    /**
+     * Start loading the catalog and resolving the user.  Called from the first activity's
+     * {@code onCreate}, so that a process started for anything else does not load them, and
+     * ignored after the first call.
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mRepository.setCatalogLoading(true);
+        mCatalogLoader.load(this);
+        resolveFacebookIdentity();
+    }
+
+    /**
+     * Open a Facebook session from a cached token, as the first activity would, so that the
+     * profile request does not wait for the activity.  Google+ identity needs a {@link PlusClient}
+     * connected by an activity, see {@link #onPlusSignedIn}.
+     */
+    private void resolveFacebookIdentity() {
+        StartupTrace.begin(SPAN_IDENTITY);
+        Session session = Session.getActiveSession();
+        if (session == null) {
+            session = new Session(mContext);
+            if (session.getState() != SessionState.CREATED_TOKEN_LOADED) {
+                // Nobody is signed in with Facebook, leave the session to the activity
+                return;
+            }
+            Session.setActiveSession(session);
+        }
+        if (session.isOpened()) {
+            onFacebookSessionOpened(session);
+        } else if (session.getState() == SessionState.CREATED_TOKEN_LOADED) {
+            session.addCallback(mSessionCallback);
+            session.openForRead(null);
+        }
+    }
+
+    /**
+     * The user is signed in with Facebook.  Refreshes the profile if the cached one is missing or
+     * expired.
+     *
+     * @param session the open session.
+     */
+    public void onFacebookSessionOpened(Session session) {
+        StartupTrace.end(SPAN_IDENTITY);
+        StartupTrace.begin(SPAN_PROFILE);
+        mProfileCache.refreshFacebook(session);
+    }
+
+    /**
+     * The user is signed in with Google+.  Refreshes the profile if the cached one is missing or
+     * expired.
+     *
+     * @param plusClient the connected client.
+     */
+    public void onPlusSignedIn(PlusClient plusClient) {
+        StartupTrace.end(SPAN_IDENTITY);
+        StartupTrace.begin(SPAN_PROFILE);
+        mProfileCache.refreshPlus(plusClient);
+    }
+
+    /**
+     * The user signed out.  Drops the cached profiles so the next user's is loaded.
+     */
+    public void onSignedOut() {
+        mProfileCache.clear();
+    }
+
+    /**
+     * Fetch a fresh catalog.
+     */
+    public void refreshCatalog() {
+        mCatalogLoader.fetch(this);
+    }
+
+    /**
+     * Receive startup results.  Whatever is ready is delivered before this method returns.
+     *
+     * @param listener the listener, usually the screen that just became visible.
+     */
+    public void join(Listener listener) {
+        StartupTrace.mark(SPAN_VISIBLE);
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+        if (mCatalog != null) {
+            listener.onCatalogLoaded(mCatalog, mCatalogFresh);
+        }
+        Profile profile = getProfile();
+        if (profile != null) {
+            endProfileSpan();
+            listener.onProfileLoaded(profile, mProfileCache.getAvatar(profile.getProvider()));
+        }
+        checkReady();
+    }
+
+    public void leave(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    @Override
+    public void onCatalogLoaded(Catalog catalog, boolean isFresh) {
+        StartupTrace.end(SPAN_CATALOG,
+                isFresh ? CatalogLoader.SPAN_NETWORK : CatalogLoader.SPAN_CACHE);
+        mCatalog = catalog;
+        mCatalogFresh = isFresh;
+        mRepository.setCatalog(catalog);
+        updateSearchIndex(catalog);
+        for (Listener listener : copyListeners()) {
+            listener.onCatalogLoaded(catalog, isFresh);
+        }
+        checkReady();
+    }
+
+    @Override
+    public void onCatalogFailed(VolleyError error) {
+        mRepository.setCatalogLoading(false);
+        for (Listener listener : copyListeners()) {
+            listener.onCatalogFailed(error);
+        }
+    }
+
+    /**
+     * Bring the search index up to date with a catalog.  Updates run one at a time on the
+     * background lane, in the order the catalogs arrived.
+     */
+    private void updateSearchIndex(final Catalog catalog) {
+        mScheduler.submit(Lane.BACKGROUND, TaskScheduler.PRIORITY_NORMAL, TaskScope.APPLICATION,
+                new TaskScheduler.Task<Void>() {
+
+                    @Override
+                    protected Void run() {
+                        mSearchIndex.update(catalog.getTable());
+                        return null;
+                    }
+
+                });
+    }
+
+    /**
+     * @return the most recent profile, or null.
+     */
+    private Profile getProfile() {
+        return mProfileCache.getProfile(mProfileCache.getCurrentProvider());
+    }
+
+    private void endProfileSpan() {
+        if (StartupTrace.hasEnded(SPAN_IDENTITY)) {
+            StartupTrace.end(SPAN_PROFILE, SPAN_IDENTITY);
+        } else {
+            // Read from the cache before the provider answered
+            StartupTrace.end(SPAN_PROFILE);
+        }
+    }
+
+    /**
+     * Record the join once a visible screen has both the catalog and the profile.
+     */
+    private void checkReady() {
+        if (!StartupTrace.hasEnded(SPAN_READY) && !mListeners.isEmpty() && mCatalog != null
+                && getProfile() != null) {
+            StartupTrace.mark(SPAN_READY, SPAN_VISIBLE, SPAN_CATALOG, SPAN_PROFILE);
+            if (BuildConfig.DEBUG) {
+                StartupTrace.dump(SPAN_READY);
+            }
+        }
+    }
+
+    private List<Listener> copyListeners() {
+        return new ArrayList<Listener>(mListeners);
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.startup;
+
+import com.google.plus.wigwamnow.metrics.Metrics;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records the spans of work done during startup, relative to the start of the process, and which
+ * spans each one waited for.  {@link #dump} logs the timeline and the critical path: the chain of
+ * spans, each the last of its dependencies to finish, that decided when a span could end.  Only
+ * the first occurrence of each span is recorded, so later reloads do not blur the cold start.
+ * Safe to use from any thread.
+ */
+public final class StartupTrace {
+
+    private static final String TAG = StartupTrace.class.getSimpleName();
+
+    /**
+     * A single span of work.
+     */
+    private static class Span {
+
+        final String mName;
+
+        /** Start, in milliseconds after the origin **/
+        long mStart;
+
+        /** End, in milliseconds after the origin, or -1 while running **/
+        long mEnd = -1;
+
+        /** Names of the spans this one waited for **/
+        String[] mDependencies = new String[0];
+
+        Span(String name, long start) {
+            mName = name;
+            mStart = start;
+        }
+
+    }
+
+    /** Uptime when the process started, as far as the app can tell **/
+    private static long sOrigin = SystemClock.uptimeMillis();
+
+    /** Spans by name, in the order they started **/
+    private static final Map<String, Span> sSpans = new LinkedHashMap<String, Span>();
+
+    private StartupTrace() {}
+
+    /**
+     * Reset the origin of the timeline.  Called once, as early as possible in the process.
+     */
+    public static synchronized void start() {
+        sOrigin = SystemClock.uptimeMillis();
+        sSpans.clear();
+    }
+
+    /**
+     * Start a span.  Ignored if the span has already been started.
+     *
+     * @param name the name of the span.
+     */
+    public static synchronized void begin(String name) {
+        if (!sSpans.containsKey(name)) {
+            sSpans.put(name, new Span(name, now()));
+        }
+    }
+
+    /**
+     * End a span, starting it now if it was never started.  Ignored if the span already ended.
+     * The duration is also recorded in the {@code startup_<name>_ms} histogram.
+     *
+     * @param name the name of the span.
+     * @param dependencies the spans that had to end before this one could.
+     */
+    public static synchronized void end(String name, String... dependencies) {
+        begin(name);
+        Span span = sSpans.get(name);
+        if (span.mEnd >= 0) {
+            return;
+        }
+        span.mEnd = now();
+        span.mDependencies = dependencies;
+        Metrics.histogram("startup_" + name + "_ms").record(span.mEnd - span.mStart);
+    }
+
+    /**
+     * Record an instant, as a span that starts and ends now.
+     *
+     * @param name the name of the instant.
+     * @param dependencies the spans that had to end first.
+     */
+    public static synchronized void mark(String name, String... dependencies) {
+        begin(name);
+        end(name, dependencies);
+    }
+
+    /**
+     * @param name the name of a span.
+     * @return true if the span has ended.
+     */
+    public static synchronized boolean hasEnded(String name) {
+        Span span = sSpans.get(name);
+        return span != null && span.mEnd >= 0;
+    }
+
+    /**
+     * Follow the latest-ending dependency from a span back to the start of the process.
+     *
+     * @param name the name of the span to explain.
+     * @return the critical path, earliest span first.
+     */
+    public static synchronized List<String> criticalPath(String name) {
+        List<String> path = new ArrayList<String>();
+        Span span = sSpans.get(name);
+        while (span != null && !path.contains(span.mName)) {
+            path.add(span.mName);
+            Span latest = null;
+            for (String dependency : span.mDependencies) {
+                Span candidate = sSpans.get(dependency);
+                if (candidate != null && candidate.mEnd >= 0
+                        && (latest == null || candidate.mEnd > latest.mEnd)) {
+                    latest = candidate;
+                }
+            }
+            span = latest;
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * Write the timeline and the critical path to a span to the log.
+     *
+     * @param name the name of the span whose critical path to log.
+     */
+    public static synchronized void dump(String name) {
+        for (Span span : sSpans.values()) {
+            Log.i(TAG, String.format(Locale.US, "%6dms %6s %s", span.mStart,
+                    span.mEnd < 0 ? "..." : (span.mEnd - span.mStart) + "ms", span.mName));
+        }
+        StringBuilder path = new StringBuilder();
+        for (String step : criticalPath(name)) {
+            Span span = sSpans.get(step);
+            if (path.length() > 0) {
+                path.append(" -> ");
+            }
+            path.append(step).append(" (").append(span.mEnd).append("ms)");
+        }
+        Log.i(TAG, "Critical path to " + name + ": " + path);
+    }
+
+    private static long now() {
+        return SystemClock.uptimeMillis() - sOrigin;
+    }
+
+}
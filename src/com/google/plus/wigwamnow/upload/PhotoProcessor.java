@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.upload;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Prepares a camera photo for upload without ever holding it at full resolution.  The photo is
+ * subsampled while decoding so its longest edge is at most {@link #getMaxEdge()}, decoded at two
+ * bytes per pixel, rotated upright according to its EXIF orientation, and re-encoded as a JPEG
+ * file that can be streamed to the server.  Must not be used on the main thread.
+ */
+public class PhotoProcessor {
+
+    private static final String TAG = PhotoProcessor.class.getSimpleName();
+
+    /** Default longest edge of a processed photo, in pixels **/
+    public static final int DEFAULT_MAX_EDGE = 2048;
+
+    /** Default JPEG quality of a processed photo, 1-100 **/
+    public static final int DEFAULT_QUALITY = 85;
+
+    /** Size of the buffer between the encoder and the output file **/
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** Bytes per pixel of a decoded photo, which is {@link Bitmap.Config#RGB_565} **/
+    static final int BYTES_PER_PIXEL = 2;
+
+    /** Longest edge of a processed photo, in pixels **/
+    private final int mMaxEdge;
+
+    /** JPEG quality of a processed photo **/
+    private final int mQuality;
+
+    public PhotoProcessor() {
+        this(DEFAULT_MAX_EDGE, DEFAULT_QUALITY);
+    }
+
+    /**
+     * @param maxEdge the longest edge of a processed photo, in pixels.
+     * @param quality the JPEG quality of a processed photo, 1-100.
+     */
+    public PhotoProcessor(int maxEdge, int quality) {
+        mMaxEdge = maxEdge;
+        mQuality = quality;
+    }
+
+    public int getMaxEdge() {
+        return mMaxEdge;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Decode, orient, downscale and re-encode a photo.
+     *
+     * @param source the original JPEG file.
+     * @param destination the file to write the processed JPEG to, overwritten if it exists.
+     * @throws IOException if the source cannot be decoded or the destination written.
+     */
+    public void process(File source, File destination) throws IOException {
+        String path = source.getAbsolutePath();
+
+        // Read the dimensions alone to pick a sample size
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + path);
+        }
+        int longestEdge = Math.max(options.outWidth, options.outHeight);
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = findSampleSize(longestEdge, mMaxEdge);
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap sampled = BitmapFactory.decodeFile(path, options);
+        if (sampled == null) {
+            throw new IOException("Could not decode " + path);
+        }
+
+        // Some decoders round the sampled size up, so finish with the rotation in a single pass
+        Matrix matrix = new Matrix();
+        int sampledEdge = Math.max(sampled.getWidth(), sampled.getHeight());
+        if (sampledEdge > mMaxEdge) {
+            float scale = (float) mMaxEdge / sampledEdge;
+            matrix.postScale(scale, scale);
+        }
+        int degrees = readRotation(path);
+        if (degrees != 0) {
+            matrix.postRotate(degrees);
+        }
+        Bitmap output = sampled;
+        if (!matrix.isIdentity()) {
+            output = Bitmap.createBitmap(
+                    sampled, 0, 0, sampled.getWidth(), sampled.getHeight(), matrix, true);
+            if (output != sampled) {
+                sampled.recycle();
+            }
+        }
+
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(destination), BUFFER_SIZE);
+            if (!output.compress(Bitmap.CompressFormat.JPEG, mQuality, out)) {
+                throw new IOException("Could not encode " + destination);
+            }
+        } finally {
+            output.recycle();
+            if (out != null) {
+                out.close();
+            }
+        }
+        Log.d(TAG, "Processed " + options.outWidth + "x" + options.outHeight + " photo to "
+                + destination.length() + " bytes, decoded in " + decodedBytes(options.outWidth,
+                        options.outHeight, options.inSampleSize) + " bytes");
+    }
+
+    /**
+     * Find the smallest power of two sample size that brings the longest edge down to the target
+     * or below, so the full-resolution photo is never decoded.  The sampled edge is therefore
+     * more than half the target, unless the original is smaller.
+     *
+     * @param edge the longest edge of the original image.
+     * @param maxEdge the target longest edge.
+     * @return the sample size to decode with.
+     */
+    static int findSampleSize(int edge, int maxEdge) {
+        int sampleSize = 1;
+        while (sampledEdge(edge, sampleSize) > maxEdge) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return the size of the bitmap decoded from an image with a sample size, in bytes.
+     */
+    static long decodedBytes(int width, int height, int sampleSize) {
+        return (long) sampledEdge(width, sampleSize) * sampledEdge(height, sampleSize)
+                * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * @return the length of an edge after sampling, rounded up as the JPEG decoder does.
+     */
+    private static int sampledEdge(int edge, int sampleSize) {
+        return (edge + sampleSize - 1) / sampleSize;
+    }
+
+    /**
+     * Read the clockwise rotation needed to display a photo upright.
+     *
+     * @param path the path of the JPEG file.
+     * @return 0, 90, 180 or 270.
+     */
+    private static int readRotation(String path) {
+        int orientation;
+        try {
+            orientation = new ExifInterface(path).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read EXIF from " + path, e);
+            return 0;
+        }
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+}
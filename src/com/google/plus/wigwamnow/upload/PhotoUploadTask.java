@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.upload;
+
+import com.google.plus.wigwamnow.concurrent.TaskScheduler;
+
+import android.util.Log;
+
+import com.facebook.Request;
+import com.facebook.Response;
+import com.facebook.Session;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Processes a photo with a {@link PhotoProcessor} and uploads the result to the user's Facebook
+ * album, all off the main thread.  The upload is streamed from the processed file, so the photo
+ * is never held in memory as a whole.  Progress is reported by stage through a {@link Listener}.
+ * Submit it to a {@link TaskScheduler} on the network lane.
+ */
+public class PhotoUploadTask extends TaskScheduler.Task<Response> {
+
+    private static final String TAG = PhotoUploadTask.class.getSimpleName();
+
+    /** Progress reported once the photo has been decoded and re-encoded **/
+    public static final int PROGRESS_PROCESSED = 40;
+
+    /** Progress reported once the upload has been sent and answered **/
+    public static final int PROGRESS_DONE = 100;
+
+    /**
+     * Receives the progress and outcome of an upload on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param percent the approximate share of the work done, 0-100.
+         */
+        void onProgress(int percent);
+
+        /**
+         * @param response the Graph API response to the upload.
+         */
+        void onUploaded(Response response);
+
+        /**
+         * @param e the reason the photo could not be processed or sent.
+         */
+        void onFailed(Exception e);
+
+    }
+
+    /** Facebook session to upload with **/
+    private final Session mSession;
+
+    /** The original photo **/
+    private final File mSource;
+
+    /** Temporary file for the processed photo, deleted when the task finishes **/
+    private final File mProcessed;
+
+    /** Processor for the photo **/
+    private final PhotoProcessor mProcessor;
+
+    /** Listener for progress and the result **/
+    private final Listener mListener;
+
+    /**
+     * @param session the Facebook session to upload with.
+     * @param source the original photo.
+     * @param processed a temporary file for the processed photo.
+     * @param processor the processor for the photo.
+     * @param listener the listener for progress and the result.
+     */
+    public PhotoUploadTask(Session session, File source, File processed, PhotoProcessor processor,
+            Listener listener) {
+        mSession = session;
+        mSource = source;
+        mProcessed = processed;
+        mProcessor = processor;
+        mListener = listener;
+    }
+
+    @Override
+    protected Response run() throws IOException {
+        try {
+            mProcessor.process(mSource, mProcessed);
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onProgress(PROGRESS_PROCESSED);
+                }
+            });
+            Request request = Request.newUploadPhotoRequest(mSession, mProcessed, null);
+            return request.executeAndWait();
+        } finally {
+            if (!mProcessed.delete()) {
+                Log.w(TAG, "Could not delete " + mProcessed);
+            }
+        }
+    }
+
+    @Override
+    protected void onSuccess(Response response) {
+        mListener.onProgress(PROGRESS_DONE);
+        mListener.onUploaded(response);
+    }
+
+    @Override
+    protected void onFailure(Exception e) {
+        Log.e(TAG, "Could not prepare photo for upload", e);
+        mListener.onFailed(e);
+    }
+
+}
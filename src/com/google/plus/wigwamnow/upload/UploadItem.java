@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.upload;
+
+import org.codehaus.jackson.annotate.JsonAutoDetect;
+import org.codehaus.jackson.annotate.JsonAutoDetect.Visibility;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * A photo waiting in, or passing through, the {@link UploadOutbox}.  Persisted as JSON so that
+ * queued uploads survive the process being killed.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonAutoDetect(getterVisibility = Visibility.NONE, isGetterVisibility = Visibility.NONE)
+public class UploadItem {
+
+    /**
+     * The lifecycle of an upload.
+     */
+    public enum State {
+        /** Waiting for a free slot, or for its retry time **/
+        QUEUED,
+        /** Being processed and uploaded **/
+        UPLOADING,
+        /** Uploaded successfully **/
+        DONE,
+        /** Failed permanently, or ran out of attempts **/
+        FAILED
+    }
+
+    /** Unique id of the item **/
+    @JsonProperty("id")
+    private String mId;
+
+    /** Id of the wigwam the photo is of **/
+    @JsonProperty("wigwam_id")
+    private int mWigwamId;
+
+    /** Absolute path of the original photo **/
+    @JsonProperty("path")
+    private String mPath;
+
+    /** Current state **/
+    @JsonProperty("state")
+    private State mState = State.QUEUED;
+
+    /** Number of upload attempts made so far **/
+    @JsonProperty("attempts")
+    private int mAttempts;
+
+    /** Earliest time of the next attempt, in milliseconds since the epoch **/
+    @JsonProperty("next_attempt_at")
+    private long mNextAttemptAt;
+
+    /** Id of the uploaded photo, once done **/
+    @JsonProperty("photo_id")
+    private String mPhotoId;
+
+    /** Progress of the current attempt, 0-100, not persisted **/
+    @JsonIgnore
+    private int mProgress;
+
+    public UploadItem() {}
+
+    UploadItem(String id, int wigwamId, String path) {
+        mId = id;
+        mWigwamId = wigwamId;
+        mPath = path;
+    }
+
+    /**
+     * Copy an item, so it can be saved off the main thread while the original changes.
+     */
+    UploadItem(UploadItem other) {
+        mId = other.mId;
+        mWigwamId = other.mWigwamId;
+        mPath = other.mPath;
+        mState = other.mState;
+        mAttempts = other.mAttempts;
+        mNextAttemptAt = other.mNextAttemptAt;
+        mPhotoId = other.mPhotoId;
+        mProgress = other.mProgress;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public int getWigwamId() {
+        return mWigwamId;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    void setState(State state) {
+        mState = state;
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    void setAttempts(int attempts) {
+        mAttempts = attempts;
+    }
+
+    public long getNextAttemptAt() {
+        return mNextAttemptAt;
+    }
+
+    void setNextAttemptAt(long nextAttemptAt) {
+        mNextAttemptAt = nextAttemptAt;
+    }
+
+    public String getPhotoId() {
+        return mPhotoId;
+    }
+
+    void setPhotoId(String photoId) {
+        mPhotoId = photoId;
+    }
+
+    public int getProgress() {
+        return mProgress;
+    }
+
+    void setProgress(int progress) {
+        mProgress = progress;
+    }
+
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.upload;
+
+import com.google.plus.wigwamnow.concurrent.AtomicFiles;
+import com.google.plus.wigwamnow.concurrent.Lane;
+import com.google.plus.wigwamnow.concurrent.TaskScheduler;
+import com.google.plus.wigwamnow.concurrent.TaskScope;
+import com.google.plus.wigwamnow.social.FacebookProvider;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.facebook.FacebookRequestError;
+import com.facebook.Response;
+import com.facebook.Session;
+import com.facebook.model.GraphObject;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Disk-backed queue of photos to upload to Facebook.  Every item is persisted with its state, so
+ * uploads interrupted by a lost connection or a killed process are picked up again the next time
+ * the outbox is pumped.  Transient failures are retried with exponential backoff, and at most
+ * {@link #MAX_CONCURRENT} uploads run at once.  The file is read and written on the
+ * {@link Lane#DISK} lane; until it has been read, items can be enqueued but none are uploaded.
+ * Must be used from the main thread.
+ */
+public class UploadOutbox {
+
+    private static final String TAG = UploadOutbox.class.getSimpleName();
+
+    /** Name of the file the outbox is persisted to, in the app's files directory **/
+    private static final String OUTBOX_FILENAME = "upload_outbox.json";
+
+    /** Prefix of the temporary files holding processed photos, in the cache directory **/
+    private static final String PROCESSED_PREFIX = "upload-";
+
+    /** Maximum number of uploads in flight **/
+    static final int MAX_CONCURRENT = 2;
+
+    /** Number of attempts before an item is marked {@link UploadItem.State#FAILED} **/
+    static final int MAX_ATTEMPTS = 6;
+
+    /** Delay before the first retry, doubled for every further attempt **/
+    static final long BASE_BACKOFF_MS = 5 * 1000;
+
+    /** Longest delay between attempts **/
+    static final long MAX_BACKOFF_MS = 10 * 60 * 1000;
+
+    /**
+     * Receives changes to items on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param item an item whose upload progressed, see {@link UploadItem#getProgress()}.
+         */
+        void onProgress(UploadItem item);
+
+        /**
+         * @param item an item that failed and will be retried later.
+         */
+        void onRetryScheduled(UploadItem item);
+
+        /**
+         * @param item an item that is now {@link UploadItem.State#DONE} or
+         *  {@link UploadItem.State#FAILED}.
+         * @param response the final Graph API response, or null if the photo could not be read.
+         */
+        void onFinished(UploadItem item, Response response);
+
+    }
+
+    /** Application context, for its files and cache directories **/
+    private final Context mContext;
+
+    /** The file the outbox is persisted to **/
+    private final File mFile;
+
+    /** All items not yet uploaded, oldest first **/
+    private final List<UploadItem> mItems = new ArrayList<UploadItem>();
+
+    /** Scheduler for the uploads and for reading and writing the outbox file **/
+    private final TaskScheduler mScheduler;
+
+    /** Registered listeners **/
+    private final List<Listener> mListeners = new ArrayList<Listener>();
+
+    /** Handler to schedule retries on the main thread **/
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Source of jitter for backoff delays **/
+    private final Random mRandom = new Random();
+
+    /** Reused to read and write the outbox file **/
+    private final ObjectMapper mMapper = new ObjectMapper();
+
+    /** Number of uploads in flight **/
+    private int mActive;
+
+    /** Boolean to determine if the persisted items have been read **/
+    private boolean mLoaded;
+
+    /** Copy of the items waiting to be written, or null if no write is queued **/
+    private final AtomicReference<List<UploadItem>> mUnsaved =
+            new AtomicReference<List<UploadItem>>();
+
+    /** Pumps the outbox when a retry becomes due **/
+    private final Runnable mPumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    /**
+     * Create an outbox and start loading any items persisted by a previous process.
+     *
+     * @param context any {@link Context}, the application context is retained.
+     * @param scheduler the scheduler to run the uploads on.
+     */
+    public UploadOutbox(Context context, TaskScheduler scheduler) {
+        mContext = context.getApplicationContext();
+        mScheduler = scheduler;
+        mFile = new File(mContext.getFilesDir(), OUTBOX_FILENAME);
+        load();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Queue a photo for upload and start it if a slot is free.
+     *
+     * @param wigwamId the id of the wigwam the photo is of.
+     * @param photo the original photo, deleted once it has been uploaded.
+     * @return the new item.
+     */
+    public UploadItem enqueue(int wigwamId, File photo) {
+        UploadItem item = new UploadItem(
+                UUID.randomUUID().toString(), wigwamId, photo.getAbsolutePath());
+        mItems.add(item);
+        save();
+        pump();
+        return item;
+    }
+
+    /**
+     * @param id the id of an item, or null.
+     * @return the item if it is still queued or uploading, or null.
+     */
+    public UploadItem getItem(String id) {
+        for (UploadItem item : mItems) {
+            if (item.getId().equals(id)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Start queued uploads that are due, up to {@link #MAX_CONCURRENT}.  Does nothing until a
+     * Facebook session is open, so should be called again once one is.
+     */
+    public void pump() {
+        mHandler.removeCallbacks(mPumpRunnable);
+        if (!mLoaded) {
+            // Pumped again once loaded
+            return;
+        }
+        Session session = Session.getActiveSession();
+        if (session == null || !session.isOpened()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long nextDue = Long.MAX_VALUE;
+        for (UploadItem item : mItems) {
+            if (item.getState() != UploadItem.State.QUEUED) {
+                continue;
+            }
+            if (item.getNextAttemptAt() > now) {
+                nextDue = Math.min(nextDue, item.getNextAttemptAt());
+            } else if (mActive < MAX_CONCURRENT) {
+                start(session, item);
+            }
+        }
+        if (nextDue != Long.MAX_VALUE) {
+            mHandler.postDelayed(mPumpRunnable, nextDue - now);
+        }
+    }
+
+    /**
+     * Process and upload a single item.
+     */
+    private void start(Session session, final UploadItem item) {
+        mActive++;
+        item.setState(UploadItem.State.UPLOADING);
+        item.setAttempts(item.getAttempts() + 1);
+        item.setProgress(0);
+        save();
+
+        File processed = new File(mContext.getCacheDir(), PROCESSED_PREFIX + item.getId() + ".jpg");
+        PhotoUploadTask task = new PhotoUploadTask(session, new File(item.getPath()), processed,
+                new PhotoProcessor(), new PhotoUploadTask.Listener() {
+                    @Override
+                    public void onProgress(int percent) {
+                        item.setProgress(percent);
+                        for (Listener listener : copyListeners()) {
+                            listener.onProgress(item);
+                        }
+                    }
+
+                    @Override
+                    public void onUploaded(Response response) {
+                        mActive--;
+                        onAttemptFinished(item, response);
+                        pump();
+                    }
+
+                    @Override
+                    public void onFailed(Exception e) {
+                        // The photo could not be processed, retrying will not help
+                        mActive--;
+                        finish(item, UploadItem.State.FAILED, null);
+                        pump();
+                    }
+                });
+        mScheduler.submit(Lane.NETWORK, TaskScheduler.PRIORITY_NORMAL, TaskScope.APPLICATION, task);
+    }
+
+    /**
+     * Decide the fate of an item after an upload attempt.
+     */
+    private void onAttemptFinished(UploadItem item, Response response) {
+        FacebookRequestError error = response.getError();
+        if (error == null) {
+            GraphObject result = response.getGraphObject();
+            if (result != null) {
+                Object id = result.getProperty("id");
+                item.setPhotoId(id == null ? null : id.toString());
+            }
+            if (!new File(item.getPath()).delete()) {
+                Log.w(TAG, "Could not delete uploaded photo " + item.getPath());
+            }
+            finish(item, UploadItem.State.DONE, response);
+        } else if (FacebookProvider.isTransientError(error) && item.getAttempts() < MAX_ATTEMPTS) {
+            item.setState(UploadItem.State.QUEUED);
+            item.setNextAttemptAt(System.currentTimeMillis() + backoff(item.getAttempts()));
+            save();
+            Log.i(TAG, "Upload " + item.getId() + " failed, attempt " + item.getAttempts()
+                    + ": " + error);
+            for (Listener listener : copyListeners()) {
+                listener.onRetryScheduled(item);
+            }
+        } else {
+            finish(item, UploadItem.State.FAILED, response);
+        }
+    }
+
+    /**
+     * Move an item to a final state, drop it from the outbox and notify listeners.  The photo of
+     * a failed item is kept, and added to the media store so the user finds it in the gallery and
+     * can post it again.
+     */
+    private void finish(UploadItem item, UploadItem.State state, Response response) {
+        item.setState(state);
+        mItems.remove(item);
+        if (state == UploadItem.State.FAILED) {
+            Log.w(TAG, "Giving up on upload " + item.getId() + ", keeping " + item.getPath());
+            MediaScannerConnection.scanFile(
+                    mContext, new String[] { item.getPath() }, new String[] { "image/jpeg" }, null);
+        }
+        save();
+        for (Listener listener : copyListeners()) {
+            listener.onFinished(item, response);
+        }
+    }
+
+    /**
+     * @param attempts the number of attempts made so far.
+     * @return the delay before the next attempt, with up to 50% random jitter.
+     */
+    long backoff(int attempts) {
+        long delay = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempts - 1, 20));
+        return delay + (long) (mRandom.nextFloat() * delay / 2);
+    }
+
+    private List<Listener> copyListeners() {
+        return new ArrayList<Listener>(mListeners);
+    }
+
+    /**
+     * Read the persisted items, ahead of those enqueued meanwhile.  Items that were uploading when
+     * the process died are queued again, and items that failed or whose photo has since
+     * disappeared are dropped.
+     */
+    private void load() {
+        mScheduler.submit(Lane.DISK, TaskScheduler.PRIORITY_HIGH, TaskScope.APPLICATION,
+                new TaskScheduler.Task<List<UploadItem>>() {
+
+                    @Override
+                    protected List<UploadItem> run() throws IOException {
+                        List<UploadItem> items = new ArrayList<UploadItem>();
+                        if (!mFile.exists()) {
+                            return items;
+                        }
+                        items.addAll(Arrays.asList(mMapper.readValue(mFile, UploadItem[].class)));
+                        Iterator<UploadItem> it = items.iterator();
+                        while (it.hasNext()) {
+                            UploadItem item = it.next();
+                            File photo = new File(item.getPath());
+                            if (!photo.exists()) {
+                                it.remove();
+                            } else if (item.getState() == UploadItem.State.FAILED) {
+                                // Kept by an earlier version, nothing will upload it
+                                it.remove();
+                            } else if (item.getState() == UploadItem.State.UPLOADING) {
+                                item.setState(UploadItem.State.QUEUED);
+                            }
+                        }
+                        return items;
+                    }
+
+                    @Override
+                    protected void onSuccess(List<UploadItem> items) {
+                        Log.d(TAG, "Loaded " + items.size() + " pending uploads");
+                        mItems.addAll(0, items);
+                        onLoaded();
+                    }
+
+                    @Override
+                    protected void onFailure(Exception e) {
+                        Log.e(TAG, "Could not read outbox, starting empty", e);
+                        onLoaded();
+                    }
+
+                });
+    }
+
+    private void onLoaded() {
+        mLoaded = true;
+        save();
+        pump();
+    }
+
+    /**
+     * Persist a copy of the items on the disk lane, replacing the previous file only once the new
+     * one is fully written.  Writes queued behind one another are merged into the latest.
+     */
+    private void save() {
+        if (!mLoaded) {
+            // Would replace the file before it is read, saved once it is
+            return;
+        }
+        List<UploadItem> copy = new ArrayList<UploadItem>(mItems.size());
+        for (UploadItem item : mItems) {
+            copy.add(new UploadItem(item));
+        }
+        if (mUnsaved.getAndSet(copy) != null) {
+            // A queued write will pick up the copy
+            return;
+        }
+        mScheduler.submit(Lane.DISK, TaskScheduler.PRIORITY_NORMAL, TaskScope.APPLICATION,
+                new TaskScheduler.Task<Void>() {
+
+                    @Override
+                    protected Void run() throws IOException {
+                        byte[] data = mMapper.writeValueAsBytes(mUnsaved.getAndSet(null));
+                        AtomicFiles.write(mFile, data);
+                        return null;
+                    }
+
+                    @Override
+                    protected void onFailure(Exception e) {
+                        Log.e(TAG, "Could not save outbox", e);
+                    }
+
+                });
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.views;
+
+import com.google.plus.wigwamnow.models.IsoDates;
+import com.google.plus.wigwamnow.models.Listing;
+
+import android.annotation.SuppressLint;
+import android.util.SparseArray;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Formats {@link Listing}s as availability text, one listing per line.  Each day is formatted
+ * with the {@link SimpleDateFormat} only once and then reused, and the whole text is built in
+ * one buffer so it can be set on a view in one call.  Days are shown as the server sent them, in
+ * UTC.  Must be used from one thread.
+ */
+public class ListingFormatter {
+
+    /** Between the start and end of a listing **/
+    private static final String SEPARATOR = " - ";
+
+    /** Formatter for days not yet in {@link #mDays} **/
+    private final SimpleDateFormat mFormat;
+
+    /** Formatted days, by day since the epoch **/
+    private final SparseArray<String> mDays = new SparseArray<String>();
+
+    /** Reused for formatting **/
+    private final Date mDate = new Date(0);
+
+    /** Reused for building the text **/
+    private final StringBuilder mBuilder = new StringBuilder();
+
+    /**
+     * @param pattern the {@link SimpleDateFormat} pattern of a day.
+     */
+    @SuppressLint("SimpleDateFormat")
+    public ListingFormatter(String pattern) {
+        mFormat = new SimpleDateFormat(pattern);
+        mFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * @param listings the listings.
+     * @return the listings with both dates, one per line, each ending with a newline.
+     */
+    public String format(Listing[] listings) {
+        StringBuilder builder = mBuilder;
+        builder.setLength(0);
+        for (Listing listing : listings) {
+            if (listing.hasDates()) {
+                builder.append(formatDay(listing.getStartDay())).append(SEPARATOR)
+                        .append(formatDay(listing.getEndDay())).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    private String formatDay(int day) {
+        String text = mDays.get(day);
+        if (text == null) {
+            mDate.setTime(IsoDates.toMillis(day));
+            text = mFormat.format(mDate);
+            mDays.put(day, text);
+        }
+        return text;
+    }
+
+}
@@ -18,13 +18,22 @@ package com.google.plus.wigwamnow.views;
 
 import com.google.plus.wigwamnow.R;
 import com.google.plus.wigwamnow.WigwamNow;
+import com.google.plus.wigwamnow.metrics.Histogram;
+import com.google.plus.wigwamnow.metrics.Metrics;
 import com.google.plus.wigwamnow.models.Wigwam;
+import com.google.plus.wigwamnow.models.WigwamTable;
+import com.google.plus.wigwamnow.network.ImageHandle;
+import com.google.plus.wigwamnow.network.ImagePipeline;
+import com.google.plus.wigwamnow.network.ImageUrlRewriter;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.TransitionDrawable;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
@@ -32,8 +41,6 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.ImageLoader;
-import com.android.volley.toolbox.ImageLoader.ImageContainer;
 
 /**
  * Custom View to display a Wigwam Object. Shows the wigwam picture overlayed with the name of the
@@ -45,6 +52,16 @@ public class WigwamView extends RelativeLayout {
 
     private static final String TAG = WigwamView.class.getSimpleName();
 
+    /** Duration of the cross-fade from the preview to the full image, in milliseconds **/
+    private static final int CROSS_FADE_MS = 200;
+
+    /** Time from binding a row until the preview or full image is painted **/
+    private static final Histogram sFirstImageLatency =
+            Metrics.histogram("wigwam_first_image_ms");
+
+    /** Time from binding a row until the full image is painted **/
+    private static final Histogram sFullImageLatency = Metrics.histogram("wigwam_full_image_ms");
+
     /** Context where the view is displayed **/
     private final Context mContext;
     
@@ -57,6 +74,9 @@ public class WigwamView extends RelativeLayout {
     /** Base layout for the view **/
     private RelativeLayout mBaseLayout;
     
+    /** Reused to format the price of a {@link WigwamTable} row, sized for "$-2147483648/night" **/
+    private final char[] mPriceChars = new char[24];
+    
     /** Text view to display the wigwam's name **/
     private TextView mTitleView;
     
@@ -66,6 +86,21 @@ public class WigwamView extends RelativeLayout {
     /** Text view to display the wigwam's price **/
     private TextView mPriceView;
     
+    /** Outstanding image request for the bound {@link Wigwam}, cancelled on reuse **/
+    private ImageHandle mImageHandle;
+    
+    /** Outstanding request for the low resolution preview of the bound {@link Wigwam}'s image **/
+    private ImageHandle mPreviewHandle;
+    
+    /** Boolean to determine if the bound {@link Wigwam}'s full image has been displayed **/
+    private boolean mImageReady;
+    
+    /** Boolean to determine if any image (preview or full) has replaced the default image **/
+    private boolean mShowingImage;
+    
+    /** Time at which the current {@link Wigwam} was bound, for latency reporting **/
+    private long mBindTime;
+    
     /**
      * See {@link WigwamView#WigwamView(Context, AttributeSet)}
      */
@@ -109,31 +144,86 @@ public class WigwamView extends RelativeLayout {
     }
 
     /**
-     * Use the {@link ImageLoader} to download the image for the {@link Wigwam}, either over the
-     * network or from the cache.
+     * Use the {@link ImagePipeline} to download the image for the {@link Wigwam}, either over the
+     * network or from the cache.  The URL is rewritten to ask the server for an image no larger
+     * than the view.  Unless the full image is already cached, a tiny preview is requested
+     * alongside it and painted first, then replaced by the full image with a cross-fade.
      * 
      * @param src the URL where the image is located.
      */
     private void downloadImage(String src) {
-        ImageLoader imageLoader = WigwamNow.getImageLoader();
-        ImageContainer imgcont = imageLoader.get(src, new ImageLoader.ImageListener() {
-
-            @Override
-            public void onErrorResponse(VolleyError error) {
-                // Image error, just stick with the default mountains image here,
-                // rather than attempt a retry
-                Log.e(TAG, error.toString());
+        ImagePipeline pipeline = WigwamNow.getImagePipeline();
+        ImageUrlRewriter rewriter = WigwamNow.getImageUrlRewriter();
+        mBindTime = SystemClock.uptimeMillis();
+        if (!rewriter.isWigwamImageCached(pipeline, src)) {
+            String previewUrl = rewriter.thumbnail(src);
+            if (previewUrl != null) {
+                mPreviewHandle = pipeline.load(previewUrl, 0, 0,
+                        ImagePipeline.PRIORITY_VISIBLE, new StageListener(false));
             }
+        }
+        mImageHandle = rewriter.loadWigwamImage(
+                pipeline, src, ImagePipeline.PRIORITY_VISIBLE, new StageListener(true));
+    }
+
+    /**
+     * Cancel any outstanding requests and show the default mountains image again.
+     */
+    private void resetImage() {
+        if (mPreviewHandle != null) {
+            mPreviewHandle.cancel();
+            mPreviewHandle = null;
+        }
+        if (mImageHandle != null) {
+            mImageHandle.cancel();
+            mImageHandle = null;
+        }
+        mImageReady = false;
+        mShowingImage = false;
+        mBaseLayout.setBackgroundResource(R.drawable.cover);
+    }
 
-            @Override
-            public void onResponse(ImageContainer container, boolean isImmediate) {
-                Bitmap bitmap = container.getBitmap();
-                if (bitmap != null) {
-                    setImage(bitmap);
+    /**
+     * Listener for one stage of the image load, either the preview or the full image.
+     */
+    private class StageListener implements ImagePipeline.Listener {
+
+        /** Boolean to determine if this stage loads the full image **/
+        private final boolean mFull;
+
+        StageListener(boolean full) {
+            mFull = full;
+        }
+
+        @Override
+        public void onImageFailed(ImageHandle handle, VolleyError error) {
+            // Image error, just stick with the default mountains image (or the preview) here,
+            // rather than attempt a retry
+            Log.e(TAG, error.toString());
+        }
+
+        @Override
+        public void onImageLoaded(ImageHandle handle, Bitmap bitmap, boolean isImmediate) {
+            if (!mShowingImage) {
+                mShowingImage = true;
+                sFirstImageLatency.record(SystemClock.uptimeMillis() - mBindTime);
+            }
+            if (mFull) {
+                mImageReady = true;
+                if (mPreviewHandle != null) {
+                    // The preview is no longer needed
+                    mPreviewHandle.cancel();
+                    mPreviewHandle = null;
                 }
+                sFullImageLatency.record(SystemClock.uptimeMillis() - mBindTime);
+                if (!isImmediate) {
+                    WigwamNow.getImageUrlRewriter().onWigwamImageLoaded(handle, bitmap);
+                }
+                setImage(bitmap, !isImmediate);
+            } else if (!mImageReady) {
+                setImage(bitmap, false);
             }
-
-        });
+        }
 
     }
 
@@ -142,16 +232,44 @@ public class WigwamView extends RelativeLayout {
      * 
      * @param bitmap a {@link Bitmap} to set as the background image for the WigwamView.
      */
+    protected void setImage(Bitmap bitmap) {
+        setImage(bitmap, false);
+    }
+
+    /**
+     * Sets the background to a Bitmap, optionally cross-fading from the current background.
+     * 
+     * @param bitmap a {@link Bitmap} to set as the background image for the WigwamView.
+     * @param crossFade true to fade from the current background, false to swap immediately.
+     */
+    protected void setImage(Bitmap bitmap, boolean crossFade) {
+        Drawable drawable = new BitmapDrawable(mContext.getResources(), bitmap);
+        Drawable current = mBaseLayout.getBackground();
+        if (crossFade && current != null) {
+            TransitionDrawable transition =
+                    new TransitionDrawable(new Drawable[] { current, drawable });
+            transition.setCrossFadeEnabled(true);
+            setBaseBackground(transition);
+            transition.startTransition(CROSS_FADE_MS);
+        } else {
+            setBaseBackground(drawable);
+        }
+    }
+
+    /**
+     * Sets the background of the base layout.
+     * 
+     * @param drawable the {@link Drawable} to use as the background.
+     */
     @SuppressLint("NewApi")
     @SuppressWarnings("deprecation")
-    protected void setImage(Bitmap bitmap) {
-        BitmapDrawable bmd = new BitmapDrawable(mContext.getResources(), bitmap);
+    private void setBaseBackground(Drawable drawable) {
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN) {
             // On JellyBean or higher, setBackgroundDrawable is deprecated
-            mBaseLayout.setBackground(bmd);
+            mBaseLayout.setBackground(drawable);
         } else {
             // Support Android 2.2+
-            mBaseLayout.setBackgroundDrawable(bmd);
+            mBaseLayout.setBackgroundDrawable(drawable);
         }
     }
 
@@ -207,20 +325,91 @@ public class WigwamView extends RelativeLayout {
         requestLayout();
     }
 
+    /**
+     * Determine if the bound {@link Wigwam}'s image is on screen.  Checked right after
+     * {@link #fillWithWigwam} this tells whether the image was served from the cache.
+     * 
+     * @return true if the image has been displayed, false otherwise.
+     */
+    public boolean isImageReady() {
+        return mImageReady;
+    }
+
     /**
      * Populates the child views with information from a {@link Wigwam} object.
      * 
      * @param wigwam the {@link Wigwam} with the information for the WigwamView.
      */
     public void fillWithWigwam(Wigwam wigwam) {
+        // The view may be recycled, drop the requests for the previous wigwam
+        resetImage();
         mTitleView.setText(wigwam.getName());
         mDescriptionView.setText(wigwam.getDescription());
-        String priceString = "$" + wigwam.getPrice() + "/night";
+        String priceString = wigwam.hasPrice() ? "$" + wigwam.getPrice() + "/night" : "";
         mPriceView.setText(priceString);
         if (wigwam.getSrc() != null) {
             downloadImage(wigwam.getSrc());
         }
     }
 
+    /**
+     * Populates the child views with a row of a {@link WigwamTable}.  The name is shown straight
+     * from the table's buffer, without building a string for each row.
+     * 
+     * @param table the table.
+     * @param row the row to display.
+     */
+    public void fillWithRow(WigwamTable table, int row) {
+        // The view may be recycled, drop the requests for the previous wigwam
+        resetImage();
+        setText(mTitleView, table.getText(), table.getNameStart(row), table.getNameLength(row));
+        mDescriptionView.setText(table.getDescription(row));
+        if (table.hasPrice(row)) {
+            mPriceView.setText(mPriceChars, 0, formatPrice(table.getPrice(row)));
+        } else {
+            mPriceView.setText(null);
+        }
+        if (table.getSrc(row) != null) {
+            downloadImage(table.getSrc(row));
+        }
+    }
+
+    private static void setText(TextView view, char[] text, int start, int length) {
+        if (length < 0) {
+            view.setText(null);
+        } else {
+            view.setText(text, start, length);
+        }
+    }
+
+    /**
+     * Write "$price/night" to {@link #mPriceChars}.
+     *
+     * @return the number of characters written.
+     */
+    private int formatPrice(int price) {
+        char[] out = mPriceChars;
+        int length = 0;
+        out[length++] = '$';
+        long value = price;
+        if (value < 0) {
+            out[length++] = '-';
+            value = -value;
+        }
+        int digitsStart = length;
+        do {
+            out[length++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // Digits were written least significant first
+        for (int i = digitsStart, j = length - 1; i < j; i++, j--) {
+            char c = out[i];
+            out[i] = out[j];
+            out[j] = c;
+        }
+        "/night".getChars(0, 6, out, length);
+        return length + 6;
+    }
+
 }
 
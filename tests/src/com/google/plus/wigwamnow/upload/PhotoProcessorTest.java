@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.plus.wigwamnow.upload;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the sample sizes {@link PhotoProcessor} decodes with, which need no device.  For camera
+ * photos up to 48 megapixels, the decoded bitmap must fit the heap budget of a photo at the max
+ * edge, and must not be needlessly small.
+ */
+public class PhotoProcessorTest extends TestCase {
+
+    /** Synthetic photo sizes, width by height, from phone and tablet cameras **/
+    private static final int[][] SIZES = {
+        {640, 480}, {2048, 1536}, {2049, 1537}, {2592, 1944}, {3264, 2448}, {4032, 3024},
+        {3024, 4032}, {4096, 4096}, {4128, 3096}, {5312, 2988}, {6000, 4000}, {8000, 6000},
+    };
+
+    /** Max edges to check, including the default **/
+    private static final int[] MAX_EDGES = {512, 1024, 1600, PhotoProcessor.DEFAULT_MAX_EDGE};
+
+    public void testDefaultCameraPhotoIsSubsampled() {
+        assertEquals(2, PhotoProcessor.findSampleSize(4032, PhotoProcessor.DEFAULT_MAX_EDGE));
+    }
+
+    public void testSmallPhotoIsNotSubsampled() {
+        assertEquals(1, PhotoProcessor.findSampleSize(640, PhotoProcessor.DEFAULT_MAX_EDGE));
+        assertEquals(1, PhotoProcessor.findSampleSize(2048, PhotoProcessor.DEFAULT_MAX_EDGE));
+    }
+
+    public void testPeakDecodedBytesFitMaxEdge() {
+        for (int maxEdge : MAX_EDGES) {
+            long budget = (long) maxEdge * maxEdge * PhotoProcessor.BYTES_PER_PIXEL;
+            for (int[] size : SIZES) {
+                int sampleSize = PhotoProcessor.findSampleSize(
+                        Math.max(size[0], size[1]), maxEdge);
+                long bytes = PhotoProcessor.decodedBytes(size[0], size[1], sampleSize);
+                assertTrue(size[0] + "x" + size[1] + " at " + maxEdge + " decodes to " + bytes
+                        + " bytes", bytes <= budget);
+            }
+        }
+    }
+
+    public void testSampledEdgeIsMoreThanHalfMaxEdge() {
+        for (int maxEdge : MAX_EDGES) {
+            for (int[] size : SIZES) {
+                int edge = Math.max(size[0], size[1]);
+                int sampleSize = PhotoProcessor.findSampleSize(edge, maxEdge);
+                int sampled = (edge + sampleSize - 1) / sampleSize;
+                assertTrue(edge + " at " + maxEdge + " samples to " + sampled,
+                        sampled <= maxEdge && (sampled * 2 > maxEdge || sampleSize == 1));
+            }
+        }
+    }
+
+}